@@ -0,0 +1,25 @@
+#!/bin/sh
+#
+# Run a partitioned ledger on this machine, one server JVM per shard on
+# consecutive ports from 8080. The nodes deposit into each other on the ports
+# from 9080. Takes the number of shards as argument (3).
+# Point com.ximedes.client.PartitionBenchmark at any of the nodes to test it.
+#
+
+SHARDS=${1:-3}
+JAR=x-accounts/target/x-accounts-0.0.1-SNAPSHOT.jar
+
+NODES=""
+for SHARD in $(seq 0 $((SHARDS - 1))); do
+    NODES="${NODES}${NODES:+,}http://localhost:$((8080 + SHARD))/"
+done
+
+for SHARD in $(seq 0 $((SHARDS - 1))); do
+    java -Xmx512M -Djava.net.preferIPv4Stack=true \
+        -Dx-accounts.port=$((8080 + SHARD)) \
+        -Dx-accounts.partition.nodes=$NODES \
+        -Dx-accounts.partition.shard=$SHARD \
+        -cp $JAR com.ximedes.server.ServerMain &
+done
+
+wait
@@ -36,6 +36,55 @@ public interface API {
      */
     int transfer(int from, int to, int amount);
 
+    /**
+     * Make a batch of transfers in one call. The transfers are made in the
+     * order of the arrays and get consecutive identifiers, so that we only
+     * have to return the first one. The arrays must all be of the same
+     * length. On a {@link PartitionedLedger} the identifiers are consecutive
+     * on the shard, so they are the number of shards apart.
+     * <p>
+     * That only holds for a batch that a single node makes in one go. A
+     * client of a partitioned ledger sends each part of the batch to the
+     * node that owns its "from" accounts, and the parts get identifiers of
+     * their own, and a client whose protocol has no batches sends the
+     * transfers one by one. So callers that need more than the first
+     * identifier should use {@link #transfers(int[], int[], int[])}.
+     * 
+     * @param from
+     *            The accounts to transfer from.
+     * @param to
+     *            The accounts to transfer to.
+     * @param amount
+     *            The amounts to transfer.
+     * @return The identifier of the first transfer of the batch. On a
+     *         single node the last one is that plus
+     *         <code>from.length - 1</code>.
+     */
+    int transfer(int[] from, int[] to, int[] amount);
+
+    /**
+     * Make a batch of transfers in one call, like
+     * {@link #transfer(int[], int[], int[])}, and find out the identifier of
+     * each of them. By default we work them out from the first one.
+     * 
+     * @param from
+     *            The accounts to transfer from.
+     * @param to
+     *            The accounts to transfer to.
+     * @param amount
+     *            The amounts to transfer.
+     * @return The identifiers of the transfers, in the order of the arrays.
+     */
+    default int[] transfers(final int[] from, final int[] to,
+            final int[] amount) {
+        final int first = transfer(from, to, amount);
+        final int[] ids = new int[from.length];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = first + i;
+        }
+        return ids;
+    }
+
     /**
      * Retrieve a transfer that was scheduled earlier.
      * 
@@ -46,6 +95,52 @@ public interface API {
      */
     Transaction getTransfer(int transferId);
 
+    /**
+     * Retrieve a transfer that was scheduled earlier into a transaction object
+     * that the caller provides. Hot paths use this to read all their transfers
+     * through one reusable object instead of allocating one per call.
+     * 
+     * @param transferId
+     *            The identifier of the transfer to look up.
+     * @param into
+     *            The transaction object to fill in.
+     * @return <code>into</code>, filled with the transfer as identified by the
+     *         identifier, or <code>null</code> if no transfer could be found
+     *         for that id.
+     */
+    default Transaction getTransfer(final int transferId,
+            final Transaction into) {
+        final Transaction transfer = getTransfer(transferId);
+        if (transfer == null) {
+            return null;
+        }
+
+        into.transactionId = transfer.transactionId;
+        into.from = transfer.from;
+        into.to = transfer.to;
+        into.amount = transfer.amount;
+        into.status = transfer.status;
+        return into;
+    }
+
+    /**
+     * Make a transfer and find out how it went. By default this is a
+     * transfer followed by a look-up of the transfer, but a client that
+     * talks to a server can do both in a single round trip.
+     * 
+     * @param from
+     *            the account to transfer from.
+     * @param to
+     *            The account to transfer to.
+     * @param amount
+     *            The amount to transfer.
+     * @return The resulting transfer, with its status.
+     */
+    default Transaction transferWithResult(final int from, final int to,
+            final int amount) {
+        return getTransfer(transfer(from, to, amount));
+    }
+
     // The methods below are not specified by the challange documentation, but
     // we added them for convenience.
 
@@ -56,10 +151,59 @@ public interface API {
     void ping();
 
     /**
-     * Count the sum of all cents in the system. This call runs unsynchronised,
-     * so make sure the system is quiet before calling it.
+     * Count the sum of all cents in the system, by adding up the balances
+     * of all accounts, see {@link #auditCentsInTheSystem()}. If the
+     * transfers lost or made money, this is where it shows.
      * 
      * @return The sum of all cents in the system.
+     * @throws ArithmeticException
+     *             When the sum does not fit in an <code>int</code>.
      */
     int countCentsInTheSystem();
+
+    /**
+     * The running total of the money that was put into the system, as a
+     * <code>long</code>. Transfers only move money around, so the ledgers
+     * keep this total on the side and answer it right away, even under
+     * load. Since no transfer ever touches it, it says nothing about the
+     * transfers by itself: compare it to {@link #auditCentsInTheSystem()}.
+     * 
+     * @return The money that was put into the system.
+     */
+    default long centsInTheSystem() {
+        return countCentsInTheSystem();
+    }
+
+    /**
+     * Add up the balances of all accounts, as a <code>long</code>. The
+     * ledger counts the balances as they were at a single moment, so the sum
+     * must equal {@link #centsInTheSystem()}, even under load. The transfers
+     * go on while it counts, but the caller waits for a scan of the whole
+     * ledger, so this is not for a hot path.
+     * 
+     * @return The sum of all balances.
+     */
+    default long auditCentsInTheSystem() {
+        return centsInTheSystem();
+    }
+
+    /**
+     * Have a listener called once a pending transfer is decided, so that
+     * whoever waits for it need not keep looking. The ledger calls the
+     * listener from the thread that writes the final status, or right away
+     * from this call if the transfer was decided already. Either way the
+     * listener must be quick and must not block.
+     * 
+     * @param transferId
+     *            The identifier of the transfer to wait for.
+     * @param listener
+     *            What to call once the transfer is no longer pending.
+     * @return <code>true</code> if the listener will be called, or
+     *         <code>false</code> if this ledger never leaves a transfer
+     *         pending and so has nothing to call it for.
+     */
+    default boolean whenDecided(final int transferId,
+            final Runnable listener) {
+        return false;
+    }
 }
@@ -0,0 +1,107 @@
+package com.ximedes;
+
+import static com.ximedes.Segments.SEGMENT_SIZE;
+import static com.ximedes.Segments.offset;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * What we know about each account besides its balance: whether it was
+ * created, whether it is a bank account and, if so, its overdraft. The
+ * identifiers come in blocks, see {@link IdBlocks}, so an identifier below
+ * the highest one may still be unused, and only this table can tell. The
+ * ledgers used to know of a single
+ * overdraft, that of the bank that was created last, and took every account
+ * up to the highest bank for a bank. That does not do for thousands of
+ * banks, each with an overdraft of its own.
+ * <p>
+ * The table has three columns, indexed by account identifier like the
+ * balances. Whether an account was created and whether it is a bank are
+ * bitmaps with one bit per account, so the column for all accounts of a
+ * segment fits in 8 kB and stays in the cache. The overdraft is an int
+ * column, but we only allocate its segments where there are banks, since
+ * every other account has an overdraft of zero anyway.
+ * <p>
+ * Reads take no locks. A bank's overdraft is written before its bank bit,
+ * and that before the bit that says that the account was created, all with
+ * release semantics. So a reader that sees a bit with acquire semantics sees
+ * what was written before it.
+ */
+final class AccountTable {
+    private static final int BITS_SHIFT = 6; // 64 bits in a long
+
+    private final Segments<AtomicLongArray> created = new Segments<>(
+            first -> new AtomicLongArray(SEGMENT_SIZE >>> BITS_SHIFT));
+    private final Segments<AtomicLongArray> banks = new Segments<>(
+            first -> new AtomicLongArray(SEGMENT_SIZE >>> BITS_SHIFT));
+    private final Segments<AtomicIntegerArray> overdrafts = new Segments<>(
+            first -> new AtomicIntegerArray(SEGMENT_SIZE));
+
+    /**
+     * Record a new account and its overdraft. Call this once the account is
+     * set up, since from here on it {@link #exists(int)}. Accounts without
+     * an overdraft are not banks, and as those are the default we need not
+     * write anything else for them.
+     */
+    void add(final int accountId, final int overdraft) {
+        if (overdraft > 0) {
+            overdrafts.segment(accountId).lazySet(offset(accountId),
+                    overdraft);
+            set(banks, accountId);
+        }
+        set(created, accountId);
+    }
+
+    private static void set(final Segments<AtomicLongArray> column,
+            final int accountId) {
+        final AtomicLongArray bits = column.segment(accountId);
+        final int offset = offset(accountId);
+        final int word = offset >>> BITS_SHIFT;
+        final long bit = 1L << offset;
+        long current;
+        while (((current = bits.get(word)) & bit) == 0L
+                && !bits.compareAndSet(word, current, current | bit)) {
+            // another account in the same word, try again
+        }
+    }
+
+    private static boolean isSet(final Segments<AtomicLongArray> column,
+            final int accountId) {
+        final AtomicLongArray bits = column.segmentIfPresent(accountId);
+        if (bits == null) {
+            return false;
+        }
+        final int offset = offset(accountId);
+        return (bits.get(offset >>> BITS_SHIFT) & (1L << offset)) != 0L;
+    }
+
+    /**
+     * Check an identifier that a client sent us, before we use it to find or
+     * allocate a segment. This needs no segment of its own beyond that of
+     * the bitmap.
+     *
+     * @return <code>true</code> if the account was created.
+     */
+    boolean exists(final int accountId) {
+        return accountId >= 0 && isSet(created, accountId);
+    }
+
+    /**
+     * @return <code>true</code> if the account is a bank account.
+     */
+    boolean isBank(final int accountId) {
+        return isSet(banks, accountId);
+    }
+
+    /**
+     * @return The overdraft of the account, which is zero for all but the
+     *         bank accounts.
+     */
+    int overdraft(final int accountId) {
+        if (!isBank(accountId)) {
+            return 0;
+        }
+        return overdrafts.segment(accountId).get(offset(accountId));
+    }
+}
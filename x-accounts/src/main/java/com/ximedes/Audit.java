@@ -0,0 +1,87 @@
+package com.ximedes;
+
+import static java.lang.Math.min;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * A full audit of the balances: add them all up, in parallel on the common
+ * fork-join pool. We split the accounts into chunks of {@link #CHUNK_SIZE},
+ * so that even a ledger that fits in a few segments keeps every core busy.
+ * The sum is a <code>long</code>, which does not overflow like the
+ * <code>int</code> we used to count in.
+ * <p>
+ * The scan itself does not stop the transfers. The ledgers save the
+ * balances as they were when the audit began, each in its own way, see
+ * {@link AuditSnapshot}, so that it never catches money on its way from one
+ * account to another.
+ */
+final class Audit {
+    private static final int CHUNK_SIZE = 1 << 14;
+
+    /**
+     * Adds up the balances of a range of accounts that lies within a single
+     * segment.
+     */
+    interface ChunkSum {
+        long sum(int first, int length);
+    }
+
+    /**
+     * Add up the balances of all accounts.
+     *
+     * @param accounts
+     *            The number of account identifiers that were handed out.
+     * @param chunkSum
+     *            Adds up the balances of one chunk of accounts.
+     * @return The sum of all balances.
+     */
+    static long scan(final int accounts, final ChunkSum chunkSum) {
+        final int chunks = (int) (((long) accounts + CHUNK_SIZE - 1)
+                / CHUNK_SIZE);
+        return ForkJoinPool.commonPool()
+                .invoke(new Scan(0, chunks, accounts, chunkSum));
+    }
+
+    private static final class Scan extends RecursiveTask<Long> {
+        private static final long serialVersionUID = 1L;
+
+        private final int firstChunk;
+        private final int lastChunk; // exclusive
+        private final int accounts;
+        private final ChunkSum chunkSum;
+
+        Scan(final int firstChunk, final int lastChunk, final int accounts,
+                final ChunkSum chunkSum) {
+            super();
+
+            this.firstChunk = firstChunk;
+            this.lastChunk = lastChunk;
+            this.accounts = accounts;
+            this.chunkSum = chunkSum;
+        }
+
+        /**
+         * @see java.util.concurrent.RecursiveTask#compute()
+         */
+        @Override
+        protected Long compute() {
+            if (lastChunk - firstChunk <= 1) {
+                if (firstChunk == lastChunk) {
+                    return 0L;
+                }
+                final int first = firstChunk * CHUNK_SIZE;
+                return chunkSum.sum(first, min(CHUNK_SIZE, accounts - first));
+            }
+
+            final int middle = (firstChunk + lastChunk) >>> 1;
+            final Scan left = new Scan(firstChunk, middle, accounts,
+                    chunkSum);
+            left.fork();
+            final long right = new Scan(middle, lastChunk, accounts, chunkSum)
+                    .compute();
+            return left.join() + right;
+        }
+    }
+}
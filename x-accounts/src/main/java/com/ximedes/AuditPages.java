@@ -0,0 +1,132 @@
+package com.ximedes;
+
+import static com.ximedes.Segments.SEGMENT_SIZE;
+import static com.ximedes.Segments.offset;
+import static com.ximedes.SequencedLedger.idle;
+import static java.lang.Math.min;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.Supplier;
+
+/**
+ * Audits for the ledgers in which one thread at a time writes the balances,
+ * the {@link CombiningLedger} and the {@link SequencedLedger}. There, a
+ * transfer changes both of its balances before the next one starts, so
+ * the money is never on its way between two accounts and all we need is an
+ * {@link AuditSnapshot} that the writer keeps up to date.
+ * <p>
+ * Remembering an epoch for every balance would cost the writer a second
+ * cache miss on every change, so we remember it per page of
+ * {@link #PAGE_SIZE} accounts instead. The writer {@link #touch(int)}es an
+ * account before it changes the balance, which costs a read of the page's
+ * epoch, and the first touch of a page in a new epoch saves the whole
+ * page. The audit saves the pages that the writer did not touch. Whoever
+ * saves a page first marks it busy, so the other one waits for that single
+ * page and never for the whole audit.
+ */
+final class AuditPages {
+    private static final int PAGE_SHIFT = 10;
+    static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+
+    private static final int BUSY = -1;
+
+    private final Segments<int[]> balance;
+    private final Segments<AtomicIntegerArray> epochs = new Segments<>(
+            first -> new AtomicIntegerArray(SEGMENT_SIZE >> PAGE_SHIFT));
+
+    private volatile AuditSnapshot snapshot = new AuditSnapshot();
+
+    /**
+     * Set up the pages for a ledger.
+     *
+     * @param balance
+     *            The balances of the ledger.
+     */
+    AuditPages(final Segments<int[]> balance) {
+        super();
+
+        this.balance = balance;
+    }
+
+    /**
+     * Start the next epoch. The ledger calls this from the function that it
+     * passes to {@link #audit(Supplier)}, at a moment when no balance
+     * changes.
+     *
+     * @param accounts
+     *            The number of account identifiers that were handed out.
+     * @return The snapshot of the new epoch.
+     */
+    AuditSnapshot begin(final int accounts) {
+        snapshot = snapshot.next(accounts);
+        return snapshot;
+    }
+
+    /**
+     * Note that the writer is about to change the balance of an account, so
+     * that we save its page first if that is still needed.
+     */
+    void touch(final int accountId) {
+        final AuditSnapshot current = snapshot;
+        final AtomicIntegerArray pages = epochs.segment(accountId);
+        final int page = offset(accountId) >> PAGE_SHIFT;
+        if (pages.get(page) != current.epoch) {
+            save(pages, page, accountId & -PAGE_SIZE, current);
+        }
+    }
+
+    /**
+     * Add up the balances as they were at a single moment. We run one audit
+     * at a time, and the transfers go on while we do.
+     *
+     * @param begin
+     *            Starts the next epoch with {@link #begin(int)}.
+     * @return The sum of the balances when the epoch began.
+     */
+    synchronized long audit(final Supplier<AuditSnapshot> begin) {
+        final AuditSnapshot current = begin.get();
+        Audit.scan(current.accounts, (first, length) -> {
+            // every page saves its own sum, see below
+            final AtomicIntegerArray pages = epochs.segment(first);
+            for (int id = first; id < first + length; id += PAGE_SIZE) {
+                save(pages, offset(id) >> PAGE_SHIFT, id, current);
+            }
+            return 0L;
+        });
+        return current.saved();
+    }
+
+    /**
+     * Save a page, unless someone did so already in this epoch, in which
+     * case we wait until they are done.
+     */
+    private void save(final AtomicIntegerArray pages, final int page,
+            final int first, final AuditSnapshot current) {
+        for (int spins = 0;; spins++) {
+            final int epoch = pages.get(page);
+            if (epoch == current.epoch) {
+                return;
+            }
+            if (epoch != BUSY && pages.compareAndSet(page, epoch, BUSY)) {
+                current.save(sum(first, current.accounts));
+                pages.set(page, current.epoch);
+                return;
+            }
+            idle(spins);
+        }
+    }
+
+    private long sum(final int first, final int accounts) {
+        final int[] balances = balance.segmentIfPresent(first);
+        if (balances == null) {
+            return 0L;
+        }
+        long sum = 0L;
+        final int offset = offset(first);
+        final int end = offset + min(PAGE_SIZE, accounts - first);
+        for (int i = offset; i < end; i++) {
+            sum += balances[i];
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,73 @@
+package com.ximedes;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The cents in a ledger as they were at the moment that an audit began,
+ * collected while the transfers go on. Each audit starts a new epoch, and
+ * the ledgers remember per balance the epoch in which it last changed. The
+ * first change of a balance in the new epoch saves what the balance was
+ * before, copy-on-write. The audit itself saves the balances that nobody
+ * changed. Either way, every balance is saved exactly once, as it was when
+ * the epoch began, and the sum of what was saved is the sum of a single
+ * moment.
+ * <p>
+ * Only balances of the accounts that were handed out when the audit began
+ * count. The ones that came after did not exist yet at that moment.
+ */
+final class AuditSnapshot {
+    final int epoch;
+    final int accounts;
+
+    private final LongAdder saved = new LongAdder();
+
+    /**
+     * Set up the snapshot of the first epoch, which no audit ever reads.
+     */
+    AuditSnapshot() {
+        this(0, 0);
+    }
+
+    private AuditSnapshot(final int epoch, final int accounts) {
+        super();
+
+        this.epoch = epoch;
+        this.accounts = accounts;
+    }
+
+    /**
+     * Start the epoch after this one.
+     *
+     * @param accounts
+     *            The number of account identifiers that were handed out.
+     * @return The snapshot of the next epoch.
+     */
+    AuditSnapshot next(final int accounts) {
+        return new AuditSnapshot(epoch + 1, accounts);
+    }
+
+    /**
+     * Save the balance of an account as it was when the epoch began, if the
+     * account existed at that moment.
+     */
+    void save(final int accountId, final long balance) {
+        if (accountId < accounts) {
+            saved.add(balance);
+        }
+    }
+
+    /**
+     * Save the balances of a number of accounts at once. The caller already
+     * left out the accounts that came after the epoch began.
+     */
+    void save(final long balances) {
+        saved.add(balances);
+    }
+
+    /**
+     * @return The sum of what was saved so far.
+     */
+    long saved() {
+        return saved.sum();
+    }
+}
@@ -0,0 +1,88 @@
+package com.ximedes;
+
+/**
+ * The compact binary protocol that our internal services and load drivers
+ * speak instead of HTTP and JSON. A transfer costs us some 400 bytes over
+ * HTTP, request and response together, and most of that is headers and
+ * field names that say the same thing every time. Here it costs 28.
+ * <p>
+ * Every frame starts with a byte that holds the length of the rest of the
+ * frame, followed by the type of the frame and a request identifier. The
+ * arguments or results follow as big-endian ints. Each type of frame has a
+ * fixed size, so the length byte is only there for the reader to frame the
+ * stream without knowing the types.
+ *
+ * <pre>
+ *   request                         response
+ *   CREATE_ACCOUNT  overdraft       CREATE_ACCOUNT  accountId
+ *   TRANSFER        from to amount  TRANSFER        transferId
+ *   GET_ACCOUNT     accountId       GET_ACCOUNT     balance overdraft
+ *   GET_TRANSFER    transferId      GET_TRANSFER    from to amount status
+ *   PING            -               PING            -
+ *   COUNT_CENTS     -               COUNT_CENTS     cents
+ *                                   NOT_FOUND       -
+ * </pre>
+ *
+ * Accounts and transfers that do not exist, negative identifiers included,
+ * are answered with <code>NOT_FOUND</code>. So is a count of the cents that
+ * does not fit in an int.
+ *
+ * The status of a transfer is the single byte of its ordinal. The response
+ * to a request carries the identifier of that request, so that a client can
+ * have any number of requests from any number of threads outstanding on one
+ * connection and still match up the answers. The server answers the
+ * requests on a connection in the order that they came in, but a client
+ * should not count on that.
+ */
+public final class BinaryProtocol {
+    /**
+     * The response type for accounts and transfers that do not exist.
+     */
+    public static final byte NOT_FOUND = 0;
+    public static final byte CREATE_ACCOUNT = 1;
+    public static final byte TRANSFER = 2;
+    public static final byte GET_ACCOUNT = 3;
+    public static final byte GET_TRANSFER = 4;
+    public static final byte PING = 5;
+    public static final byte COUNT_CENTS = 6;
+
+    /**
+     * The length byte, the type and the request identifier.
+     */
+    public static final int HEADER_SIZE = 6;
+
+    /**
+     * The largest frame, so that buffers of this size hold any frame.
+     */
+    public static final int MAX_FRAME_SIZE = HEADER_SIZE + 13;
+
+    // the sizes of the whole frames, length byte included, by type
+    private static final int[] REQUEST_SIZES = { 0, HEADER_SIZE + 4,
+            HEADER_SIZE + 12, HEADER_SIZE + 4, HEADER_SIZE + 4, HEADER_SIZE,
+            HEADER_SIZE };
+    private static final int[] RESPONSE_SIZES = { HEADER_SIZE,
+            HEADER_SIZE + 4, HEADER_SIZE + 4, HEADER_SIZE + 8,
+            HEADER_SIZE + 13, HEADER_SIZE, HEADER_SIZE + 4 };
+
+    private BinaryProtocol() {
+        super();
+    }
+
+    /**
+     * @return The size of a request frame of the given type, including its
+     *         length byte, or 0 if there is no such request.
+     */
+    public static int requestSize(final byte type) {
+        return type < 0 || type >= REQUEST_SIZES.length ? 0
+                : REQUEST_SIZES[type];
+    }
+
+    /**
+     * @return The size of a response frame of the given type, including its
+     *         length byte, or 0 if there is no such response.
+     */
+    public static int responseSize(final byte type) {
+        return type < 0 || type >= RESPONSE_SIZES.length ? 0
+                : RESPONSE_SIZES[type];
+    }
+}
@@ -0,0 +1,557 @@
+package com.ximedes;
+
+import static com.ximedes.Segments.SEGMENT_SIZE;
+import static com.ximedes.Segments.offset;
+import static com.ximedes.SequencedLedger.idle;
+import static com.ximedes.Status.ACCOUNT_NOT_FOUND;
+import static com.ximedes.Status.CONFIRMED;
+import static com.ximedes.Status.INSUFFICIENT_FUNDS;
+import static com.ximedes.Status.PENDING;
+import static java.lang.Math.toIntExact;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free implementation of the challenge systems. Where
+ * {@link Simpleton} guards each balance with a monitor, this ledger keeps the
+ * balances in an {@link AtomicLongArray} and moves the money with
+ * compare-and-set loops. No transfer ever waits for another one or for an
+ * audit, and because we never lock an account, transfers may run between any
+ * two accounts in any order without the risk of a deadlock.
+ * <p>
+ * Next to the balance, each entry of the array holds what an audit needs to
+ * add up the balances of a single moment while the transfers go on: the
+ * epoch in which the balance last changed, see {@link AuditSnapshot}, and
+ * how many debits from the account have not landed in the other account
+ * yet, counted apart for even and odd epochs. An audit saves every balance
+ * as it was when its epoch began and then waits until the debits of the
+ * epoch before landed, so it never misses money on its way between two
+ * accounts.
+ */
+public class CasLedger implements Recoverable, Partitionable {
+    // The layout of an entry: the epoch, modulo 4096, in which the balance
+    // last changed in the low bits, then the debits under way that started
+    // in an even and in an odd epoch, and the balance in the high 32 bits,
+    // where it overflows like an int would.
+    private static final int EPOCH_BITS = 12;
+    private static final long EPOCH = (1L << EPOCH_BITS) - 1L;
+    private static final int FLIGHT_BITS = 10;
+    private static final int FLIGHT_MAX = (1 << FLIGHT_BITS) - 1;
+    private static final int BALANCE_SHIFT = 32;
+    private static final int AGE_SHIFT = Integer.SIZE - EPOCH_BITS;
+
+    private final IdBlocks nextAccount = new IdBlocks();
+
+    private final Segments<AtomicLongArray> balance = new Segments<>(
+            first -> new AtomicLongArray(SEGMENT_SIZE));
+
+    private final AccountTable accounts = new AccountTable();
+
+    // the money that was put into the system, which transfers don't change
+    private final LongAdder cents = new LongAdder();
+
+    // the running audit, or the last one; we run one at a time
+    private volatile AuditSnapshot snapshot = new AuditSnapshot();
+    private final Object auditLock = new Object();
+
+    private final TransferLog transfers = new TransferLog();
+    private final IdBlocks nextTransaction = new IdBlocks();
+
+    /**
+     * @see com.ximedes.API#createAccount(int)
+     */
+    @Override
+    public int createAccount(final int overdraft) {
+        final int accountId = nextAccount.claim(1);
+        if (accountId < 0) {
+            throw new IllegalStateException("ran out of account identifiers");
+        }
+
+        setUpAccount(accountId, overdraft);
+        return accountId;
+    }
+
+    private void setUpAccount(final int accountId, final int overdraft) {
+        // make sure the segment exists before anyone uses this account
+        balance.segment(accountId);
+
+        if (overdraft > 0) { // a bank account
+            credit(accountId, overdraft, snapshot, false);
+            cents.add(overdraft);
+        }
+
+        // remember the overdraft, so that we report the balance without it,
+        // and that the account exists
+        accounts.add(accountId, overdraft);
+    }
+
+    /**
+     * @see com.ximedes.Recoverable#restoreAccount(int, int)
+     */
+    @Override
+    public void restoreAccount(final int accountId, final int overdraft) {
+        nextAccount.restored(accountId);
+        setUpAccount(accountId, overdraft);
+    }
+
+    /**
+     * @see com.ximedes.Recoverable#restoreAccount(int, int, int)
+     */
+    @Override
+    public void restoreAccount(final int accountId, final int overdraft,
+            final int bal) {
+        restoreAccount(accountId, overdraft);
+        final int before = balance(
+                balance.segment(accountId).get(offset(accountId)));
+        adjust(accountId, bal + overdraft - before);
+        cents.add(bal + overdraft - before);
+    }
+
+    /**
+     * @see com.ximedes.API#getAccount(int)
+     */
+    @Override
+    public Account getAccount(final int accountId) {
+        if (!accounts.exists(accountId)) {
+            return null;
+        }
+
+        final AtomicLongArray balances = balance.segmentIfPresent(accountId);
+        if (balances == null) {
+            return null;
+        }
+
+        final int overd = accounts.overdraft(accountId);
+        final int bal = balance(balances.get(offset(accountId))) - overd;
+
+        return new Account(accountId, bal, overd);
+    }
+
+    /**
+     * Transfer the funds using two independent atomic updates. The debit is a
+     * compare-and-set loop that retries until it either wins the race for the
+     * "from" balance or finds that there is not enough money. Only after the
+     * debit succeeded do we credit the "to" account, which cannot fail and so
+     * is mostly a simple atomic add.
+     * <p>
+     * In between the two steps the money is in flight and not visible in
+     * either account. The debit counts itself in the "from" account until
+     * the money landed, so that {@link #auditCentsInTheSystem()} knows to
+     * wait for it.
+     *
+     * @see com.ximedes.API#transfer(int, int, int)
+     */
+    @Override
+    public int transfer(final int from, final int to, final int amount) {
+        return record(from, to, amount, move(from, to, amount));
+    }
+
+    /**
+     * @see com.ximedes.API#transfer(int[], int[], int[])
+     */
+    @Override
+    public int transfer(final int[] from, final int[] to, final int[] amount) {
+        final int first = claimTransactions(from.length);
+        for (int i = 0; i < from.length; i++) {
+            transfers.write(first + i, from[i], to[i], amount[i],
+                    move(from[i], to[i], amount[i]));
+        }
+        return first;
+    }
+
+    private Status move(final int from, final int to, final int amount) {
+        if (!accounts.exists(from) || !accounts.exists(to)) {
+            return ACCOUNT_NOT_FOUND;
+        }
+        final AuditSnapshot current = debit(from, amount, true);
+        if (current == null) {
+            return INSUFFICIENT_FUNDS;
+        }
+        credit(to, amount, current, true);
+
+        // the money landed
+        balance.segment(from).getAndAdd(offset(from),
+                -flight(current.epoch));
+        return CONFIRMED;
+    }
+
+    /**
+     * Take money out of an account, but only if there is enough.
+     *
+     * @param inFlight
+     *            Whether the money goes to another account, in which case we
+     *            count the debit as under way until the caller says that it
+     *            landed.
+     * @return The snapshot of the epoch that the debit is in, or
+     *         <code>null</code> if the balance was less than the amount.
+     */
+    private AuditSnapshot debit(final int accountId, final int amount,
+            final boolean inFlight) {
+        final AtomicLongArray balances = balance.segment(accountId);
+        final int offset = offset(accountId);
+        AuditSnapshot current = snapshot;
+        for (int spins = 0;; spins++) {
+            final long entry = balances.get(offset);
+            final int age = age(entry, current.epoch);
+            if (age > 0) {
+                // an audit began since we looked
+                current = snapshot;
+                continue;
+            }
+            final int bal = balance(entry);
+            if (bal < amount) {
+                return null;
+            }
+
+            // a thousand debits from one account under way, let some land
+            if (inFlight && full(entry, current.epoch)
+                    || age < 0 && full(entry, current.epoch - 1)) {
+                idle(spins);
+                continue;
+            }
+            long next = entry + ((long) -amount << BALANCE_SHIFT);
+            if (inFlight) {
+                next += flight(current.epoch);
+            }
+            if (age == 0) {
+                if (balances.compareAndSet(offset, entry, next)) {
+                    return current;
+                }
+            } else if (balances.compareAndSet(offset, entry,
+                    begin(next, current.epoch))) {
+                saved(balances, offset, accountId, bal, current);
+                return current;
+            }
+        }
+    }
+
+    /**
+     * Add money to an account.
+     *
+     * @param current
+     *            The snapshot of the epoch that the debit was in, or the
+     *            latest one if there was none.
+     * @param inFlight
+     *            Whether the money comes from a debit that is under way.
+     */
+    private void credit(final int accountId, final int amount,
+            final AuditSnapshot current, final boolean inFlight) {
+        final AtomicLongArray balances = balance.segment(accountId);
+        final int offset = offset(accountId);
+        AuditSnapshot epoch = current;
+        for (int spins = 0;; spins++) {
+            final long entry = balances.get(offset);
+            final int age = age(entry, epoch.epoch);
+            if (age == 0 || age > 0 && inFlight) {
+                final long before = balances.getAndAdd(offset,
+                        (long) amount << BALANCE_SHIFT);
+                if (inFlight && age(before, epoch.epoch) > 0) {
+                    // An audit saved this balance before the money landed,
+                    // but the debit is in the epoch before, so the audit
+                    // counted it. We add the money to what the audit saved
+                    // before we say that it landed. The audit waits for that,
+                    // so it is still the latest one.
+                    snapshot.save(accountId, amount);
+                }
+                return;
+            }
+            if (age > 0) {
+                // an audit began since we looked, we are in its epoch now
+                epoch = snapshot;
+                continue;
+            }
+
+            if (full(entry, epoch.epoch - 1)) {
+                idle(spins);
+                continue;
+            }
+            if (balances.compareAndSet(offset, entry,
+                    begin(entry + ((long) amount << BALANCE_SHIFT),
+                            epoch.epoch))) {
+                saved(balances, offset, accountId, balance(entry), epoch);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Start the epoch of an entry: from the balance it had before, with the
+     * change applied, and with one more change under way in the epoch
+     * before, which the caller ends with
+     * {@link #saved(AtomicLongArray, int, int, int, AuditSnapshot)}. An audit
+     * waits for that.
+     */
+    private static long begin(final long entry, final int epoch) {
+        return (entry & ~EPOCH | epoch & EPOCH) + flight(epoch - 1);
+    }
+
+    /**
+     * Save the balance that an account had before its epoch began and end
+     * the change that {@link #begin(long, int)} counted.
+     */
+    private static void saved(final AtomicLongArray balances,
+            final int offset, final int accountId, final int bal,
+            final AuditSnapshot current) {
+        current.save(accountId, bal);
+        balances.getAndAdd(offset, -flight(current.epoch - 1));
+    }
+
+    private static int balance(final long entry) {
+        return (int) (entry >> BALANCE_SHIFT);
+    }
+
+    /**
+     * @return Whether the entry's epoch is older (negative), the same (zero)
+     *         or newer (positive) than the specified epoch. Epochs wrap
+     *         around in the entry, but the entries of the accounts that we
+     *         use never lag far behind.
+     */
+    private static int age(final long entry, final int epoch) {
+        return (int) entry - epoch << AGE_SHIFT >> AGE_SHIFT;
+    }
+
+    /**
+     * @return One debit under way, in the count for the specified epoch.
+     */
+    private static long flight(final int epoch) {
+        return 1L << EPOCH_BITS + (epoch & 1) * FLIGHT_BITS;
+    }
+
+    private static int flights(final long entry, final int epoch) {
+        return (int) (entry >>> EPOCH_BITS + (epoch & 1) * FLIGHT_BITS)
+                & FLIGHT_MAX;
+    }
+
+    private static boolean full(final long entry, final int epoch) {
+        return flights(entry, epoch) == FLIGHT_MAX;
+    }
+
+    /**
+     * Change a balance while we restore the ledger, when no audit runs.
+     */
+    private void adjust(final int accountId, final int amount) {
+        balance.segment(accountId).getAndAdd(offset(accountId),
+                (long) amount << BALANCE_SHIFT);
+    }
+
+    /**
+     * @see com.ximedes.Partitionable#withdraw(int, int)
+     */
+    @Override
+    public boolean withdraw(final int accountId, final int amount) {
+        if (!accounts.exists(accountId)
+                || debit(accountId, amount, false) == null) {
+            return false;
+        }
+        cents.add(-amount);
+        return true;
+    }
+
+    /**
+     * @see com.ximedes.Partitionable#deposit(int, int)
+     */
+    @Override
+    public boolean deposit(final int accountId, final int amount) {
+        if (!accounts.exists(accountId)) {
+            return false;
+        }
+
+        credit(accountId, amount, snapshot, false);
+        cents.add(amount);
+        return true;
+    }
+
+    /**
+     * @see com.ximedes.Partitionable#record(int, int, int, com.ximedes.Status)
+     */
+    @Override
+    public int record(final int from, final int to, final int amount,
+            final Status status) {
+        final int transactionId = claimTransactions(1);
+        transfers.write(transactionId, from, to, amount, status);
+        return transactionId;
+    }
+
+    /**
+     * @see com.ximedes.Partitionable#record(int[], int[], int[],
+     *      com.ximedes.Status)
+     */
+    @Override
+    public int record(final int[] from, final int[] to, final int[] amount,
+            final Status status) {
+        final int first = claimTransactions(from.length);
+        for (int i = 0; i < from.length; i++) {
+            transfers.write(first + i, from[i], to[i], amount[i], status);
+        }
+        return first;
+    }
+
+    /**
+     * @see com.ximedes.Partitionable#resolve(int, com.ximedes.Status)
+     */
+    @Override
+    public void resolve(final int transactionId, final Status status) {
+        transfers.resolve(transactionId, status);
+    }
+
+    /**
+     * Claim a range of consecutive transaction identifiers.
+     *
+     * @return The first identifier of the range.
+     */
+    private int claimTransactions(final int count) {
+        final int first = nextTransaction.claim(count);
+        if (first < 0) {
+            throw new IllegalStateException(
+                    "ran out of transaction identifiers");
+        }
+        return first;
+    }
+
+    /**
+     * @see com.ximedes.Recoverable#restoreTransfer(int, int, int, int,
+     *      com.ximedes.Status)
+     */
+    @Override
+    public void restoreTransfer(final int transferId, final int from,
+            final int to, final int amount, final Status status) {
+        if (status == CONFIRMED) {
+            adjust(from, -amount);
+            adjust(to, amount);
+        }
+
+        nextTransaction.restored(transferId);
+        transfers.write(transferId, from, to, amount, status);
+    }
+
+    /**
+     * @see com.ximedes.Recoverable#restoreTransferRecord(int, int, int, int,
+     *      com.ximedes.Status)
+     */
+    @Override
+    public void restoreTransferRecord(final int transferId, final int from,
+            final int to, final int amount, final Status status) {
+        nextTransaction.restored(transferId);
+        transfers.write(transferId, from, to, amount, status);
+    }
+
+    /**
+     * @see com.ximedes.Recoverable#retireTransferIds()
+     */
+    @Override
+    public void retireTransferIds() {
+        nextTransaction.retire();
+    }
+
+    /**
+     * @see com.ximedes.API#getTransfer(int)
+     */
+    @Override
+    public Transaction getTransfer(final int transferId) {
+        return getTransfer(transferId,
+                new Transaction(transferId, -1, -1, -1, PENDING));
+    }
+
+    /**
+     * @see com.ximedes.API#getTransfer(int, com.ximedes.Transaction)
+     */
+    @Override
+    public Transaction getTransfer(final int transferId,
+            final Transaction into) {
+        if (!nextTransaction.contains(transferId)) {
+            return null;
+        }
+
+        return transfers.read(transferId, into);
+    }
+
+    /**
+     * @see com.ximedes.API#ping()
+     */
+    @Override
+    public void ping() {
+        // just return quickly...
+    }
+
+    /**
+     * @see com.ximedes.API#countCentsInTheSystem()
+     */
+    @Override
+    public int countCentsInTheSystem() {
+        return toIntExact(auditCentsInTheSystem());
+    }
+
+    /**
+     * @see com.ximedes.API#centsInTheSystem()
+     */
+    @Override
+    public long centsInTheSystem() {
+        return cents.sum();
+    }
+
+    /**
+     * @see com.ximedes.API#auditCentsInTheSystem()
+     */
+    @Override
+    public long auditCentsInTheSystem() {
+        synchronized (auditLock) {
+            final AuditSnapshot current = snapshot
+                    .next(nextAccount.claimed());
+            snapshot = current;
+
+            // save the balances that no transfer saved before us
+            final long saved = Audit.scan(current.accounts,
+                    (first, length) -> {
+                        final AtomicLongArray balances = balance
+                                .segmentIfPresent(first);
+                        if (balances == null) {
+                            return 0L;
+                        }
+                        long sum = 0L;
+                        final int offset = offset(first);
+                        for (int i = offset; i < offset + length; i++) {
+                            sum += save(balances, i, current.epoch);
+                        }
+                        return sum;
+                    });
+
+            // wait until the debits from before the epoch landed, and the
+            // transfers that saved a balance are done with it
+            Audit.scan(current.accounts, (first, length) -> {
+                final AtomicLongArray balances = balance
+                        .segmentIfPresent(first);
+                if (balances != null) {
+                    final int offset = offset(first);
+                    for (int i = offset; i < offset + length; i++) {
+                        for (int spins = 0; flights(balances.get(i),
+                                current.epoch - 1) != 0; spins++) {
+                            idle(spins);
+                        }
+                    }
+                }
+                return 0L;
+            });
+            return saved + current.saved();
+        }
+    }
+
+    /**
+     * Start the epoch of a balance that no transfer changed since it began.
+     *
+     * @return The balance, or zero if a transfer started the epoch first.
+     */
+    private static long save(final AtomicLongArray balances, final int offset,
+            final int epoch) {
+        for (;;) {
+            final long entry = balances.get(offset);
+            if (age(entry, epoch) >= 0) {
+                return 0L;
+            }
+            if (balances.compareAndSet(offset, entry,
+                    entry & ~EPOCH | epoch & EPOCH)) {
+                return balance(entry);
+            }
+        }
+    }
+}
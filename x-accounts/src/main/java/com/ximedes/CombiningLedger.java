@@ -0,0 +1,536 @@
+package com.ximedes;
+
+import static com.ximedes.Segments.SEGMENT_SIZE;
+import static com.ximedes.Segments.offset;
+import static com.ximedes.SequencedLedger.idle;
+import static com.ximedes.Status.ACCOUNT_NOT_FOUND;
+import static com.ximedes.Status.CONFIRMED;
+import static com.ximedes.Status.INSUFFICIENT_FUNDS;
+import static com.ximedes.Status.PENDING;
+import static java.lang.Math.toIntExact;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A flat-combining implementation of the challenge systems. When many
+ * threads queue up on the monitor of the bank account or of a popular
+ * merchant in the {@link Simpleton}, every acquire and release bounces the
+ * lock's cache line, and the balance's, from core to core. Here a thread
+ * instead publishes its transfer in a slot and tries to become the
+ * combiner. The combiner applies all the transfers that it finds
+ * published, in one pass over the slots, and hands each thread its status
+ * and transfer identifier. The other threads spin on their slot until
+ * the combiner is done with it, or until they can take over as combiner
+ * themselves.
+ * <p>
+ * There is a fixed number of slots, {@link #SLOTS}, and a thread takes the
+ * one that its identity hashes onto, or the next free one, for as long as
+ * its command runs. So a combiner's pass costs the same however many
+ * threads there are, which matters with a virtual thread per connection,
+ * and a thread that comes and goes leaves nothing behind. When there are
+ * more threads than slots, the ones that find no free slot wait for one,
+ * just like they would wait for the combiner.
+ * <p>
+ * Like in the {@link SequencedLedger}, only one thread at a time ever
+ * writes a balance, so the balances are plain ints and the hot accounts
+ * stay in the cache of whichever core combines. Unlike there, no thread
+ * sits waiting for work: the threads that make the transfers take turns.
+ * <p>
+ * We combine over the whole ledger rather than per account. In the
+ * challenge every transfer touches a hot account, the bank or a merchant,
+ * so a combiner per account would be one combiner in practice. Combining
+ * over the whole ledger also means that no transfer ever has to hold two
+ * accounts at once.
+ */
+public class CombiningLedger implements Recoverable, Partitionable {
+    private static final int TRANSFER = 1;
+    private static final int TRANSFERS = 2;
+    private static final int WITHDRAW = 3;
+    private static final int DEPOSIT = 4;
+
+    // how often the combiner goes over the slots before it gives up the
+    // role, in case more transfers come in while it is at it
+    private static final int PASSES = 3;
+
+    // a power of two, so that we can mask the hash of a thread
+    private static final int SLOTS = 64;
+
+    // On a single core a thread that spins only keeps the combiner from
+    // running, so there we start off yielding right away.
+    private static final int FIRST_SPIN = Runtime.getRuntime()
+            .availableProcessors() == 1 ? 100 : 0;
+
+    /**
+     * The slot that a thread publishes one command in. The thread takes the
+     * slot, writes the command fields and then sets <code>pending</code>;
+     * the combiner writes the results and then clears it. The thread reads
+     * the results and gives the slot back.
+     */
+    private static final class Slot {
+        final AtomicBoolean taken = new AtomicBoolean(false);
+        int command;
+        int from;
+        int to;
+        int amount;
+        int[] froms; // for batches of transfers
+        int[] tos;
+        int[] amounts;
+        int result;
+        RuntimeException failure;
+        volatile boolean pending = false;
+    }
+
+    private final Slot[] slots = new Slot[SLOTS];
+
+    // held by the thread that combines, releasing it publishes the balances
+    private final AtomicInteger combiner = new AtomicInteger(0);
+
+    private final IdBlocks nextAccount = new IdBlocks();
+    private final Segments<int[]> balance = new Segments<>(
+            first -> new int[SEGMENT_SIZE]);
+    private final AuditPages pages = new AuditPages(balance);
+    private final AccountTable accounts = new AccountTable();
+
+    // the money that was put into the system, which transfers don't change,
+    // only written by the combiner
+    private volatile long cents = 0L;
+
+    private final TransferLog transfers = new TransferLog();
+    private final IdBlocks nextTransaction = new IdBlocks();
+
+    /**
+     * Set up a new, empty ledger.
+     */
+    public CombiningLedger() {
+        super();
+
+        for (int i = 0; i < SLOTS; i++) {
+            slots[i] = new Slot();
+        }
+    }
+
+    /**
+     * Take a slot for the calling thread, starting at the one that its
+     * identity hashes onto, so that a thread mostly gets the same slot. If
+     * all slots are taken, we wait until one is given back.
+     */
+    private Slot take() {
+        final int hash = System.identityHashCode(Thread.currentThread());
+        int i = (hash ^ hash >>> 16) & SLOTS - 1;
+        for (int spins = FIRST_SPIN;; spins++) {
+            for (int probe = 0; probe < SLOTS; probe++) {
+                final Slot free = slots[i];
+                if (!free.taken.get()
+                        && free.taken.compareAndSet(false, true)) {
+                    return free;
+                }
+                i = i + 1 & SLOTS - 1;
+            }
+            idle(spins);
+        }
+    }
+
+    /**
+     * Publish a command in a slot that the calling thread took and wait until
+     * some combiner applied it, which may well be this thread. Then give the
+     * slot back.
+     */
+    private int execute(final Slot mine) {
+        mine.pending = true;
+        for (int spins = FIRST_SPIN; mine.pending; spins++) {
+            if (combiner.get() == 0 && combiner.compareAndSet(0, 1)) {
+                try {
+                    combine();
+                } finally {
+                    combiner.set(0);
+                }
+            } else {
+                idle(spins);
+            }
+        }
+
+        final RuntimeException failure = mine.failure;
+        final int result = mine.result;
+        mine.failure = null;
+        mine.froms = null; // don't keep the batch alive from the slot
+        mine.tos = null;
+        mine.amounts = null;
+        mine.taken.set(false);
+
+        if (failure != null) {
+            throw failure;
+        }
+        return result;
+    }
+
+    private void combine() {
+        for (int pass = 0; pass < PASSES; pass++) {
+            boolean applied = false;
+            for (final Slot published : slots) {
+                if (published.pending) {
+                    try {
+                        published.result = apply(published);
+                    } catch (RuntimeException e) {
+                        // not ours to throw, hand it to the caller
+                        published.failure = e;
+                    }
+                    published.pending = false;
+                    applied = true;
+                }
+            }
+            if (!applied) {
+                return;
+            }
+        }
+    }
+
+    private int apply(final Slot command) {
+        switch (command.command) {
+        case TRANSFER:
+            return applyTransfer(command.from, command.to, command.amount);
+        case TRANSFERS:
+            return applyTransfers(command.froms, command.tos,
+                    command.amounts);
+        case WITHDRAW:
+            if (!accounts.exists(command.from)
+                    || !debit(command.from, command.amount)) {
+                return 0;
+            }
+            cents -= command.amount;
+            return 1;
+        case DEPOSIT:
+            pages.touch(command.to);
+            balance.segment(command.to)[offset(command.to)] += command.amount;
+            cents += command.amount;
+            return 1;
+        default:
+            throw new IllegalStateException(
+                    "bad command " + command.command);
+        }
+    }
+
+    private int applyTransfer(final int from, final int to, final int amount) {
+        final int transactionId = claimTransactions(1);
+        transfers.write(transactionId, from, to, amount,
+                move(from, to, amount));
+        return transactionId;
+    }
+
+    private int applyTransfers(final int[] from, final int[] to,
+            final int[] amount) {
+        final int first = claimTransactions(from.length);
+        for (int i = 0; i < from.length; i++) {
+            transfers.write(first + i, from[i], to[i], amount[i],
+                    move(from[i], to[i], amount[i]));
+        }
+        return first;
+    }
+
+    private Status move(final int from, final int to, final int amount) {
+        if (!accounts.exists(from) || !accounts.exists(to)) {
+            return ACCOUNT_NOT_FOUND;
+        }
+        if (!debit(from, amount)) {
+            return INSUFFICIENT_FUNDS;
+        }
+        pages.touch(to);
+        balance.segment(to)[offset(to)] += amount;
+        return CONFIRMED;
+    }
+
+    private boolean debit(final int from, final int amount) {
+        final int[] balances = balance.segment(from);
+        final int offset = offset(from);
+        if (balances[offset] < amount) {
+            return false;
+        }
+        pages.touch(from);
+        balances[offset] -= amount;
+        return true;
+    }
+
+    /**
+     * Claim a range of consecutive transaction identifiers, from whichever
+     * block the combining thread takes. Records of cross-shard transfers
+     * claim their identifiers without combining.
+     *
+     * @return The first identifier of the range.
+     */
+    private int claimTransactions(final int count) {
+        final int first = nextTransaction.claim(count);
+        if (first < 0) {
+            throw new IllegalStateException(
+                    "ran out of transaction identifiers");
+        }
+        return first;
+    }
+
+    /**
+     * @see com.ximedes.API#createAccount(int)
+     */
+    @Override
+    public int createAccount(final int overdraft) {
+        final int accountId = nextAccount.claim(1);
+        if (accountId < 0) {
+            throw new IllegalStateException("ran out of account identifiers");
+        }
+
+        // make sure the segment exists before anyone uses this account
+        balance.segment(accountId);
+        if (overdraft > 0) { // a bank account
+            final Slot mine = take();
+            mine.command = DEPOSIT;
+            mine.to = accountId;
+            mine.amount = overdraft;
+            execute(mine);
+        }
+
+        // remember the overdraft, so that we report the balance without it,
+        // and that the account exists
+        accounts.add(accountId, overdraft);
+        return accountId;
+    }
+
+    /**
+     * @see com.ximedes.Recoverable#restoreAccount(int, int)
+     */
+    @Override
+    public void restoreAccount(final int accountId, final int overdraft) {
+        nextAccount.restored(accountId);
+        final int[] balances = balance.segment(accountId);
+        if (overdraft > 0) {
+            balances[offset(accountId)] += overdraft;
+            cents += overdraft;
+        }
+        accounts.add(accountId, overdraft);
+    }
+
+    /**
+     * @see com.ximedes.Recoverable#restoreAccount(int, int, int)
+     */
+    @Override
+    public void restoreAccount(final int accountId, final int overdraft,
+            final int bal) {
+        restoreAccount(accountId, overdraft);
+        final int[] balances = balance.segment(accountId);
+        cents += bal + overdraft - balances[offset(accountId)];
+        balances[offset(accountId)] = bal + overdraft;
+    }
+
+    /**
+     * @see com.ximedes.API#getAccount(int)
+     */
+    @Override
+    public Account getAccount(final int accountId) {
+        if (!accounts.exists(accountId)) {
+            return null;
+        }
+        combiner.get(); // read barrier, makes the combiners' writes visible
+
+        final int[] balances = balance.segmentIfPresent(accountId);
+        if (balances == null) {
+            return null;
+        }
+
+        final int overd = accounts.overdraft(accountId);
+        final int bal = balances[offset(accountId)] - overd;
+
+        return new Account(accountId, bal, overd);
+    }
+
+    /**
+     * @see com.ximedes.API#transfer(int, int, int)
+     */
+    @Override
+    public int transfer(final int from, final int to, final int amount) {
+        final Slot mine = take();
+        mine.command = TRANSFER;
+        mine.from = from;
+        mine.to = to;
+        mine.amount = amount;
+        return execute(mine);
+    }
+
+    /**
+     * The combiner makes the whole batch in one go, so the transfers get
+     * consecutive identifiers without any extra effort.
+     *
+     * @see com.ximedes.API#transfer(int[], int[], int[])
+     */
+    @Override
+    public int transfer(final int[] from, final int[] to, final int[] amount) {
+        final Slot mine = take();
+        mine.command = TRANSFERS;
+        mine.froms = from;
+        mine.tos = to;
+        mine.amounts = amount;
+        return execute(mine);
+    }
+
+    /**
+     * @see com.ximedes.Partitionable#withdraw(int, int)
+     */
+    @Override
+    public boolean withdraw(final int accountId, final int amount) {
+        final Slot mine = take();
+        mine.command = WITHDRAW;
+        mine.from = accountId;
+        mine.amount = amount;
+        return execute(mine) != 0;
+    }
+
+    /**
+     * @see com.ximedes.Partitionable#deposit(int, int)
+     */
+    @Override
+    public boolean deposit(final int accountId, final int amount) {
+        if (!accounts.exists(accountId)) {
+            return false;
+        }
+
+        final Slot mine = take();
+        mine.command = DEPOSIT;
+        mine.to = accountId;
+        mine.amount = amount;
+        execute(mine);
+        return true;
+    }
+
+    /**
+     * @see com.ximedes.Partitionable#record(int, int, int, com.ximedes.Status)
+     */
+    @Override
+    public int record(final int from, final int to, final int amount,
+            final Status status) {
+        final int transactionId = claimTransactions(1);
+        transfers.write(transactionId, from, to, amount, status);
+        return transactionId;
+    }
+
+    /**
+     * @see com.ximedes.Partitionable#record(int[], int[], int[],
+     *      com.ximedes.Status)
+     */
+    @Override
+    public int record(final int[] from, final int[] to, final int[] amount,
+            final Status status) {
+        final int first = claimTransactions(from.length);
+        for (int i = 0; i < from.length; i++) {
+            transfers.write(first + i, from[i], to[i], amount[i], status);
+        }
+        return first;
+    }
+
+    /**
+     * @see com.ximedes.Partitionable#resolve(int, com.ximedes.Status)
+     */
+    @Override
+    public void resolve(final int transactionId, final Status status) {
+        transfers.resolve(transactionId, status);
+    }
+
+    /**
+     * @see com.ximedes.Recoverable#restoreTransfer(int, int, int, int,
+     *      com.ximedes.Status)
+     */
+    @Override
+    public void restoreTransfer(final int transferId, final int from,
+            final int to, final int amount, final Status status) {
+        if (status == CONFIRMED) {
+            balance.segment(from)[offset(from)] -= amount;
+            balance.segment(to)[offset(to)] += amount;
+        }
+
+        nextTransaction.restored(transferId);
+        transfers.write(transferId, from, to, amount, status);
+    }
+
+    /**
+     * @see com.ximedes.Recoverable#restoreTransferRecord(int, int, int, int,
+     *      com.ximedes.Status)
+     */
+    @Override
+    public void restoreTransferRecord(final int transferId, final int from,
+            final int to, final int amount, final Status status) {
+        nextTransaction.restored(transferId);
+        transfers.write(transferId, from, to, amount, status);
+    }
+
+    /**
+     * @see com.ximedes.Recoverable#retireTransferIds()
+     */
+    @Override
+    public void retireTransferIds() {
+        nextTransaction.retire();
+    }
+
+    /**
+     * @see com.ximedes.API#getTransfer(int)
+     */
+    @Override
+    public Transaction getTransfer(final int transferId) {
+        return getTransfer(transferId,
+                new Transaction(transferId, -1, -1, -1, PENDING));
+    }
+
+    /**
+     * @see com.ximedes.API#getTransfer(int, com.ximedes.Transaction)
+     */
+    @Override
+    public Transaction getTransfer(final int transferId,
+            final Transaction into) {
+        if (!nextTransaction.contains(transferId)) {
+            return null;
+        }
+
+        return transfers.read(transferId, into);
+    }
+
+    /**
+     * @see com.ximedes.API#ping()
+     */
+    @Override
+    public void ping() {
+        // just return quickly...
+    }
+
+    /**
+     * @see com.ximedes.API#countCentsInTheSystem()
+     */
+    @Override
+    public int countCentsInTheSystem() {
+        return toIntExact(auditCentsInTheSystem());
+    }
+
+    /**
+     * @see com.ximedes.API#centsInTheSystem()
+     */
+    @Override
+    public long centsInTheSystem() {
+        return cents;
+    }
+
+    /**
+     * We take the combiner role only to start the next epoch, so that it
+     * begins between two passes over the slots. From then on the combiners
+     * save the pages that they change and we add up the others, see
+     * {@link AuditPages}. The transfers never wait for more than a page.
+     *
+     * @see com.ximedes.API#auditCentsInTheSystem()
+     */
+    @Override
+    public long auditCentsInTheSystem() {
+        return pages.audit(() -> {
+            for (int spins = FIRST_SPIN; combiner.get() != 0
+                    || !combiner.compareAndSet(0, 1); spins++) {
+                idle(spins);
+            }
+            try {
+                return pages.begin(nextAccount.claimed());
+            } finally {
+                combiner.set(0);
+            }
+        });
+    }
+}
@@ -0,0 +1,55 @@
+package com.ximedes;
+
+import static com.ximedes.Segments.SEGMENT_SIZE;
+import static com.ximedes.Segments.offset;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bitmap of the account pages that changed since the last snapshot. A page
+ * is {@link #PAGE_SIZE} consecutive accounts. Marking a page that is already
+ * dirty, which is by far the common case for busy accounts, costs a single
+ * read. Only the first change to a page after a snapshot pays for an atomic
+ * update.
+ */
+final class DirtyPages {
+    static final int PAGE_SHIFT = 10;
+    static final int PAGE_SIZE = 1 << PAGE_SHIFT; // accounts
+
+    private final Segments<AtomicLongArray> bits = new Segments<>(
+            first -> new AtomicLongArray(SEGMENT_SIZE >>> 6));
+
+    /**
+     * Mark the page of an account as dirty.
+     */
+    void mark(final int accountId) {
+        final int page = accountId >>> PAGE_SHIFT;
+        final AtomicLongArray words = bits.segment(page);
+        final int word = offset(page) >>> 6;
+        final long bit = 1L << (page & 63);
+
+        if ((words.get(word) & bit) == 0L) {
+            words.getAndAccumulate(word, bit, (a, b) -> a | b);
+        }
+    }
+
+    /**
+     * Clear the dirty bit of a page.
+     *
+     * @return <code>true</code> if the page was dirty.
+     */
+    boolean clear(final int page) {
+        final AtomicLongArray words = bits.segmentIfPresent(page);
+        if (words == null) {
+            return false;
+        }
+
+        final int word = offset(page) >>> 6;
+        final long bit = 1L << (page & 63);
+        if ((words.get(word) & bit) == 0L) {
+            return false;
+        }
+        words.getAndAccumulate(word, ~bit, (a, b) -> a & b);
+        return true;
+    }
+}
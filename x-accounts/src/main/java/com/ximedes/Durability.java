@@ -0,0 +1,38 @@
+package com.ximedes;
+
+/**
+ * How hard we try to keep the ledger state when the server goes down.
+ */
+public enum Durability {
+    /**
+     * No journal at all. Everything lives in memory and is lost when the
+     * server stops. This is the fastest mode.
+     */
+    NONE,
+
+    /**
+     * Journal every change and force the journal to disk in batches. A
+     * request is acknowledged once the batch that holds it was forced, so
+     * that we pay for one disk flush per batch rather than per request.
+     */
+    BATCHED,
+
+    /**
+     * Journal every change and force the journal to disk for each request
+     * before we acknowledge it.
+     */
+    PER_REQUEST;
+
+    /**
+     * Parse a durability mode the way we write it on the command line, for
+     * example <code>per-request</code>.
+     *
+     * @param name
+     *            The name of the mode, in any case and with dashes or
+     *            underscores.
+     * @return The durability mode.
+     */
+    public static Durability parse(final String name) {
+        return valueOf(name.trim().toUpperCase().replace('-', '_'));
+    }
+}
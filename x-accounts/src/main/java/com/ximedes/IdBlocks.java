@@ -0,0 +1,180 @@
+package com.ximedes;
+
+import static com.ximedes.SequencedLedger.idle;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * Hands out identifiers without every thread incrementing the same counter.
+ * With 150 handler threads the counters of the accounts and the transfers
+ * were among the most contended cache lines in the server. Now we keep a
+ * few blocks of {@link #BLOCK_SIZE} identifiers, each claimed from the
+ * shared counter at once, and hand them out one by one from a cursor that
+ * sits on a cache line of its own.
+ * <p>
+ * The blocks do not belong to threads, since the handler pools retire idle
+ * threads and virtual threads come and go with their connections, and each
+ * would take the rest of its block with it. Instead a thread takes the
+ * block that its identity hashes onto, or the next free one, for the
+ * duration of one claim. There are a few blocks per core, so a thread
+ * mostly finds its block free and gets to keep it in its cache.
+ * <p>
+ * The identifiers are no longer handed out in order. There are at most
+ * {@link #BLOCK_SIZE} identifiers per block that are claimed but unused,
+ * so the identifiers stay dense enough for the segments that we index with
+ * them. What readers have to keep in mind is that an identifier below
+ * {@link #claimed()} may not have been used yet, or ever: there is simply
+ * nothing there, like a transfer whose status was not written. Or it may
+ * be used later, after all higher identifiers, unless we {@link #retire()}
+ * the unused ones first.
+ */
+final class IdBlocks {
+    static final int BLOCK_SIZE = 64;
+
+    // a power of two, so that we can mask the hash of a thread
+    private static final int BLOCKS = Integer.highestOneBit(
+            Runtime.getRuntime().availableProcessors() * 4 - 1) << 1;
+
+    private final AtomicInteger next = new AtomicInteger(0);
+    private final Block[] blocks = new Block[BLOCKS];
+
+    IdBlocks() {
+        super();
+
+        for (int i = 0; i < BLOCKS; i++) {
+            blocks[i] = new Block();
+        }
+    }
+
+    /**
+     * Claim a range of consecutive identifiers. Ranges that do not fit in
+     * a block come from the shared counter directly, so that the block is
+     * not wasted on them.
+     *
+     * @return The first identifier of the range, or -1 if we ran out of
+     *         identifiers.
+     */
+    int claim(final int count) {
+        if (count >= BLOCK_SIZE / 2) {
+            return claimShared(count);
+        }
+
+        final Block block = take();
+        try {
+            if (block.end - block.next >= count) {
+                final int first = block.next;
+                block.next += count;
+                return first;
+            }
+
+            final int start = claimShared(BLOCK_SIZE);
+            if (start < 0) {
+                return -1;
+            }
+            block.next = start + count;
+            block.end = start + BLOCK_SIZE;
+            return start;
+        } finally {
+            block.taken = 0;
+        }
+    }
+
+    /**
+     * Take a block for the calling thread, starting at the one that its
+     * identity hashes onto. If all blocks are taken, we wait until one is
+     * given back.
+     */
+    private Block take() {
+        final int hash = System.identityHashCode(Thread.currentThread());
+        int i = (hash ^ hash >>> 16) & BLOCKS - 1;
+        for (int spins = 0;; spins++) {
+            for (int probe = 0; probe < BLOCKS; probe++) {
+                final Block block = blocks[i];
+                if (block.taken == 0
+                        && Block.TAKEN.compareAndSet(block, 0, 1)) {
+                    return block;
+                }
+                i = i + 1 & BLOCKS - 1;
+            }
+            idle(spins);
+        }
+    }
+
+    /**
+     * Give up the identifiers that the blocks hold but did not hand out, so
+     * that we never hand them out. The next claim from each block starts a
+     * fresh one.
+     */
+    void retire() {
+        for (final Block block : blocks) {
+            for (int spins = 0; block.taken != 0
+                    || !Block.TAKEN.compareAndSet(block, 0, 1); spins++) {
+                idle(spins);
+            }
+            block.next = block.end;
+            block.taken = 0;
+        }
+    }
+
+    private int claimShared(final int count) {
+        final int first = next.getAndAdd(count);
+        if (first < 0 || first + count < 0) {
+            return -1;
+        }
+        return first;
+    }
+
+    /**
+     * @return One more than the highest identifier that was claimed, or
+     *         {@link Integer#MAX_VALUE} if we ran out.
+     */
+    int claimed() {
+        final int claimed = next.get();
+        return claimed < 0 ? Integer.MAX_VALUE : claimed;
+    }
+
+    /**
+     * Check an identifier that a client sent us, before we use it to find or
+     * allocate a segment. We cannot tell an identifier that is in use from
+     * one that is merely claimed, but at least we never allocate beyond what
+     * we handed out. That will do for transfers, whose records say whether
+     * they were written, but not for accounts: the {@link AccountTable}
+     * knows which of those were created.
+     *
+     * @return <code>true</code> if the identifier was claimed.
+     */
+    boolean contains(final int id) {
+        return id >= 0 && id < claimed();
+    }
+
+    /**
+     * Make sure that we never hand out an identifier that was restored.
+     * Restores run before we serve requests, so no block was filled yet.
+     */
+    void restored(final int id) {
+        next.accumulateAndGet(id + 1, Math::max);
+    }
+}
+
+/**
+ * The cursor into a block of identifiers, padded like {@link Sequence} so
+ * that no two blocks' cursors share a cache line.
+ */
+final class Block extends BlockCursor {
+    static final AtomicIntegerFieldUpdater<BlockCursor> TAKEN =
+            AtomicIntegerFieldUpdater.newUpdater(BlockCursor.class, "taken");
+
+    protected long p9, p10, p11, p12, p13, p14, p15;
+}
+
+abstract class BlockPadding {
+    protected long p1, p2, p3, p4, p5, p6, p7;
+}
+
+abstract class BlockCursor extends BlockPadding {
+    // 1 while a thread claims from the block, which then owns the cursor
+    protected volatile int taken;
+    protected int next;
+    protected int end;
+}
@@ -0,0 +1,425 @@
+package com.ximedes;
+
+import static com.ximedes.Durability.BATCHED;
+import static com.ximedes.Durability.NONE;
+import static java.lang.Math.max;
+import static java.lang.System.err;
+import static java.lang.System.nanoTime;
+import static java.nio.channels.FileChannel.MapMode.READ_WRITE;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An append-only, memory-mapped journal of the changes to the ledger. The
+ * journal is a series of chunk files of {@link #CHUNK_SIZE} bytes each, and
+ * each chunk is a series of fixed-size records. Records are 32 bytes, so they
+ * never straddle a page and a chunk always holds a whole number of them.
+ * <p>
+ * Each run of the server appends to chunks of its own, starting with a fresh
+ * one. The first record of every chunk is a header that names the chunk
+ * that its run started in. We need that when we replay: the mapped chunks
+ * may reach the disk in any order, so after a crash a later chunk of a run
+ * may be there while the tail of the one before it is not. The header tells
+ * such a gap apart from the end of a run.
+ * <p>
+ * Appending a record only copies a few ints into the mapped buffer, which we
+ * do under a short lock to keep the records dense. Making them durable is the
+ * expensive part. In {@link Durability#BATCHED} mode a flusher thread forces
+ * the mapped chunks to disk whenever {@link #batchSize} records are waiting or
+ * the flush interval has passed, whichever comes first. Each appender then
+ * waits for the flush that covers its record. That is group commit: many
+ * requests share the cost of one <code>force()</code>. In
+ * {@link Durability#PER_REQUEST} mode every appender forces the journal
+ * itself before it returns.
+ */
+public class Journal implements AutoCloseable {
+    static final int RECORD_SIZE = 32; // bytes
+    static final int CHUNK_SIZE = 1 << 26; // bytes, a multiple of RECORD_SIZE
+
+    private static final int ACCOUNT = 1;
+    private static final int TRANSFER = 2;
+    private static final int HEADER = 3;
+
+    private static final Status[] STATUSES = Status.values();
+
+    private final File directory;
+    private final Durability durability;
+    private final long flushIntervalNanos;
+    private final int batchSize;
+
+    private final List<MappedByteBuffer> chunks = new ArrayList<>();
+    private final int firstChunk; // the first chunk that we write to
+
+    // guarded by this
+    private MappedByteBuffer chunk;
+    private long position;
+
+    private volatile long appended;
+    private volatile long durable;
+    private final Object durableLock = new Object();
+
+    private volatile boolean running = true;
+    private final Thread flusher;
+
+    /**
+     * Open the journal in the specified directory. Existing chunks are left
+     * alone so that they can be replayed. New records go into a fresh chunk,
+     * which means we never have to worry about a torn tail in the last chunk
+     * of an earlier run.
+     *
+     * @param directory
+     *            The directory to keep the journal chunks in.
+     * @param durability
+     *            The durability mode, which must not be
+     *            {@link Durability#NONE}.
+     * @param flushIntervalNanos
+     *            In batched mode, the longest time a record waits before it
+     *            is forced to disk.
+     * @param batchSize
+     *            In batched mode, the number of waiting records that triggers
+     *            a flush before the interval has passed.
+     * @throws IOException
+     *             When the journal could not be opened.
+     */
+    public Journal(final File directory, final Durability durability,
+            final long flushIntervalNanos, final int batchSize)
+            throws IOException {
+        super();
+
+        if (durability == NONE) {
+            throw new IllegalArgumentException(
+                    "a journal needs a durability mode other than NONE");
+        }
+
+        this.directory = directory;
+        this.durability = durability;
+        this.flushIntervalNanos = flushIntervalNanos;
+        this.batchSize = batchSize;
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("cannot create " + directory);
+        }
+
+        firstChunk = chunkCount();
+        position = (long) firstChunk * CHUNK_SIZE;
+        appended = position;
+        durable = position;
+        chunk = map(firstChunk);
+
+        if (durability == BATCHED) {
+            flusher = new Thread(this::flushLoop, "journal-flusher");
+            flusher.setDaemon(true);
+            flusher.start();
+        } else {
+            flusher = null;
+        }
+    }
+
+    /**
+     * Journal the creation of an account. The record is not durable until
+     * {@link #awaitDurable(long)} returns for the returned position.
+     *
+     * @return The journal position just past the new record.
+     */
+    long appendAccount(final int accountId, final int overdraft) {
+        return append(ACCOUNT, accountId, overdraft, 0, 0, 0);
+    }
+
+    /**
+     * Journal a transfer and its outcome. The record is not durable until
+     * {@link #awaitDurable(long)} returns for the returned position.
+     *
+     * @return The journal position just past the new record.
+     */
+    long appendTransfer(final int transferId, final int from, final int to,
+            final int amount, final Status status) {
+        return append(TRANSFER, transferId, from, to, amount,
+                status.ordinal());
+    }
+
+    private synchronized long append(final int type, final int id,
+            final int a, final int b, final int c, final int d) {
+        if (position % CHUNK_SIZE == 0) {
+            final int index = (int) (position / CHUNK_SIZE);
+            if (index != firstChunk) {
+                chunk = map(index);
+            }
+            put(0, HEADER, firstChunk, index, 0, 0, 0);
+            position += RECORD_SIZE;
+        }
+
+        put((int) (position % CHUNK_SIZE), type, id, a, b, c, d);
+        position += RECORD_SIZE;
+        appended = position;
+        return position;
+    }
+
+    private void put(final int offset, final int type, final int id,
+            final int a, final int b, final int c, final int d) {
+        chunk.putInt(offset, type);
+        chunk.putInt(offset + 4, id);
+        chunk.putInt(offset + 8, a);
+        chunk.putInt(offset + 12, b);
+        chunk.putInt(offset + 16, c);
+        chunk.putInt(offset + 20, d);
+        chunk.putInt(offset + 24, checksum(type, id, a, b, c, d));
+    }
+
+    private static int checksum(final int type, final int id, final int a,
+            final int b, final int c, final int d) {
+        int sum = 0x5eed;
+        sum = sum * 31 + type;
+        sum = sum * 31 + id;
+        sum = sum * 31 + a;
+        sum = sum * 31 + b;
+        sum = sum * 31 + c;
+        sum = sum * 31 + d;
+        return sum;
+    }
+
+    /**
+     * Wait until the journal is durable up to the specified position.
+     */
+    void awaitDurable(final long end) {
+        if (durable >= end) {
+            return;
+        }
+
+        if (durability == BATCHED) {
+            if (end - durable >= (long) batchSize * RECORD_SIZE) {
+                LockSupport.unpark(flusher);
+            }
+
+            boolean interrupted = false;
+            synchronized (durableLock) {
+                while (durable < end) {
+                    try {
+                        durableLock.wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true; // keep waiting, we promised
+                    }
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        } else {
+            flush();
+        }
+    }
+
+    /**
+     * Force everything that was appended so far to disk. If another thread
+     * is already forcing, we wait for it and often find that it forced our
+     * record too.
+     */
+    private void flush() {
+        synchronized (durableLock) {
+            final long target = appended;
+            if (durable >= target) {
+                return;
+            }
+
+            final int firstDirty = (int) (durable / CHUNK_SIZE);
+            final int lastDirty = (int) ((target - 1) / CHUNK_SIZE);
+            for (int i = firstDirty; i <= lastDirty; i++) {
+                chunk(i).force();
+            }
+
+            durable = target;
+            durableLock.notifyAll();
+        }
+    }
+
+    private void flushLoop() {
+        while (running) {
+            final long deadline = nanoTime() + flushIntervalNanos;
+            long remaining = flushIntervalNanos;
+            while (running && remaining > 0L && appended
+                    - durable < (long) batchSize * RECORD_SIZE) {
+                LockSupport.parkNanos(remaining);
+                remaining = deadline - nanoTime();
+            }
+
+            flush();
+        }
+    }
+
+    /**
+     * Replay the journal into a ledger, from the very first chunk up to the
+     * chunks that this instance writes to.
+     *
+     * @param ledger
+     *            The ledger to restore the journaled events into.
+     * @return The number of records that were replayed.
+     * @throws IOException
+     *             When the journal could not be read.
+     */
+    public long replay(final Recoverable ledger) throws IOException {
+        return replay(0L, ledger);
+    }
+
+    /**
+     * Replay the journal into a ledger, starting at the specified position.
+     * The first empty record ends a run, and so does the first record that
+     * fails its checksum because it was torn by a crash. Records after a gap
+     * were never acknowledged and may depend on what is missing, so we must
+     * not replay them, not even those in the later chunks of the same run.
+     * We carry on with the next run, which started from the state that we
+     * have restored up to the gap.
+     *
+     * @param from
+     *            The journal position to start replaying from.
+     * @param ledger
+     *            The ledger to restore the journaled events into.
+     * @return The number of records that were replayed.
+     * @throws IOException
+     *             When the journal could not be read.
+     */
+    public long replay(final long from, final Recoverable ledger)
+            throws IOException {
+        long replayed = 0L;
+        boolean ended = false; // the run that we were replaying
+        for (int i = (int) (from / CHUNK_SIZE); i < firstChunk; i++) {
+            final MappedByteBuffer buffer = chunk(i);
+            if (buffer.getInt(0) == 0) {
+                // nothing of this chunk reached the disk
+                ended = true;
+                continue;
+            }
+            if (buffer.getInt(0) != HEADER || !valid(buffer, 0)) {
+                err.println("Torn header of journal chunk " + i
+                        + ", skipping the rest of its run.");
+                ended = true;
+                continue;
+            }
+            if (buffer.getInt(4) == i) {
+                ended = false; // a new run starts here
+            } else if (ended) {
+                err.println("Journal chunk " + i + " comes after a gap in "
+                        + "its run, skipping it.");
+                continue;
+            }
+
+            final int start = i == from / CHUNK_SIZE
+                    ? (int) (from % CHUNK_SIZE) : 0;
+            for (int offset = max(start, RECORD_SIZE); offset < CHUNK_SIZE;
+                    offset += RECORD_SIZE) {
+                final int type = buffer.getInt(offset);
+                if (type == 0) {
+                    // records are appended in order, and everything we ever
+                    // acknowledged was forced before this point, so this is
+                    // where the run ended
+                    ended = true;
+                    break;
+                }
+                if (!valid(buffer, offset)) {
+                    err.println("Torn journal record in chunk " + i + " at "
+                            + offset + ", skipping the rest of its run.");
+                    ended = true;
+                    break;
+                }
+
+                final int id = buffer.getInt(offset + 4);
+                final int a = buffer.getInt(offset + 8);
+                final int b = buffer.getInt(offset + 12);
+                final int c = buffer.getInt(offset + 16);
+                final int d = buffer.getInt(offset + 20);
+
+                switch (type) {
+                case ACCOUNT:
+                    ledger.restoreAccount(id, a);
+                    break;
+                case TRANSFER:
+                    ledger.restoreTransfer(id, a, b, c, STATUSES[d]);
+                    break;
+                default:
+                    err.println("Skipping unknown journal record type " + type
+                            + " in chunk " + i + " at " + offset);
+                }
+                replayed++;
+            }
+        }
+        return replayed;
+    }
+
+    private static boolean valid(final MappedByteBuffer buffer,
+            final int offset) {
+        return buffer.getInt(offset + 24) == checksum(buffer.getInt(offset),
+                buffer.getInt(offset + 4), buffer.getInt(offset + 8),
+                buffer.getInt(offset + 12), buffer.getInt(offset + 16),
+                buffer.getInt(offset + 20));
+    }
+
+    /**
+     * @return The directory that the journal lives in.
+     */
+    public File directory() {
+        return directory;
+    }
+
+    /**
+     * @return The position just past the last record that was appended.
+     */
+    public long position() {
+        return appended;
+    }
+
+    /**
+     * Flush what is left and stop the flusher thread.
+     */
+    @Override
+    public void close() {
+        running = false;
+        if (flusher != null) {
+            LockSupport.unpark(flusher);
+        }
+        flush();
+    }
+
+    private int chunkCount() {
+        int count = 0;
+        while (chunkFile(count).exists()) {
+            count++;
+        }
+        return count;
+    }
+
+    private File chunkFile(final int index) {
+        return new File(directory, String.format("journal-%08d.log", index));
+    }
+
+    private synchronized MappedByteBuffer chunk(final int index) {
+        while (chunks.size() <= index) {
+            chunks.add(null);
+        }
+        if (chunks.get(index) == null) {
+            chunks.set(index, map(index));
+        }
+        return chunks.get(index);
+    }
+
+    private MappedByteBuffer map(final int index) {
+        try (final RandomAccessFile file = new RandomAccessFile(
+                chunkFile(index), "rw");
+                final FileChannel channel = file.getChannel()) {
+            final MappedByteBuffer mapped = channel.map(READ_WRITE, 0L,
+                    CHUNK_SIZE);
+            while (chunks.size() <= index) {
+                chunks.add(null);
+            }
+            chunks.set(index, mapped);
+            return mapped;
+        } catch (IOException e) {
+            throw new IllegalStateException("cannot map " + chunkFile(index),
+                    e);
+        }
+    }
+}
@@ -0,0 +1,461 @@
+package com.ximedes;
+
+import static com.ximedes.Status.PENDING;
+import static java.lang.Long.numberOfTrailingZeros;
+import static java.lang.System.err;
+import static java.lang.System.nanoTime;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A ledger that journals every change before it acknowledges it. This wraps
+ * one of the in-memory ledgers: the wrapped ledger decides the outcome, we
+ * write that outcome to the {@link Journal} and only return once the journal
+ * says the record is durable. Since the HTTP handlers send their 202 response
+ * only after this ledger returns, a client never sees an acknowledgement for
+ * a change that could still be lost.
+ * <p>
+ * This is not a write-ahead log. The wrapped ledger makes a change visible
+ * before we journal it, so other threads may see it and build on it while
+ * it is not durable yet. Two things keep that safe. First, the journal
+ * order follows the order in which changes became visible, wherever one
+ * change could depend on another. Each change is applied and journaled
+ * under the locks of the stripes of its accounts, so a transfer that spends
+ * money that an earlier transfer brought in is always journaled after that
+ * earlier transfer. The journal becomes durable front to back, so after a
+ * crash we never replay a transfer without the ones that it built on.
+ * Second, we hold back every answer until the records that it depends on
+ * are durable. A change waits for its own record, and thereby for all
+ * records before it. A read passes through the stripe of what it read, so
+ * that whoever changed it has journaled that change, and then waits for
+ * the journal as far as it got. Under load reads therefore wait for the
+ * next flush, just like the changes do.
+ * <p>
+ * Optionally, we take periodic incremental {@link Snapshots}, so that a
+ * restart restores the latest snapshots and replays only the journal records
+ * that came after them. To take a consistent snapshot we briefly stop all
+ * changes, by taking all the stripes just long enough to copy the account
+ * pages that changed since the previous snapshot. Changes need their stripes
+ * anyway, so they pay nothing extra for this. We used to have them share
+ * the read side of a read-write lock, whose reader count every change in
+ * the server had to update. Waiting for the journal to become durable
+ * happens outside the stripes.
+ */
+public class JournaledLedger implements Recoverable, AutoCloseable {
+    private static final int STRIPES = 64; // one bit each in a long
+    private static final long ALL_STRIPES = -1L;
+
+    private final Recoverable ledger;
+    private final Journal journal;
+    private final Snapshots snapshots;
+
+    private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+    private final DirtyPages dirtyPages = new DirtyPages();
+    private final AtomicInteger accountCount = new AtomicInteger(0);
+    private final AtomicInteger transferCount = new AtomicInteger(0);
+
+    private final ThreadLocal<Transaction> transferView = ThreadLocal
+            .withInitial(() -> new Transaction(-1, -1, -1, -1, PENDING));
+
+    private volatile boolean running = true;
+    private final Thread snapshotter;
+
+    /**
+     * Wrap a ledger with a journal, first replaying whatever the journal
+     * holds from earlier runs into the ledger. This does not take snapshots.
+     *
+     * @param ledger
+     *            The in-memory ledger, which should still be empty.
+     * @param journal
+     *            The journal to replay and to append to.
+     * @throws IOException
+     *             When the journal could not be replayed.
+     */
+    public JournaledLedger(final Recoverable ledger, final Journal journal)
+            throws IOException {
+        this(ledger, journal, 0L);
+    }
+
+    /**
+     * Wrap a ledger with a journal and periodic snapshots. We first restore
+     * the snapshots in the journal's directory and then replay the journal
+     * records that came after the latest snapshot.
+     *
+     * @param ledger
+     *            The in-memory ledger, which should still be empty.
+     * @param journal
+     *            The journal to replay and to append to.
+     * @param snapshotIntervalMillis
+     *            The time between snapshots, or zero to never take one.
+     * @throws IOException
+     *             When the snapshots or the journal could not be read.
+     */
+    public JournaledLedger(final Recoverable ledger, final Journal journal,
+            final long snapshotIntervalMillis) throws IOException {
+        super();
+
+        this.ledger = ledger;
+        this.journal = journal;
+        this.snapshots = new Snapshots(journal.directory());
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+
+        final long start = nanoTime();
+        final long journalPosition = snapshots.restore(this);
+        final long replayed = journal.replay(journalPosition, this);
+        err.println("Restored snapshots and replayed " + replayed
+                + " journal records in "
+                + NANOSECONDS.toMillis(nanoTime() - start) + " ms.");
+
+        if (snapshotIntervalMillis > 0L) {
+            snapshotter = new Thread(() -> snapshotLoop(snapshotIntervalMillis),
+                    "snapshotter");
+            snapshotter.setDaemon(true);
+            snapshotter.start();
+        } else {
+            snapshotter = null;
+        }
+    }
+
+    /**
+     * @see com.ximedes.API#createAccount(int)
+     */
+    @Override
+    public int createAccount(final int overdraft) {
+        final int accountId;
+        final long end;
+
+        if (overdraft > 0) {
+            // A bank brings in money that any transfer may spend right away,
+            // so it is journaled before all of them.
+            lock(ALL_STRIPES);
+            try {
+                accountId = ledger.createAccount(overdraft);
+                end = journal.appendAccount(accountId, overdraft);
+                accountCreated(accountId);
+            } finally {
+                unlock(ALL_STRIPES);
+            }
+        } else {
+            // A plain account has nothing that depends on it until we hand
+            // out its identifier. We only lock its stripe to keep a
+            // snapshot from seeing the record without the account.
+            accountId = ledger.createAccount(overdraft);
+            lock(stripe(accountId));
+            try {
+                end = journal.appendAccount(accountId, overdraft);
+                accountCreated(accountId);
+            } finally {
+                unlock(stripe(accountId));
+            }
+        }
+
+        journal.awaitDurable(end);
+        return accountId;
+    }
+
+    private void accountCreated(final int accountId) {
+        accountCount.accumulateAndGet(accountId + 1, Math::max);
+        dirtyPages.mark(accountId);
+    }
+
+    /**
+     * @see com.ximedes.API#getAccount(int)
+     */
+    @Override
+    public Account getAccount(final int accountId) {
+        final Account account = ledger.getAccount(accountId);
+        if (account != null) {
+            awaitDurableRead(stripe(accountId));
+        }
+        return account;
+    }
+
+    /**
+     * @see com.ximedes.API#transfer(int, int, int)
+     */
+    @Override
+    public int transfer(final int from, final int to, final int amount) {
+        final int transferId;
+        final long end;
+
+        final long stripeMask = stripe(from) | stripe(to);
+        lock(stripeMask);
+        try {
+            transferId = ledger.transfer(from, to, amount);
+            final Transaction transfer = ledger.getTransfer(transferId,
+                    transferView.get());
+            end = journal.appendTransfer(transferId, from, to, amount,
+                    transfer.status);
+            transferMade(transferId, from, to);
+        } finally {
+            unlock(stripeMask);
+        }
+
+        journal.awaitDurable(end);
+        return transferId;
+    }
+
+    /**
+     * @see com.ximedes.API#transfer(int[], int[], int[])
+     */
+    @Override
+    public int transfer(final int[] from, final int[] to, final int[] amount) {
+        final int first;
+        long end = 0L;
+
+        long stripeMask = 0L;
+        for (int i = 0; i < from.length; i++) {
+            stripeMask |= stripe(from[i]) | stripe(to[i]);
+        }
+        lock(stripeMask);
+        try {
+            first = ledger.transfer(from, to, amount);
+            final Transaction view = transferView.get();
+            for (int i = 0; i < from.length; i++) {
+                final Transaction transfer = ledger.getTransfer(first + i,
+                        view);
+                end = journal.appendTransfer(first + i, from[i], to[i],
+                        amount[i], transfer.status);
+                transferMade(first + i, from[i], to[i]);
+            }
+        } finally {
+            unlock(stripeMask);
+        }
+
+        // one wait for the whole batch
+        journal.awaitDurable(end);
+        return first;
+    }
+
+    /**
+     * @return The bit of the stripe that an account falls in. A shift only
+     *         looks at the lowest six bits of the distance, which makes 64
+     *         stripes by account identifier, even for bogus identifiers.
+     */
+    private static long stripe(final int accountId) {
+        return 1L << accountId;
+    }
+
+    /**
+     * Lock the stripes of a mask. We always lock them in the same order, so
+     * that two changes never wait for each other's stripes.
+     */
+    private void lock(final long stripeMask) {
+        for (long left = stripeMask; left != 0L; left &= left - 1L) {
+            stripes[numberOfTrailingZeros(left)].lock();
+        }
+    }
+
+    private void unlock(final long stripeMask) {
+        for (long left = stripeMask; left != 0L; left &= left - 1L) {
+            stripes[numberOfTrailingZeros(left)].unlock();
+        }
+    }
+
+    /**
+     * Hold back the answer to a read until the changes that it may have seen
+     * are durable. We pass through the stripes of what we read first, so
+     * that whoever made a change visible there has also journaled it.
+     */
+    private void awaitDurableRead(final long stripeMask) {
+        lock(stripeMask);
+        unlock(stripeMask);
+        journal.awaitDurable(journal.position());
+    }
+
+    private void transferMade(final int transferId, final int from,
+            final int to) {
+        transferCount.accumulateAndGet(transferId + 1, Math::max);
+        dirtyPages.mark(from);
+        dirtyPages.mark(to);
+    }
+
+    /**
+     * @see com.ximedes.API#getTransfer(int)
+     */
+    @Override
+    public Transaction getTransfer(final int transferId) {
+        return durable(ledger.getTransfer(transferId));
+    }
+
+    /**
+     * @see com.ximedes.API#getTransfer(int, com.ximedes.Transaction)
+     */
+    @Override
+    public Transaction getTransfer(final int transferId,
+            final Transaction into) {
+        return durable(ledger.getTransfer(transferId, into));
+    }
+
+    private Transaction durable(final Transaction transfer) {
+        if (transfer != null) {
+            awaitDurableRead(stripe(transfer.from) | stripe(transfer.to));
+        }
+        return transfer;
+    }
+
+    /**
+     * @see com.ximedes.API#ping()
+     */
+    @Override
+    public void ping() {
+        ledger.ping();
+    }
+
+    /**
+     * @see com.ximedes.API#countCentsInTheSystem()
+     */
+    @Override
+    public int countCentsInTheSystem() {
+        final int cents = ledger.countCentsInTheSystem();
+        awaitDurableRead(ALL_STRIPES);
+        return cents;
+    }
+
+    /**
+     * @see com.ximedes.API#centsInTheSystem()
+     */
+    @Override
+    public long centsInTheSystem() {
+        final long cents = ledger.centsInTheSystem();
+        awaitDurableRead(ALL_STRIPES);
+        return cents;
+    }
+
+    /**
+     * @see com.ximedes.API#auditCentsInTheSystem()
+     */
+    @Override
+    public long auditCentsInTheSystem() {
+        final long cents = ledger.auditCentsInTheSystem();
+        awaitDurableRead(ALL_STRIPES);
+        return cents;
+    }
+
+    /**
+     * @see com.ximedes.Recoverable#restoreAccount(int, int)
+     */
+    @Override
+    public void restoreAccount(final int accountId, final int overdraft) {
+        ledger.restoreAccount(accountId, overdraft);
+        accountCreated(accountId);
+    }
+
+    /**
+     * @see com.ximedes.Recoverable#restoreTransfer(int, int, int, int,
+     *      com.ximedes.Status)
+     */
+    @Override
+    public void restoreTransfer(final int transferId, final int from,
+            final int to, final int amount, final Status status) {
+        ledger.restoreTransfer(transferId, from, to, amount, status);
+        transferMade(transferId, from, to);
+    }
+
+    /**
+     * Restoring from a snapshot does not make anything dirty, since the
+     * snapshot already holds the data.
+     *
+     * @see com.ximedes.Recoverable#restoreAccount(int, int, int)
+     */
+    @Override
+    public void restoreAccount(final int accountId, final int overdraft,
+            final int balance) {
+        ledger.restoreAccount(accountId, overdraft, balance);
+        // restores run on a single thread, so this needs no compare-and-set
+        if (accountCount.get() <= accountId) {
+            accountCount.lazySet(accountId + 1);
+        }
+    }
+
+    /**
+     * @see com.ximedes.Recoverable#restoreTransferRecord(int, int, int, int,
+     *      com.ximedes.Status)
+     */
+    @Override
+    public void restoreTransferRecord(final int transferId, final int from,
+            final int to, final int amount, final Status status) {
+        ledger.restoreTransferRecord(transferId, from, to, amount, status);
+        if (transferCount.get() <= transferId) {
+            transferCount.lazySet(transferId + 1);
+        }
+    }
+
+    /**
+     * @see com.ximedes.Recoverable#retireTransferIds()
+     */
+    @Override
+    public void retireTransferIds() {
+        ledger.retireTransferIds();
+    }
+
+    /**
+     * Take an incremental snapshot. Changes are stopped only while we copy
+     * the dirty account pages. The transfers are written after we let go of
+     * the lock, since they never change once they are made.
+     * <p>
+     * The snapshot covers the transfers up to the latest one, and the next
+     * snapshot starts from there. The identifiers come in blocks, so some
+     * below the latest one may not be used yet, and a transfer made under
+     * one of them later would be in neither snapshot. So while changes are
+     * stopped we also give up the unused identifiers.
+     *
+     * @throws IOException
+     *             When the snapshot could not be written.
+     */
+    public synchronized void snapshot() throws IOException {
+        final long start = nanoTime();
+        final Snapshots.Capture capture;
+
+        lock(ALL_STRIPES);
+        try {
+            ledger.retireTransferIds();
+            capture = snapshots.capture(journal.position(), accountCount.get(),
+                    transferCount.get(), dirtyPages, ledger);
+        } finally {
+            unlock(ALL_STRIPES);
+        }
+        final long paused = nanoTime() - start;
+
+        snapshots.write(capture, ledger);
+        err.println("Snapshot of " + capture.pageCount + " pages and "
+                + (capture.transferTo - capture.transferFrom)
+                + " transfers, changes paused for "
+                + NANOSECONDS.toMicros(paused) + " us, took "
+                + NANOSECONDS.toMillis(nanoTime() - start) + " ms.");
+    }
+
+    private void snapshotLoop(final long intervalMillis) {
+        while (running) {
+            try {
+                Thread.sleep(intervalMillis);
+                if (running) {
+                    snapshot();
+                }
+            } catch (InterruptedException e) {
+                // we are probably being closed, check running
+            } catch (IOException e) {
+                e.printStackTrace();
+                err.println("Snapshot failed, will try again later.");
+            }
+        }
+    }
+
+    /**
+     * Stop taking snapshots and close the journal, flushing whatever is still
+     * waiting.
+     */
+    @Override
+    public void close() {
+        running = false;
+        if (snapshotter != null) {
+            snapshotter.interrupt();
+        }
+        journal.close();
+    }
+}
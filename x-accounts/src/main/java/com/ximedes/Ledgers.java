@@ -0,0 +1,33 @@
+package com.ximedes;
+
+/**
+ * Factory for the different implementations of the challenge systems, so that
+ * the server and the benchmarks can pick one by name.
+ */
+public class Ledgers {
+    /**
+     * Create a new, empty ledger.
+     *
+     * @param name
+     *            The name of the implementation: <code>simpleton</code> for
+     *            the monitor-based ledger, <code>cas</code> for the lock-free
+     *            one, <code>sequenced</code> for the single-writer ring
+     *            buffer or <code>combining</code> for the flat-combining
+     *            one.
+     * @return A fresh ledger of the requested kind.
+     */
+    public static API newLedger(final String name) {
+        switch (name) {
+        case "simpleton":
+            return new Simpleton();
+        case "cas":
+            return new CasLedger();
+        case "sequenced":
+            return new SequencedLedger();
+        case "combining":
+            return new CombiningLedger();
+        default:
+            throw new IllegalArgumentException("unknown ledger " + name);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.ximedes;
+
+/**
+ * A ledger that can hold one shard of a partitioned ledger. A transfer
+ * between two shards cannot be done in a single step, so instead of
+ * {@link #transfer(int, int, int)} the {@link PartitionedLedger} uses the
+ * separate steps below: withdraw the money on the shard that owns the
+ * "from" account, deposit it on the shard that owns the "to" account and
+ * record the outcome.
+ */
+public interface Partitionable extends API {
+    /**
+     * Take money out of an account, but only if the account has enough.
+     *
+     * @param accountId
+     *            The account to withdraw from.
+     * @param amount
+     *            The amount to withdraw.
+     * @return <code>true</code> if the money was withdrawn,
+     *         <code>false</code> if the account had insufficient funds or
+     *         does not exist.
+     */
+    boolean withdraw(int accountId, int amount);
+
+    /**
+     * Put money into an account. This cannot fail for lack of funds.
+     *
+     * @param accountId
+     *            The account to deposit into.
+     * @param amount
+     *            The amount to deposit.
+     * @return <code>true</code> if the money was deposited,
+     *         <code>false</code> if there is no such account.
+     */
+    boolean deposit(int accountId, int amount);
+
+    /**
+     * Record the outcome of a transfer, without moving any money.
+     *
+     * @param from
+     *            The account that was transferred from.
+     * @param to
+     *            The account that was transferred to.
+     * @param amount
+     *            The amount that was transferred.
+     * @param status
+     *            The final status of the transfer.
+     * @return The identifier of the new transfer record.
+     */
+    int record(int from, int to, int amount, Status status);
+
+    /**
+     * Record a batch of transfers with the same status, without moving any
+     * money. The records get consecutive identifiers.
+     *
+     * @param from
+     *            The accounts that were transferred from.
+     * @param to
+     *            The accounts that were transferred to.
+     * @param amount
+     *            The amounts that were transferred.
+     * @param status
+     *            The status of all transfers of the batch.
+     * @return The identifier of the first record of the batch.
+     */
+    int record(int[] from, int[] to, int[] amount, Status status);
+
+    /**
+     * Give a transfer that was recorded as {@link Status#PENDING} its final
+     * status, once we know what became of it.
+     *
+     * @param transactionId
+     *            The identifier of the transfer record.
+     * @param status
+     *            The final status of the transfer.
+     */
+    void resolve(int transactionId, Status status);
+}
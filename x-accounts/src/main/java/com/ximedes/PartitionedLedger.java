@@ -0,0 +1,543 @@
+package com.ximedes;
+
+import static com.ximedes.Status.ACCOUNT_NOT_FOUND;
+import static com.ximedes.Status.CONFIRMED;
+import static com.ximedes.Status.INSUFFICIENT_FUNDS;
+import static com.ximedes.Status.PENDING;
+import static java.lang.Math.min;
+import static java.lang.Math.toIntExact;
+import static java.lang.System.currentTimeMillis;
+import static java.lang.System.err;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * One shard of a ledger that is partitioned over several server processes.
+ * This wraps the in-memory ledger that holds our shard and translates
+ * between the global identifiers that clients use and the local ones of the
+ * wrapped ledger, as described in {@link Partitions}.
+ * <p>
+ * Transfers are handled by the shard that owns the "from" account, in two
+ * phases. First we withdraw the money from the "from" account. That is where
+ * the overdraft is checked, atomically, so the status we report is just as
+ * exact as on a single node. Then we deposit the money into the "to"
+ * account, which is a local call if we own that account too and a call to
+ * the owning node if we don't. If the deposit fails because the account
+ * does not exist, we put the money back into the "from" account.
+ * <p>
+ * A deposit on another node may also fail without telling us whether it
+ * was made, for instance when its answer times out. Then we must neither
+ * put the money back nor call the transfer confirmed. So every deposit
+ * carries an identifier, and the other node remembers the outcome of each
+ * deposit that it was sent, answering a repeat with that outcome instead
+ * of depositing twice. A transfer whose deposit is in doubt is recorded as
+ * {@link Status#PENDING}, and a background thread keeps sending the same
+ * deposit until it gets an answer, then settles the transfer for good.
+ * Each deposit also carries how far we settled all our deposits, so that
+ * the other node can forget the outcomes that we will never ask for again.
+ * <p>
+ * While the deposit is on its way the money is in neither account. So that
+ * the sum of {@link #countCentsInTheSystem()} over all shards still adds up,
+ * each shard keeps count of the money that it withdrew for other shards and
+ * that they have not yet confirmed, in doubt or not, and counts it as its
+ * own. The other shard counts the money from the moment it was deposited,
+ * so until its answer reaches us the sum may count a deposit twice, but it
+ * never loses one.
+ */
+public class PartitionedLedger implements API {
+    private static final long FIRST_RETRY_MILLIS = 10L;
+    private static final long MAX_RETRY_MILLIS = 1000L;
+    private static final long PRUNE_EVERY = 1024L; // settled deposits
+
+    private final Partitionable ledger;
+    private final Partitions partitions;
+    private final int shard;
+    private final Peer[] peers;
+
+    // tells the other nodes that we restarted and forgot our deposits
+    private final long incarnation = currentTimeMillis();
+    private final TreeSet<Long> unsettled = new TreeSet<>();
+    private long nextDeposit = 0L; // guarded by unsettled
+    private final ScheduledExecutorService resolver = Executors
+            .newSingleThreadScheduledExecutor(runnable -> {
+                final Thread thread = new Thread(runnable,
+                        "deposit-resolver");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    // withdrawn for the other shards, but not yet deposited for sure
+    private final LongAdder inFlight = new LongAdder();
+
+    // the deposits that the other shards made into ours, by shard
+    private final AtomicReferenceArray<Received> received;
+
+    // who waits for which pending transfer, by local identifier
+    private final ConcurrentHashMap<Integer, List<Runnable>> listeners =
+            new ConcurrentHashMap<>();
+
+    /**
+     * The way we reach the other shards.
+     */
+    public interface Peer {
+        /**
+         * Deposit money into an account on a remote shard. Sending the same
+         * deposit again is safe: the remote shard deposits the money only
+         * once and answers with the same outcome.
+         *
+         * @param fromShard
+         *            Our shard.
+         * @param incarnation
+         *            Our incarnation, the time at which we started.
+         * @param depositId
+         *            The identifier of the deposit among ours.
+         * @param settled
+         *            The deposits up to here have all been answered.
+         * @param accountId
+         *            The global identifier of the account.
+         * @param amount
+         *            The amount to deposit.
+         * @return <code>true</code> if the money was deposited,
+         *         <code>false</code> if there is no such account.
+         * @throws RuntimeException
+         *             When we don't know whether the money was deposited.
+         */
+        boolean deposit(int fromShard, long incarnation, long depositId,
+                long settled, int accountId, int amount);
+    }
+
+    /**
+     * The outcomes of the deposits that one other shard made into ours.
+     */
+    private static final class Received {
+        final long incarnation;
+        final ConcurrentHashMap<Long, Boolean> outcomes = new ConcurrentHashMap<>();
+        final AtomicLong pruned = new AtomicLong(0L);
+
+        Received(final long incarnation) {
+            super();
+
+            this.incarnation = incarnation;
+        }
+
+        /**
+         * Forget the outcomes that the other shard will never ask for again.
+         * We go over all outcomes, so we only do this every so often.
+         */
+        void prune(final long settled) {
+            final long last = pruned.get();
+            if (settled - last >= PRUNE_EVERY
+                    && pruned.compareAndSet(last, settled)) {
+                outcomes.keySet().removeIf(id -> id < settled);
+            }
+        }
+    }
+
+    /**
+     * A transfer whose deposit is in doubt, and that we keep resolving.
+     */
+    private final class InDoubt implements Runnable {
+        final int transactionId;
+        final int from;
+        final int to;
+        final int amount;
+        final long depositId;
+        long retryMillis = FIRST_RETRY_MILLIS;
+
+        InDoubt(final int transactionId, final int from, final int to,
+                final int amount, final long depositId) {
+            super();
+
+            this.transactionId = transactionId;
+            this.from = from;
+            this.to = to;
+            this.amount = amount;
+            this.depositId = depositId;
+        }
+
+        /**
+         * Send the deposit again, until we learn what became of it.
+         *
+         * @see java.lang.Runnable#run()
+         */
+        @Override
+        public void run() {
+            final boolean deposited;
+            try {
+                deposited = peers[partitions.shardOf(to)].deposit(shard,
+                        incarnation, depositId, settled(), to, amount);
+            } catch (RuntimeException e) {
+                resolver.schedule(this, retryMillis, MILLISECONDS);
+                retryMillis = min(2L * retryMillis, MAX_RETRY_MILLIS);
+                return;
+            }
+
+            settle(depositId);
+            if (!deposited) {
+                ledger.deposit(partitions.localId(from), amount);
+            }
+            inFlight.add(-amount);
+            decide(transactionId,
+                    deposited ? CONFIRMED : ACCOUNT_NOT_FOUND);
+        }
+    }
+
+    /**
+     * Set up a shard.
+     *
+     * @param ledger
+     *            The in-memory ledger that holds this shard.
+     * @param partitions
+     *            The partition map.
+     * @param shard
+     *            The shard that this node owns.
+     * @param peers
+     *            The peers, indexed by shard. Our own entry is not used.
+     */
+    public PartitionedLedger(final Partitionable ledger,
+            final Partitions partitions, final int shard, final Peer[] peers) {
+        super();
+
+        if (shard < 0 || shard >= partitions.shards()) {
+            throw new IllegalArgumentException("shard " + shard
+                    + " is not in a map of " + partitions.shards()
+                    + " shards");
+        }
+
+        this.ledger = ledger;
+        this.partitions = partitions;
+        this.shard = shard;
+        this.peers = peers.clone();
+        this.received = new AtomicReferenceArray<>(partitions.shards());
+    }
+
+    /**
+     * @return The partition map.
+     */
+    public Partitions partitions() {
+        return partitions;
+    }
+
+    private boolean isOurs(final int id) {
+        return id >= 0 && partitions.shardOf(id) == shard;
+    }
+
+    /**
+     * @see com.ximedes.API#createAccount(int)
+     */
+    @Override
+    public int createAccount(final int overdraft) {
+        return partitions.globalId(shard, ledger.createAccount(overdraft));
+    }
+
+    /**
+     * We only know the accounts on our own shard. For any other account we
+     * answer that it was not found.
+     *
+     * @see com.ximedes.API#getAccount(int)
+     */
+    @Override
+    public Account getAccount(final int accountId) {
+        if (!isOurs(accountId)) {
+            return null;
+        }
+
+        final Account account = ledger
+                .getAccount(partitions.localId(accountId));
+        if (account == null) {
+            return null;
+        }
+        return new Account(accountId, account.balance, account.overdraft);
+    }
+
+    /**
+     * Transfer money in two phases, see the class comment. A transfer from an
+     * account that is not on our shard is recorded as
+     * {@link Status#ACCOUNT_NOT_FOUND}, since the client should have sent it
+     * to the owning node.
+     *
+     * @see com.ximedes.API#transfer(int, int, int)
+     */
+    @Override
+    public int transfer(final int from, final int to, final int amount) {
+        final int transactionId = ledger.record(from, to, amount, PENDING);
+        make(transactionId, from, to, amount);
+        return partitions.globalId(shard, transactionId);
+    }
+
+    /**
+     * Make a batch of transfers, each one in two phases like a single
+     * transfer. We record the whole batch up front, so that its transfers
+     * get consecutive identifiers on our shard. Since the global identifiers
+     * interleave the shards, those of the batch are the number of shards
+     * apart.
+     *
+     * @see com.ximedes.API#transfer(int[], int[], int[])
+     */
+    @Override
+    public int transfer(final int[] from, final int[] to, final int[] amount) {
+        final int first = ledger.record(from, to, amount, PENDING);
+        for (int i = 0; i < from.length; i++) {
+            make(first + i, from[i], to[i], amount[i]);
+        }
+        return partitions.globalId(shard, first);
+    }
+
+    /**
+     * Make a transfer that was recorded as pending, and give it its final
+     * status. If its deposit is in doubt, the transfer stays pending until
+     * the background thread learnt what became of it.
+     */
+    private void make(final int transactionId, final int from, final int to,
+            final int amount) {
+        if (!isOurs(from)) {
+            decide(transactionId, ACCOUNT_NOT_FOUND);
+            return;
+        }
+        if (to < 0 || isOurs(to)) {
+            if (!ledger.withdraw(partitions.localId(from), amount)) {
+                decide(transactionId, INSUFFICIENT_FUNDS);
+                return;
+            }
+            if (to >= 0 && ledger.deposit(partitions.localId(to), amount)) {
+                decide(transactionId, CONFIRMED);
+                return;
+            }
+            // phase two failed, so undo phase one
+            ledger.deposit(partitions.localId(from), amount);
+            decide(transactionId, ACCOUNT_NOT_FOUND);
+            return;
+        }
+
+        // from before we withdraw it until we know where the money went, we
+        // count it as ours, so that a count never misses it
+        inFlight.add(amount);
+        if (!ledger.withdraw(partitions.localId(from), amount)) {
+            inFlight.add(-amount);
+            decide(transactionId, INSUFFICIENT_FUNDS);
+            return;
+        }
+
+        final long depositId = claimDeposit();
+        final boolean deposited;
+        try {
+            deposited = peers[partitions.shardOf(to)].deposit(shard,
+                    incarnation, depositId, settled(), to, amount);
+        } catch (RuntimeException e) {
+            err.println("Deposit " + depositId + " into " + to
+                    + " is in doubt, resolving it in the background: " + e);
+            resolver.execute(
+                    new InDoubt(transactionId, from, to, amount, depositId));
+            return;
+        }
+
+        settle(depositId);
+        if (!deposited) {
+            ledger.deposit(partitions.localId(from), amount);
+        }
+        inFlight.add(-amount);
+        decide(transactionId,
+                deposited ? CONFIRMED : ACCOUNT_NOT_FOUND);
+    }
+
+    private long claimDeposit() {
+        synchronized (unsettled) {
+            final long depositId = nextDeposit++;
+            unsettled.add(depositId);
+            return depositId;
+        }
+    }
+
+    /**
+     * @return The deposit identifier below which all our deposits were
+     *         answered.
+     */
+    private long settled() {
+        synchronized (unsettled) {
+            return unsettled.isEmpty() ? nextDeposit : unsettled.first();
+        }
+    }
+
+    private void settle(final long depositId) {
+        synchronized (unsettled) {
+            unsettled.remove(depositId);
+        }
+    }
+
+    /**
+     * Deposit money into one of the accounts on our shard. This is phase two
+     * of a transfer that another shard started. If that shard sends us the
+     * same deposit again, we answer with the outcome of the first time.
+     *
+     * @param fromShard
+     *            The shard that sent the deposit.
+     * @param incarnation
+     *            The incarnation of that shard.
+     * @param depositId
+     *            The identifier of the deposit among those of that shard.
+     * @param settled
+     *            That shard will never send the deposits below this one
+     *            again.
+     * @param accountId
+     *            The global identifier of the account.
+     * @param amount
+     *            The amount to deposit.
+     * @return <code>true</code> if the money was deposited,
+     *         <code>false</code> if there is no such account on our shard.
+     */
+    public boolean deposit(final int fromShard, final long incarnation,
+            final long depositId, final long settled, final int accountId,
+            final int amount) {
+        if (fromShard < 0 || fromShard >= partitions.shards()) {
+            return false;
+        }
+
+        Received sender = received.get(fromShard);
+        while (sender == null || sender.incarnation < incarnation) {
+            // the other node restarted and forgot its deposits, so we can
+            // forget them too
+            received.compareAndSet(fromShard, sender,
+                    new Received(incarnation));
+            sender = received.get(fromShard);
+        }
+        if (sender.incarnation != incarnation) {
+            // a late deposit from before the other node restarted, which
+            // nobody waits for any more
+            return false;
+        }
+
+        final Boolean deposited = sender.outcomes.computeIfAbsent(depositId,
+                id -> isOurs(accountId) && ledger
+                        .deposit(partitions.localId(accountId), amount));
+        sender.prune(settled);
+        return deposited;
+    }
+
+    /**
+     * @see com.ximedes.API#getTransfer(int)
+     */
+    @Override
+    public Transaction getTransfer(final int transferId) {
+        return getTransfer(transferId,
+                new Transaction(transferId, -1, -1, -1, PENDING));
+    }
+
+    /**
+     * @see com.ximedes.API#getTransfer(int, com.ximedes.Transaction)
+     */
+    @Override
+    public Transaction getTransfer(final int transferId,
+            final Transaction into) {
+        if (!isOurs(transferId)) {
+            return null;
+        }
+
+        // the records hold the global account identifiers already
+        final Transaction transfer = ledger
+                .getTransfer(partitions.localId(transferId), into);
+        if (transfer == null) {
+            return null;
+        }
+        transfer.transactionId = transferId;
+        return transfer;
+    }
+
+    /**
+     * We register the listener first and look at the transfer after, so
+     * that a decision that comes in between still finds the listener, or
+     * we see that decision and call the listener ourselves.
+     *
+     * @see com.ximedes.API#whenDecided(int, java.lang.Runnable)
+     */
+    @Override
+    public boolean whenDecided(final int transferId,
+            final Runnable listener) {
+        if (!isOurs(transferId)) {
+            return false;
+        }
+
+        final int transactionId = partitions.localId(transferId);
+        listeners.compute(transactionId, (id, waiting) -> {
+            final List<Runnable> list = waiting == null ? new ArrayList<>()
+                    : waiting;
+            list.add(listener);
+            return list;
+        });
+        final Transaction transfer = ledger.getTransfer(transactionId,
+                new Transaction(-1, -1, -1, -1, PENDING));
+        if (transfer == null || transfer.status != PENDING) {
+            fire(transactionId);
+        }
+        return true;
+    }
+
+    /**
+     * Give a pending transfer its final status and call whoever waits for
+     * it.
+     */
+    private void decide(final int transactionId, final Status status) {
+        ledger.resolve(transactionId, status);
+        if (!listeners.isEmpty()) {
+            fire(transactionId);
+        }
+    }
+
+    private void fire(final int transactionId) {
+        final List<Runnable> waiting = listeners.remove(transactionId);
+        if (waiting != null) {
+            for (final Runnable listener : waiting) {
+                listener.run();
+            }
+        }
+    }
+
+    /**
+     * @see com.ximedes.API#ping()
+     */
+    @Override
+    public void ping() {
+        ledger.ping();
+    }
+
+    /**
+     * Count the cents on our shard only, including those that are on their
+     * way to other shards, see the class comment. The clients add up the
+     * counts of all shards.
+     *
+     * @see com.ximedes.API#countCentsInTheSystem()
+     */
+    @Override
+    public int countCentsInTheSystem() {
+        return toIntExact(auditCentsInTheSystem());
+    }
+
+    /**
+     * @see com.ximedes.API#centsInTheSystem()
+     */
+    @Override
+    public long centsInTheSystem() {
+        final long centsInTheSystem = ledger.centsInTheSystem();
+        return centsInTheSystem + inFlight.sum();
+    }
+
+    /**
+     * We look at the money in flight after the balances: it joins the money
+     * in flight before it leaves the balances.
+     *
+     * @see com.ximedes.API#auditCentsInTheSystem()
+     */
+    @Override
+    public long auditCentsInTheSystem() {
+        final long centsInTheSystem = ledger.auditCentsInTheSystem();
+        return centsInTheSystem + inFlight.sum();
+    }
+}
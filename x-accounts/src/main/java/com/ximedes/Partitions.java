@@ -0,0 +1,95 @@
+package com.ximedes;
+
+import static java.lang.Integer.MAX_VALUE;
+
+/**
+ * The partition map of a partitioned ledger: which node owns which account
+ * and transfer identifiers. Identifiers are spread round-robin over the
+ * shards, so that identifier <code>i</code> lives on shard
+ * <code>i % shards</code>, where it is known under the local identifier
+ * <code>i / shards</code>. This way each shard hands out its own local
+ * identifiers without ever talking to the others, and anybody who knows the
+ * number of shards can route a request without a lookup table.
+ * <p>
+ * Transfers live on the shard that owns their "from" account.
+ */
+public final class Partitions {
+    private final String[] nodes;
+
+    /**
+     * Set up a partition map.
+     *
+     * @param nodes
+     *            The base URLs of the nodes (including trailing slash), in
+     *            shard order.
+     */
+    public Partitions(final String... nodes) {
+        super();
+
+        if (nodes.length == 0) {
+            throw new IllegalArgumentException("need at least one node");
+        }
+        this.nodes = nodes.clone();
+    }
+
+    /**
+     * Parse a partition map the way we write it on the command line: a comma
+     * separated list of base URLs.
+     *
+     * @param nodes
+     *            The base URLs of the nodes, in shard order.
+     * @return The partition map.
+     */
+    public static Partitions parse(final String nodes) {
+        final String[] urls = nodes.split(",");
+        for (int i = 0; i < urls.length; i++) {
+            urls[i] = urls[i].trim();
+            if (!urls[i].endsWith("/")) {
+                urls[i] += "/";
+            }
+        }
+        return new Partitions(urls);
+    }
+
+    /**
+     * @return The number of shards.
+     */
+    public int shards() {
+        return nodes.length;
+    }
+
+    /**
+     * @return The base URL of the node that owns the specified shard.
+     */
+    public String node(final int shard) {
+        return nodes[shard];
+    }
+
+    /**
+     * @return The shard that owns the specified account or transfer
+     *         identifier.
+     */
+    public int shardOf(final int id) {
+        return id % nodes.length;
+    }
+
+    /**
+     * @return The identifier that the owning shard knows the specified
+     *         account or transfer identifier by.
+     */
+    public int localId(final int id) {
+        return id / nodes.length;
+    }
+
+    /**
+     * @return The identifier that everybody else knows the specified local
+     *         identifier of a shard by.
+     */
+    public int globalId(final int shard, final int localId) {
+        if (localId > (MAX_VALUE - shard) / nodes.length) {
+            throw new IllegalStateException(
+                    "ran out of identifiers on shard " + shard);
+        }
+        return localId * nodes.length + shard;
+    }
+}
@@ -0,0 +1,81 @@
+package com.ximedes;
+
+/**
+ * A ledger that can be rebuilt from snapshots and a journal. The restore
+ * methods put back the outcome of an earlier call, with the original
+ * identifiers. They don't re-evaluate anything, so the order in which the
+ * journaled events are restored does not affect the resulting balances.
+ * <p>
+ * The restore methods are only called while the server is starting and
+ * before it serves any requests.
+ */
+public interface Recoverable extends API {
+    /**
+     * Restore an account that was created earlier.
+     *
+     * @param accountId
+     *            The identifier that the account was created with.
+     * @param overdraft
+     *            The overdraft that the account was created with.
+     */
+    void restoreAccount(int accountId, int overdraft);
+
+    /**
+     * Restore a transfer that was made earlier, moving the money only if the
+     * transfer was confirmed.
+     *
+     * @param transferId
+     *            The identifier of the transfer.
+     * @param from
+     *            The account that was transferred from.
+     * @param to
+     *            The account that was transferred to.
+     * @param amount
+     *            The amount that was transferred.
+     * @param status
+     *            The final status of the transfer.
+     */
+    void restoreTransfer(int transferId, int from, int to, int amount,
+            Status status);
+
+    /**
+     * Restore an account from a snapshot, setting its balance outright.
+     *
+     * @param accountId
+     *            The identifier that the account was created with.
+     * @param overdraft
+     *            The overdraft of the account.
+     * @param balance
+     *            The balance of the account, as reported by
+     *            {@link #getAccount(int)}.
+     */
+    void restoreAccount(int accountId, int overdraft, int balance);
+
+    /**
+     * Restore the record of a transfer from a snapshot. Unlike
+     * {@link #restoreTransfer(int, int, int, int, Status)} this does not move
+     * any money, since the snapshot's balances already reflect the transfer.
+     *
+     * @param transferId
+     *            The identifier of the transfer.
+     * @param from
+     *            The account that was transferred from.
+     * @param to
+     *            The account that was transferred to.
+     * @param amount
+     *            The amount that was transferred.
+     * @param status
+     *            The final status of the transfer.
+     */
+    void restoreTransferRecord(int transferId, int from, int to, int amount,
+            Status status);
+
+    /**
+     * Give up the transfer identifiers that were claimed but not yet used,
+     * so that no transfer is ever made under them. After this, every
+     * identifier below that of the latest transfer is either in use or
+     * never will be. A snapshot calls this while no transfers are made, so
+     * that it can take all transfers up to the latest one for good.
+     */
+    void retireTransferIds();
+}
@@ -0,0 +1,85 @@
+package com.ximedes;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.IntFunction;
+
+/**
+ * Growable storage, built from fixed-size segments that are allocated on
+ * first use. This replaces the huge, fixed-size arrays we used to allocate up
+ * front, so that startup time no longer depends on the capacity and we don't
+ * run off the end of an array when the test is bigger than we expected.
+ * <p>
+ * The segment directory is an {@link AtomicReferenceArray} that covers the
+ * full range of non-negative <code>int</code> identifiers. New segments are
+ * installed with a compare-and-set, so concurrent writers agree on a single
+ * segment and readers on other threads see it fully initialised.
+ *
+ * @param <T>
+ *            The type of a segment, usually some kind of array.
+ */
+final class Segments<T> {
+    static final int SEGMENT_SHIFT = 16;
+    static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+    static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+    private static final int MAX_SEGMENTS = 1 << (31 - SEGMENT_SHIFT);
+
+    private final AtomicReferenceArray<T> directory = new AtomicReferenceArray<>(
+            MAX_SEGMENTS);
+    private final IntFunction<T> factory;
+
+    /**
+     * Set up a new, empty store.
+     *
+     * @param factory
+     *            Creates a fresh segment of {@link #SEGMENT_SIZE} elements,
+     *            given the index of the first element in that segment.
+     */
+    Segments(final IntFunction<T> factory) {
+        super();
+
+        this.factory = factory;
+    }
+
+    /**
+     * Find the segment that holds the element with the specified index,
+     * allocating it if need be.
+     *
+     * @param index
+     *            The index of the element, must not be negative.
+     * @return The segment for that index.
+     */
+    T segment(final int index) {
+        final int segmentIndex = index >>> SEGMENT_SHIFT;
+        final T segment = directory.get(segmentIndex);
+        if (segment != null) {
+            return segment;
+        }
+
+        final T fresh = factory.apply(segmentIndex << SEGMENT_SHIFT);
+        if (directory.compareAndSet(segmentIndex, null, fresh)) {
+            return fresh;
+        }
+        return directory.get(segmentIndex); // somebody beat us to it
+    }
+
+    /**
+     * Find the segment that holds the element with the specified index,
+     * without allocating anything.
+     *
+     * @param index
+     *            The index of the element, must not be negative.
+     * @return The segment for that index, or <code>null</code> if nothing was
+     *         ever stored in that segment.
+     */
+    T segmentIfPresent(final int index) {
+        return directory.get(index >>> SEGMENT_SHIFT);
+    }
+
+    /**
+     * @return The index of an element within its segment.
+     */
+    static int offset(final int index) {
+        return index & SEGMENT_MASK;
+    }
+}
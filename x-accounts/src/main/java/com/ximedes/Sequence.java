@@ -0,0 +1,35 @@
+package com.ximedes;
+
+/**
+ * A volatile sequence counter that sits on its own cache line. The padding
+ * fields before and after the value keep other hot fields from sharing the
+ * line, so that writers of this counter don't invalidate the caches of
+ * threads that only read something next to it. We use inheritance for the
+ * padding because the JVM is free to reorder fields within a class, but not
+ * across the class hierarchy.
+ */
+class Sequence extends SequenceValue {
+    protected long p9, p10, p11, p12, p13, p14, p15;
+
+    Sequence(final long initial) {
+        super();
+
+        value = initial;
+    }
+
+    long get() {
+        return value;
+    }
+
+    void set(final long newValue) {
+        value = newValue;
+    }
+}
+
+abstract class SequencePadding {
+    protected long p1, p2, p3, p4, p5, p6, p7;
+}
+
+abstract class SequenceValue extends SequencePadding {
+    protected volatile long value;
+}
@@ -0,0 +1,478 @@
+package com.ximedes;
+
+import static com.ximedes.Segments.SEGMENT_SIZE;
+import static com.ximedes.Segments.offset;
+import static com.ximedes.Status.ACCOUNT_NOT_FOUND;
+import static com.ximedes.Status.CONFIRMED;
+import static com.ximedes.Status.INSUFFICIENT_FUNDS;
+import static com.ximedes.Status.PENDING;
+import static java.lang.Integer.MAX_VALUE;
+import static java.lang.Math.min;
+import static java.lang.Math.toIntExact;
+import static java.lang.System.err;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A single-writer implementation of the challenge systems, modelled after the
+ * LMAX Disruptor. The handler threads never touch the balances themselves.
+ * Instead, they publish their commands into a pre-allocated ring buffer and
+ * wait. One applier thread takes the commands off the ring in sequence,
+ * hands out the account and transaction identifiers and applies the
+ * transfers. Because only that one thread ever writes a balance, we need no
+ * locks and no atomic instructions on the balances, and the hot accounts stay
+ * in the cache of a single core.
+ * <p>
+ * Publication works with sequence numbers. A producer claims the next
+ * sequence from a shared counter, waits until the slot for that sequence has
+ * been released by its previous user, fills it in and marks it published. The
+ * applier processes slots strictly in sequence order and then moves its
+ * <code>applied</code> cursor forward. That cursor is the sequence barrier:
+ * a caller whose sequence is at or below the cursor knows its command was
+ * applied and that the results in its slot are visible. Readers use the same
+ * cursor to get a consistent view of the balances and transfers.
+ */
+public class SequencedLedger implements API, AutoCloseable {
+    private static final int RING_SIZE = 1 << 13; // must be a power of two
+    private static final int RING_MASK = RING_SIZE - 1;
+
+    private static final int CREATE_ACCOUNT = 1;
+    private static final int TRANSFER = 2;
+    private static final int TRANSFERS = 3;
+    private static final int AUDIT = 4;
+
+    /**
+     * One entry in the ring. Producers write the command fields, the applier
+     * writes the result fields. The three sequence fields hand the slot back
+     * and forth between them.
+     */
+    private static final class Slot {
+        int command;
+        int from;
+        int to;
+        int amount;
+        int[] froms; // for batches of transfers
+        int[] tos;
+        int[] amounts;
+
+        int resultId;
+        AuditSnapshot resultSnapshot; // for audits
+        RuntimeException failure;
+
+        volatile long published = -1L;
+        volatile long free;
+
+        Slot(final long free) {
+            super();
+
+            this.free = free;
+        }
+    }
+
+    private final Slot[] ring = new Slot[RING_SIZE];
+    private final AtomicLong claimed = new AtomicLong(0L);
+    private final Sequence applied = new Sequence(-1L);
+
+    // the state below is only ever written by the applier thread
+    private int nextAccount = 0;
+    private final Segments<int[]> balance = new Segments<>(
+            first -> new int[SEGMENT_SIZE]);
+    private final AuditPages pages = new AuditPages(balance);
+    private final AccountTable accounts = new AccountTable();
+    private volatile long cents = 0L; // only changes when we create banks
+    private int nextTransaction = 0;
+    private final TransferLog transfers = new TransferLog();
+
+    private volatile boolean running = true;
+    private volatile boolean stopped = false; // the applier is gone for good
+    private final Thread applier;
+
+    /**
+     * Set up the ring and start the applier thread.
+     */
+    public SequencedLedger() {
+        super();
+
+        for (int i = 0; i < RING_SIZE; i++) {
+            ring[i] = new Slot(i);
+        }
+
+        applier = new Thread(this::apply, "ledger-applier");
+        applier.setDaemon(true);
+        applier.start();
+    }
+
+    /**
+     * @see com.ximedes.API#createAccount(int)
+     */
+    @Override
+    public int createAccount(final int overdraft) {
+        final long sequence = claim();
+        final Slot slot = ring[(int) sequence & RING_MASK];
+        slot.command = CREATE_ACCOUNT;
+        slot.amount = overdraft;
+        slot.published = sequence;
+
+        awaitApplied(sequence);
+        final int accountId = slot.resultId;
+        release(slot, sequence);
+
+        if (accountId < 0) {
+            throw new IllegalStateException("ran out of account identifiers");
+        }
+        return accountId;
+    }
+
+    /**
+     * @see com.ximedes.API#getAccount(int)
+     */
+    @Override
+    public Account getAccount(final int accountId) {
+        applied.get(); // read barrier, makes the applier's writes visible
+        if (accountId < 0 || accountId >= nextAccount) {
+            return null;
+        }
+
+        final int[] balances = balance.segmentIfPresent(accountId);
+        if (balances == null) {
+            return null;
+        }
+
+        final int overd = accounts.overdraft(accountId);
+        final int bal = balances[offset(accountId)] - overd;
+
+        return new Account(accountId, bal, overd);
+    }
+
+    /**
+     * @see com.ximedes.API#transfer(int, int, int)
+     */
+    @Override
+    public int transfer(final int from, final int to, final int amount) {
+        final long sequence = claim();
+        final Slot slot = ring[(int) sequence & RING_MASK];
+        slot.command = TRANSFER;
+        slot.from = from;
+        slot.to = to;
+        slot.amount = amount;
+        slot.published = sequence;
+
+        awaitApplied(sequence);
+        final int transactionId = slot.resultId;
+        release(slot, sequence);
+
+        if (transactionId < 0) {
+            throw new IllegalStateException(
+                    "ran out of transaction identifiers");
+        }
+        return transactionId;
+    }
+
+    /**
+     * The applier makes the whole batch in one go, so the transfers get
+     * consecutive identifiers without any extra effort.
+     *
+     * @see com.ximedes.API#transfer(int[], int[], int[])
+     */
+    @Override
+    public int transfer(final int[] from, final int[] to, final int[] amount) {
+        // the applier must not find out halfway through the batch
+        if (to.length != from.length || amount.length != from.length) {
+            throw new IllegalArgumentException("batch of " + from.length
+                    + " from, " + to.length + " to and " + amount.length
+                    + " amounts");
+        }
+
+        final long sequence = claim();
+        final Slot slot = ring[(int) sequence & RING_MASK];
+        slot.command = TRANSFERS;
+        slot.froms = from;
+        slot.tos = to;
+        slot.amounts = amount;
+        slot.published = sequence;
+
+        awaitApplied(sequence);
+        final int first = slot.resultId;
+        slot.froms = null; // don't keep the batch alive from the ring
+        slot.tos = null;
+        slot.amounts = null;
+        release(slot, sequence);
+
+        if (first < 0) {
+            throw new IllegalStateException(
+                    "ran out of transaction identifiers");
+        }
+        return first;
+    }
+
+    /**
+     * @see com.ximedes.API#getTransfer(int)
+     */
+    @Override
+    public Transaction getTransfer(final int transferId) {
+        return getTransfer(transferId,
+                new Transaction(transferId, -1, -1, -1, PENDING));
+    }
+
+    /**
+     * @see com.ximedes.API#getTransfer(int, com.ximedes.Transaction)
+     */
+    @Override
+    public Transaction getTransfer(final int transferId,
+            final Transaction into) {
+        applied.get(); // read barrier, makes the applier's writes visible
+        if (transferId < 0 || transferId >= nextTransaction) {
+            return null;
+        }
+
+        return transfers.read(transferId, into);
+    }
+
+    /**
+     * @see com.ximedes.API#ping()
+     */
+    @Override
+    public void ping() {
+        // just return quickly...
+    }
+
+    /**
+     * @see com.ximedes.API#countCentsInTheSystem()
+     */
+    @Override
+    public int countCentsInTheSystem() {
+        return toIntExact(auditCentsInTheSystem());
+    }
+
+    /**
+     * @see com.ximedes.API#centsInTheSystem()
+     */
+    @Override
+    public long centsInTheSystem() {
+        return cents;
+    }
+
+    /**
+     * The audit is a command like any other, so that the applier starts the
+     * next epoch between two transfers. The applier only does that and moves
+     * on. From then on it saves the pages that it changes and we add up the
+     * others on the calling thread, see {@link AuditPages}.
+     *
+     * @see com.ximedes.API#auditCentsInTheSystem()
+     */
+    @Override
+    public long auditCentsInTheSystem() {
+        return pages.audit(() -> {
+            final long sequence = claim();
+            final Slot slot = ring[(int) sequence & RING_MASK];
+            slot.command = AUDIT;
+            slot.published = sequence;
+
+            awaitApplied(sequence);
+            final AuditSnapshot snapshot = slot.resultSnapshot;
+            slot.resultSnapshot = null;
+            release(slot, sequence);
+            return snapshot;
+        });
+    }
+
+    /**
+     * Stop the applier thread. Commands that are published after this are
+     * never applied, so the callers that still wait for theirs get an
+     * {@link IllegalStateException}, as does everyone who tries to publish
+     * another command.
+     */
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(applier);
+    }
+
+    /**
+     * Claim the next sequence and wait for its slot to be released by the
+     * caller that used it one lap around the ring ago.
+     */
+    private long claim() {
+        if (!running) {
+            throw new IllegalStateException("ledger was closed");
+        }
+
+        final long sequence = claimed.getAndIncrement();
+        final Slot slot = ring[(int) sequence & RING_MASK];
+        for (int spins = 0; slot.free != sequence; spins++) {
+            if (stopped) {
+                throw new IllegalStateException("ledger was closed");
+            }
+            idle(spins);
+        }
+        return sequence;
+    }
+
+    /**
+     * Wait for the applier to get to our command. Once the applier has
+     * stopped, the cursor no longer moves, so if it did not get to our
+     * command by then it never will.
+     */
+    private void awaitApplied(final long sequence) {
+        for (int spins = 0; applied.get() < sequence; spins++) {
+            if (stopped && applied.get() < sequence) {
+                throw new IllegalStateException("ledger was closed");
+            }
+            idle(spins);
+        }
+    }
+
+    /**
+     * Hand the slot back to the producer one lap around the ring from now,
+     * and throw what went wrong when the applier applied our command, if
+     * anything did.
+     */
+    private void release(final Slot slot, final long sequence) {
+        final RuntimeException failure = slot.failure;
+        slot.failure = null;
+        slot.free = sequence + RING_SIZE;
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * The applier's main loop. We take the published slots off the ring in
+     * order, apply them and move the <code>applied</code> cursor forward. When
+     * several slots are ready we apply them all before publishing the cursor,
+     * so that a busy ring costs us one volatile write per batch rather than
+     * one per command.
+     * <p>
+     * A command that fails must not take the applier down, or every caller
+     * would wait for it forever. We hand the failure to the caller of that
+     * command instead, like the {@link CombiningLedger} does. Should the
+     * applier go down all the same, the callers find out that it stopped.
+     */
+    private void apply() {
+        try {
+            long next = 0L;
+            int spins = 0;
+            while (running) {
+                Slot slot = ring[(int) next & RING_MASK];
+                if (slot.published != next) {
+                    idle(spins);
+                    spins = min(spins + 1, 200);
+                    continue;
+                }
+                spins = 0;
+
+                do {
+                    try {
+                        applyCommand(slot, next);
+                    } catch (RuntimeException e) {
+                        // not ours to throw, hand it to the caller
+                        slot.failure = e;
+                    }
+
+                    next++;
+                    slot = ring[(int) next & RING_MASK];
+                } while (slot.published == next);
+
+                applied.set(next - 1L);
+            }
+        } finally {
+            stopped = true;
+        }
+    }
+
+    private void applyCommand(final Slot slot, final long sequence) {
+        switch (slot.command) {
+        case CREATE_ACCOUNT:
+            slot.resultId = applyCreateAccount(slot.amount);
+            break;
+        case TRANSFER:
+            slot.resultId = applyTransfer(slot.from, slot.to, slot.amount);
+            break;
+        case TRANSFERS:
+            slot.resultId = applyTransfers(slot.froms, slot.tos,
+                    slot.amounts);
+            break;
+        case AUDIT:
+            slot.resultSnapshot = pages
+                    .begin(nextAccount < 0 ? MAX_VALUE : nextAccount);
+            break;
+        default:
+            err.println("Bad command " + slot.command + " at " + sequence);
+            slot.resultId = -1;
+        }
+    }
+
+    private int applyCreateAccount(final int overdraft) {
+        if (nextAccount < 0) {
+            return -1;
+        }
+        final int accountId = nextAccount++;
+
+        final int[] balances = balance.segment(accountId);
+        if (overdraft > 0) { // a bank account
+            pages.touch(accountId);
+            balances[offset(accountId)] = overdraft;
+            cents += overdraft;
+
+            // remember the overdraft, so that we report the balance without it
+            accounts.add(accountId, overdraft);
+        }
+
+        return accountId;
+    }
+
+    private int applyTransfer(final int from, final int to, final int amount) {
+        if (nextTransaction < 0) {
+            return -1;
+        }
+
+        Status status = CONFIRMED;
+        if (from < 0 || from >= nextAccount || to < 0 || to >= nextAccount) {
+            status = ACCOUNT_NOT_FOUND;
+        } else {
+            final int[] fromBalances = balance.segment(from);
+            final int fromOffset = offset(from);
+            if (fromBalances[fromOffset] < amount) {
+                status = INSUFFICIENT_FUNDS;
+            } else {
+                pages.touch(from);
+                fromBalances[fromOffset] -= amount;
+                pages.touch(to);
+                balance.segment(to)[offset(to)] += amount;
+            }
+        }
+
+        final int transactionId = nextTransaction++;
+        transfers.write(transactionId, from, to, amount, status);
+        return transactionId;
+    }
+
+    private int applyTransfers(final int[] from, final int[] to,
+            final int[] amount) {
+        if (nextTransaction < 0 || nextTransaction + from.length < 0) {
+            return -1;
+        }
+
+        final int first = nextTransaction;
+        for (int i = 0; i < from.length; i++) {
+            applyTransfer(from[i], to[i], amount[i]);
+        }
+        return first;
+    }
+
+    /**
+     * Back off while waiting for another thread. We spin briefly for the best
+     * latency, then yield the CPU and finally park for a little while, so that
+     * an idle ring does not burn a core.
+     */
+    static void idle(final int spins) {
+        if (spins < 100) {
+            // busy spin
+        } else if (spins < 200) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(50000L);
+        }
+    }
+}
@@ -1,49 +1,102 @@
 package com.ximedes;
 
+import static com.ximedes.Segments.SEGMENT_SIZE;
+import static com.ximedes.Segments.offset;
+import static com.ximedes.Status.ACCOUNT_NOT_FOUND;
 import static com.ximedes.Status.CONFIRMED;
 import static com.ximedes.Status.INSUFFICIENT_FUNDS;
 import static com.ximedes.Status.PENDING;
+import static java.lang.Integer.getInteger;
 import static java.lang.Math.max;
+import static java.lang.Math.toIntExact;
 
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * A simplistic implementation of the challenge systems.
+ * <p>
+ * Hot accounts get a {@link StripedBalance}, so that the threads that use
+ * them at the same time do not all queue up on the same monitor. We know
+ * that bank accounts are hot: every consumer is seeded from one. Other
+ * accounts become hot once they have been credited {@link #HOT_CREDITS}
+ * times, which the merchants are soon and the consumers never.
+ * <p>
+ * An audit counts the balances while the transfers go on. It starts a new
+ * epoch and each balance is saved as it was when the epoch began, either by
+ * the first transfer that changes it or by the audit itself, see
+ * {@link AuditSnapshot}. A transfer holds both of its accounts while it
+ * moves the money, so it is either wholly in the epoch or wholly out of it.
  * 
  * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
  */
-public class Simpleton implements API {
-    private final AtomicInteger nextAccount = new AtomicInteger(0);
+public class Simpleton implements Recoverable, Partitionable {
+    private static final int HOT_CREDITS = 1024;
 
-    // 300.000 consumer accounts, 300 merchant accounts and 1 back account
-    private static final int MAX_ACCOUNTS = 500000; // 300301
-    private final Object[] locks = new Object[MAX_ACCOUNTS];
-    private final int[] balance = new int[MAX_ACCOUNTS];
+    // the other side of a withdrawal or a deposit
+    private static final int NOWHERE = -1;
 
-    private final Object highestBankAccountLock = new Object();
-    private int highestBankAccount = 0;
-    private int bankOverdraft = -1;
+    private final IdBlocks nextAccount = new IdBlocks();
 
-    // It's a bit less than that, but let's not be picky about some RAM.
-    private static final int EXPECTED_TRANSFERS = 5000000;
-    private final Transaction[] transfers = new Transaction[EXPECTED_TRANSFERS];
-    private final AtomicInteger nextTransaction = new AtomicInteger(0);
+    // Both the locks and the balances grow a segment at a time, so that we
+    // only pay for the accounts that we actually have.
+    private final Segments<Object[]> locks = new Segments<>(first -> {
+        final Object[] segment = new Object[SEGMENT_SIZE];
+        for (int i = 0; i < SEGMENT_SIZE; i++) {
+            segment[i] = new Object();
+        }
+        return segment;
+    });
+    private final Segments<int[]> balance = new Segments<>(
+            first -> new int[SEGMENT_SIZE]);
+    // the audit epoch in which each balance last changed
+    private final Segments<int[]> epochs = new Segments<>(
+            first -> new int[SEGMENT_SIZE]);
+
+    // The striped balances of the hot accounts, and how often the others
+    // were credited. All of the above is guarded by the account's lock,
+    // except that we may peek for a striped balance without it. Once an
+    // account has one, its plain balance stays zero.
+    private final int stripes;
+    private final Segments<StripedBalance[]> hot = new Segments<>(
+            first -> new StripedBalance[SEGMENT_SIZE]);
+    private final Segments<int[]> credits = new Segments<>(
+            first -> new int[SEGMENT_SIZE]);
+
+    // the money that was put into the system, which transfers don't change
+    private final LongAdder cents = new LongAdder();
+
+    // the running audit, or the last one; we run one at a time
+    private volatile AuditSnapshot snapshot = new AuditSnapshot();
+    private final Object auditLock = new Object();
+
+    private final AccountTable accounts = new AccountTable();
+
+    private final TransferLog transfers = new TransferLog();
+    private final IdBlocks nextTransaction = new IdBlocks();
 
     /**
-     * Create a new backend server, setting up the per-account lock for each
-     * expected account. We also pre-allocate all transfer object, so that we
-     * don't have to allocate that memory at run-time. Instead, we have that
-     * overhead as part of starting up the server.
+     * Set up a ledger that splits hot accounts into the number of stripes in
+     * the system property <code>x-accounts.stripes</code>, or by default
+     * into as many stripes as we have cores. On a single core nothing runs
+     * at the same time, so there we do not stripe at all.
      */
     public Simpleton() {
+        this(getInteger("x-accounts.stripes",
+                Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Set up a ledger that splits hot accounts into the specified number of
+     * stripes.
+     *
+     * @param stripes
+     *            The number of stripes per hot account, rounded up to a
+     *            power of two. One means that we do not stripe.
+     */
+    public Simpleton(final int stripes) {
         super();
 
-        for (int i = 0; i < MAX_ACCOUNTS; i++) {
-            locks[i] = new Object();
-        }
-        for (int i = 0; i < EXPECTED_TRANSFERS; i++) {
-            transfers[i] = new Transaction(i, -1, -1, -1, PENDING);
-        }
+        this.stripes = Integer.highestOneBit(max(1, 2 * stripes - 1));
     }
 
     /**
@@ -51,23 +104,91 @@ public class Simpleton implements API {
      */
     @Override
     public int createAccount(final int overdraft) {
-        final int accountId = nextAccount.getAndIncrement();
-        if (accountId >= MAX_ACCOUNTS) {
-            throw new IllegalStateException("creating more than MAX_ACCOUNTS");
+        final int accountId = nextAccount.claim(1);
+        if (accountId < 0) {
+            throw new IllegalStateException("ran out of account identifiers");
         }
 
-        if (overdraft > 0) { // a bank account
-            balance[accountId] = overdraft;
-            bankOverdraft = overdraft;
+        setUpAccount(accountId, overdraft);
+        return accountId;
+    }
+
+    private void setUpAccount(final int accountId, final int overdraft) {
+        // make sure the segments exist before anyone uses this account
+        locks.segment(accountId);
+        epochs.segment(accountId);
+        final int[] balances = balance.segment(accountId);
 
-            synchronized (highestBankAccountLock) {
-                // keep track of what bank accounts we have, so we can yield the
-                // correct response at the end of the run
-                highestBankAccount = max(accountId, highestBankAccount);
+        if (overdraft > 0) { // a bank account
+            final int offset = offset(accountId);
+            synchronized (locks.segment(accountId)[offset]) {
+                final AuditSnapshot current = snapshot;
+                save(accountId, balances, offset, current);
+                balances[offset] += overdraft;
+                makeHot(accountId, balances, offset, current);
             }
+            cents.add(overdraft);
         }
 
-        return accountId;
+        // remember the overdraft, so that we report the balance without it,
+        // and that the account exists
+        accounts.add(accountId, overdraft);
+    }
+
+    /**
+     * @see com.ximedes.Recoverable#restoreAccount(int, int)
+     */
+    @Override
+    public void restoreAccount(final int accountId, final int overdraft) {
+        nextAccount.restored(accountId);
+        setUpAccount(accountId, overdraft);
+    }
+
+    /**
+     * @see com.ximedes.Recoverable#restoreAccount(int, int, int)
+     */
+    @Override
+    public void restoreAccount(final int accountId, final int overdraft,
+            final int bal) {
+        restoreAccount(accountId, overdraft);
+        final StripedBalance striped = hot(accountId);
+        if (striped == null) {
+            final int[] balances = balance.segment(accountId);
+            cents.add(bal + overdraft - balances[offset(accountId)]);
+            balances[offset(accountId)] = bal + overdraft;
+        } else {
+            cents.add(bal + overdraft - striped.sum());
+            striped.set(bal + overdraft);
+        }
+    }
+
+    /**
+     * Give an account a striped balance, unless we do not stripe at all.
+     * The caller holds the lock of the account and saved its balance for
+     * the running audit.
+     */
+    private void makeHot(final int accountId, final int[] balances,
+            final int offset, final AuditSnapshot current) {
+        if (stripes == 1 || hot(accountId) != null) {
+            return;
+        }
+
+        final StripedBalance striped = new StripedBalance(stripes,
+                balances[offset], current.epoch);
+        balances[offset] = 0;
+        hot.segment(accountId)[offset] = striped;
+    }
+
+    /**
+     * @return The striped balance of an account, or <code>null</code> if
+     *         the account is not hot, as far as we can see without its lock.
+     */
+    private StripedBalance hot(final int accountId) {
+        if (accountId == NOWHERE) {
+            return null;
+        }
+        final StripedBalance[] striped = hot.segmentIfPresent(accountId);
+        return striped == null ? null : striped[offset(accountId)];
     }
 
     /**
@@ -75,14 +196,20 @@ public class Simpleton implements API {
      */
     @Override
     public Account getAccount(final int accountId) {
-        int bal = balance[accountId];
-        int overd = 0;
+        if (!accounts.exists(accountId)) {
+            return null;
+        }
 
-        if (accountId <= highestBankAccount) {
-            bal -= bankOverdraft;
-            overd = bankOverdraft;
+        final int[] balances = balance.segmentIfPresent(accountId);
+        if (balances == null) {
+            return null;
         }
 
+        final StripedBalance striped = hot(accountId);
+        final int overd = accounts.overdraft(accountId);
+        final int bal = (striped == null ? balances[offset(accountId)]
+                : striped.sum()) - overd;
+
         return new Account(accountId, bal, overd);
     }
 
@@ -91,39 +218,289 @@ public class Simpleton implements API {
      */
     @Override
     public int transfer(final int from, final int to, final int amount) {
-        Status status = CONFIRMED;
-
-        // To reduce lock contention we lock the "from" address separately from
-        // the "to" address. This saves about 15% of the time in a lock-bound
-        // situation.
-
-        // Normally locking elements in random order would lead to a deadlock.
-        // At some point one thread might hold element X and try to lock element
-        // Y, while another thread holds the lock on element Y and is seeking to
-        // lock element X. However, we know that all "from" elements are
-        // consumer accounts and all the "to" elements are merchant accounts.
-        // This ensures we never get the aforementioned deadlock and can use
-        // this typically unsafe idiom safely.
-
-        synchronized (locks[from]) {
-            if (balance[from] < amount) {
-                status = INSUFFICIENT_FUNDS;
+        return record(from, to, amount, move(from, to, amount));
+    }
+
+    /**
+     * @see com.ximedes.API#transfer(int[], int[], int[])
+     */
+    @Override
+    public int transfer(final int[] from, final int[] to, final int[] amount) {
+        final int first = claimTransactions(from.length);
+        for (int i = 0; i < from.length; i++) {
+            transfers.write(first + i, from[i], to[i], amount[i],
+                    move(from[i], to[i], amount[i]));
+        }
+        return first;
+    }
+
+    private Status move(final int from, final int to, final int amount) {
+        // We used to let go of the "from" account before we took the "to"
+        // account, and for a moment the money was in neither of them. Now we
+        // hold both while we move it, so that an audit never catches it on
+        // its way. To keep two transfers in opposite directions from
+        // deadlocking, we take the accounts in the order of their
+        // identifiers, and the stripes of a hot account in their own order.
+        if (!accounts.exists(from) || !accounts.exists(to)) {
+            return ACCOUNT_NOT_FOUND;
+        }
+        return change(from, to, amount);
+    }
+
+    /**
+     * Take the locks of the accounts and move the money. Either account may
+     * be {@link #NOWHERE}, for the money that leaves the ledger or enters it.
+     */
+    private Status change(final int from, final int to, final int amount) {
+        for (;;) {
+            final StripedBalance fromStriped = hot(from);
+            final StripedBalance toStriped = hot(to);
+            final Object fromLock = from == NOWHERE ? lock(to, toStriped)
+                    : lock(from, fromStriped);
+            final Object toLock = to == NOWHERE ? fromLock
+                    : lock(to, toStriped);
+            Status status;
+            if (from <= to || to == NOWHERE) {
+                synchronized (fromLock) {
+                    synchronized (toLock) {
+                        status = moveHeld(from, fromStriped, to, toStriped,
+                                amount, false);
+                    }
+                }
+            } else {
+                synchronized (toLock) {
+                    synchronized (fromLock) {
+                        status = moveHeld(from, fromStriped, to, toStriped,
+                                amount, false);
+                    }
+                }
+            }
+            if (status == null && fromStriped != null) {
+                status = moveWhole(from, fromStriped, to, amount);
+            }
+            if (status != null) {
+                return status;
+            }
+        }
+    }
+
+    /**
+     * Move the money when the home stripe of the "from" account has too
+     * little, holding all of its stripes and deciding on their sum.
+     */
+    private Status moveWhole(final int from, final StripedBalance fromStriped,
+            final int to, final int amount) {
+        final StripedBalance toStriped = hot(to);
+        final Object toLock = to == NOWHERE ? fromStriped.home()
+                : lock(to, toStriped);
+        if (from <= to || to == NOWHERE) {
+            return fromStriped.whole(() -> {
+                synchronized (toLock) {
+                    return moveHeld(from, fromStriped, to, toStriped, amount,
+                            true);
+                }
+            });
+        }
+        synchronized (toLock) {
+            return fromStriped.whole(() -> moveHeld(from, fromStriped, to,
+                    toStriped, amount, true));
+        }
+    }
+
+    /**
+     * @return The lock that guards the balance of an account: the home
+     *         stripe of the calling thread if it is hot, or else the lock of
+     *         the account.
+     */
+    private Object lock(final int accountId, final StripedBalance striped) {
+        return striped == null ? locks.segment(accountId)[offset(accountId)]
+                : striped.home();
+    }
+
+    /**
+     * Move the money while we hold the locks of both accounts, which
+     * {@link #lock(int, StripedBalance)} gave us, or all stripes of the
+     * "from" account.
+     *
+     * @return The status of the transfer, or <code>null</code> if we hold
+     *         the wrong locks: an account became hot while we waited for
+     *         them or the home stripe of the "from" account has too little.
+     */
+    private Status moveHeld(final int from, final StripedBalance fromStriped,
+            final int to, final StripedBalance toStriped, final int amount,
+            final boolean whole) {
+        if (from != NOWHERE && fromStriped == null && hot(from) != null
+                || to != NOWHERE && toStriped == null && hot(to) != null) {
+            return null;
+        }
+
+        // read only now, so that the transfer is in the epoch of the audit
+        // that saved either account before us, or in none that did
+        final AuditSnapshot current = snapshot;
+        if (from != NOWHERE) {
+            if (fromStriped != null) {
+                if (whole ? !fromStriped.debitAll(from, amount, current)
+                        : !fromStriped.debit(from, amount, current)) {
+                    return whole ? INSUFFICIENT_FUNDS : null;
+                }
             } else {
-                synchronized (locks[to]) {
-                    balance[from] -= amount;
-                    balance[to] += amount;
+                final int[] balances = balance.segment(from);
+                final int offset = offset(from);
+                if (balances[offset] < amount) {
+                    return INSUFFICIENT_FUNDS;
                 }
+                save(from, balances, offset, current);
+                balances[offset] -= amount;
             }
         }
 
-        final Transaction transfer = transfers[nextTransaction
-                .getAndIncrement()];
-        transfer.from = from;
-        transfer.to = to;
-        transfer.amount = amount;
-        transfer.status = status;
-        transfers[transfer.transactionId] = transfer;
-        return transfer.transactionId;
+        if (to != NOWHERE) {
+            if (toStriped != null) {
+                toStriped.credit(to, amount, current);
+            } else {
+                final int[] balances = balance.segment(to);
+                final int offset = offset(to);
+                save(to, balances, offset, current);
+                balances[offset] += amount;
+                if (stripes > 1
+                        && ++credits.segment(to)[offset] == HOT_CREDITS) {
+                    makeHot(to, balances, offset, current);
+                }
+            }
+        }
+        return CONFIRMED;
+    }
+
+    /**
+     * Save the plain balance of an account for the running audit, if this
+     * is its first change in the audit's epoch. The caller holds the lock of
+     * the account.
+     */
+    private void save(final int accountId, final int[] balances,
+            final int offset, final AuditSnapshot current) {
+        final int[] epoch = epochs.segment(accountId);
+        if (epoch[offset] != current.epoch) {
+            epoch[offset] = current.epoch;
+            current.save(accountId, balances[offset]);
+        }
+    }
+
+    /**
+     * @see com.ximedes.Partitionable#withdraw(int, int)
+     */
+    @Override
+    public boolean withdraw(final int accountId, final int amount) {
+        if (!accounts.exists(accountId)
+                || change(accountId, NOWHERE, amount) != CONFIRMED) {
+            return false;
+        }
+        cents.add(-amount);
+        return true;
+    }
+
+    /**
+     * @see com.ximedes.Partitionable#deposit(int, int)
+     */
+    @Override
+    public boolean deposit(final int accountId, final int amount) {
+        if (!accounts.exists(accountId)) {
+            return false;
+        }
+
+        change(NOWHERE, accountId, amount);
+        cents.add(amount);
+        return true;
+    }
+
+    /**
+     * @see com.ximedes.Partitionable#record(int, int, int, com.ximedes.Status)
+     */
+    @Override
+    public int record(final int from, final int to, final int amount,
+            final Status status) {
+        final int transactionId = claimTransactions(1);
+        transfers.write(transactionId, from, to, amount, status);
+        return transactionId;
+    }
+
+    /**
+     * @see com.ximedes.Partitionable#record(int[], int[], int[],
+     *      com.ximedes.Status)
+     */
+    @Override
+    public int record(final int[] from, final int[] to, final int[] amount,
+            final Status status) {
+        final int first = claimTransactions(from.length);
+        for (int i = 0; i < from.length; i++) {
+            transfers.write(first + i, from[i], to[i], amount[i], status);
+        }
+        return first;
+    }
+
+    /**
+     * @see com.ximedes.Partitionable#resolve(int, com.ximedes.Status)
+     */
+    @Override
+    public void resolve(final int transactionId, final Status status) {
+        transfers.resolve(transactionId, status);
+    }
+
+    /**
+     * Claim a range of consecutive transaction identifiers.
+     *
+     * @return The first identifier of the range.
+     */
+    private int claimTransactions(final int count) {
+        final int first = nextTransaction.claim(count);
+        if (first < 0) {
+            throw new IllegalStateException(
+                    "ran out of transaction identifiers");
+        }
+        return first;
+    }
+
+    /**
+     * @see com.ximedes.Recoverable#restoreTransfer(int, int, int, int,
+     *      com.ximedes.Status)
+     */
+    @Override
+    public void restoreTransfer(final int transferId, final int from,
+            final int to, final int amount, final Status status) {
+        if (status == CONFIRMED) {
+            adjust(from, -amount);
+            adjust(to, amount);
+        }
+
+        nextTransaction.restored(transferId);
+        transfers.write(transferId, from, to, amount, status);
+    }
+
+    private void adjust(final int accountId, final int amount) {
+        final StripedBalance striped = hot(accountId);
+        if (striped == null) {
+            balance.segment(accountId)[offset(accountId)] += amount;
+        } else {
+            striped.set(striped.sum() + amount);
+        }
+    }
+
+    /**
+     * @see com.ximedes.Recoverable#restoreTransferRecord(int, int, int, int,
+     *      com.ximedes.Status)
+     */
+    @Override
+    public void restoreTransferRecord(final int transferId, final int from,
+            final int to, final int amount, final Status status) {
+        nextTransaction.restored(transferId);
+        transfers.write(transferId, from, to, amount, status);
+    }
+
+    /**
+     * @see com.ximedes.Recoverable#retireTransferIds()
+     */
+    @Override
+    public void retireTransferIds() {
+        nextTransaction.retire();
     }
 
     /**
@@ -131,7 +508,21 @@ public class Simpleton implements API {
      */
     @Override
     public Transaction getTransfer(final int transferId) {
-        return transfers[transferId];
+        return getTransfer(transferId,
+                new Transaction(transferId, -1, -1, -1, PENDING));
+    }
+
+    /**
+     * @see com.ximedes.API#getTransfer(int, com.ximedes.Transaction)
+     */
+    @Override
+    public Transaction getTransfer(final int transferId,
+            final Transaction into) {
+        if (!nextTransaction.contains(transferId)) {
+            return null;
+        }
+
+        return transfers.read(transferId, into);
     }
 
     /**
@@ -147,12 +538,61 @@ public class Simpleton implements API {
      */
     @Override
     public int countCentsInTheSystem() {
-        int centsInTheSystem = 0;
+        return toIntExact(auditCentsInTheSystem());
+    }
+
+    /**
+     * @see com.ximedes.API#centsInTheSystem()
+     */
+    @Override
+    public long centsInTheSystem() {
+        return cents.sum();
+    }
 
-        for (int i = 0; i < balance.length; i++) {
-            centsInTheSystem += balance[i];
+    /**
+     * @see com.ximedes.API#auditCentsInTheSystem()
+     */
+    @Override
+    public long auditCentsInTheSystem() {
+        synchronized (auditLock) {
+            final AuditSnapshot current = snapshot
+                    .next(nextAccount.claimed());
+            snapshot = current;
+            return Audit.scan(current.accounts, (first, length) -> {
+                if (balance.segmentIfPresent(first) == null) {
+                    return 0L;
+                }
+                long sum = 0L;
+                for (int i = first; i < first + length; i++) {
+                    sum += save(i, current);
+                }
+                return sum;
+            }) + current.saved();
         }
+    }
 
-        return centsInTheSystem;
+    /**
+     * Save the balance of an account for an audit, unless a transfer did so
+     * already. We lock one account or stripe at a time.
+     *
+     * @return The balance that we saved, or zero.
+     */
+    private long save(final int accountId, final AuditSnapshot current) {
+        StripedBalance striped = hot(accountId);
+        if (striped == null) {
+            final int offset = offset(accountId);
+            synchronized (locks.segment(accountId)[offset]) {
+                striped = hot(accountId);
+                if (striped == null) {
+                    final int[] epoch = epochs.segment(accountId);
+                    if (epoch[offset] == current.epoch) {
+                        return 0L;
+                    }
+                    epoch[offset] = current.epoch;
+                    return balance.segment(accountId)[offset];
+                }
+            }
+        }
+        return striped.save(current);
     }
 }
@@ -0,0 +1,373 @@
+package com.ximedes;
+
+import static com.ximedes.DirtyPages.PAGE_SHIFT;
+import static com.ximedes.DirtyPages.PAGE_SIZE;
+import static com.ximedes.Status.PENDING;
+import static java.lang.Integer.MAX_VALUE;
+import static java.lang.Integer.parseInt;
+import static java.lang.Math.min;
+import static java.lang.System.err;
+import static java.lang.System.nanoTime;
+import static java.nio.ByteOrder.nativeOrder;
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.TreeMap;
+
+/**
+ * Compact binary snapshots of the ledger, so that a restart only has to
+ * replay the tail of the journal. Snapshots are incremental: each one holds
+ * only the account pages that changed since the previous snapshot and only
+ * the transfers that were made since then. Restoring reads all snapshots in
+ * order, the later pages overwriting the earlier ones.
+ * <p>
+ * A chain of increments would grow for as long as the server runs, and so
+ * would the time to restart it, since busy pages show up in every increment.
+ * So once the chain is {@link #CHAIN_LENGTH} snapshots long, we merge it into
+ * a single full snapshot that holds the latest version of each page and all
+ * transfers, and delete the increments that it covers. The merge works on
+ * the files, so the ledger does not have to stop for it.
+ * <p>
+ * A snapshot file starts with a 32-byte header, followed by the dirty pages
+ * and then the transfers:
+ *
+ * <pre>
+ *   header:   magic, version, journal position (long), account count,
+ *             page count, first transfer, last transfer + 1
+ *   page:     page index, then PAGE_SIZE times (overdraft, balance),
+ *             the overdraft -1 if the account was not created
+ *   transfer: from, to, amount, status (one byte, 0xff if missing)
+ * </pre>
+ *
+ * Everything is in the native byte order, since snapshots are only ever read
+ * back on the machine that wrote them. Files are written under a temporary
+ * name and renamed when complete, so a crash while snapshotting never leaves
+ * a half-written snapshot behind.
+ */
+final class Snapshots {
+    private static final int MAGIC = 0x58534e50; // "XSNP"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32; // bytes
+    private static final int JOURNAL_POSITION_AT = 8; // in the header
+    private static final int ACCOUNT_COUNT_AT = 16;
+    private static final int PAGE_COUNT_AT = 20;
+    private static final int TRANSFER_FROM_AT = 24;
+    private static final int TRANSFER_TO_AT = 28;
+    private static final int PAGE_BYTES = 4 + PAGE_SIZE * 8;
+    private static final int TRANSFER_BYTES = 13;
+    private static final byte MISSING = (byte) 0xff;
+    private static final int NO_ACCOUNT = -1; // as overdraft
+    private static final int CHAIN_LENGTH = 16;
+    private static final String PREFIX = "snapshot-";
+    private static final String SUFFIX = ".snap";
+
+    private static final Status[] STATUSES = Status.values();
+
+    private final File directory;
+
+    private int firstSequence = 0; // the oldest snapshot that we keep
+    private int nextSequence = 0;
+    private int transfersCovered = 0;
+
+    /**
+     * A snapshot that was captured, but not yet written to disk.
+     */
+    static final class Capture {
+        final long journalPosition;
+        final int accountCount;
+        final int transferFrom;
+        final int transferTo;
+        final int pageCount;
+        final ByteBuffer pages;
+
+        Capture(final long journalPosition, final int accountCount,
+                final int transferFrom, final int transferTo,
+                final int pageCount, final ByteBuffer pages) {
+            super();
+
+            this.journalPosition = journalPosition;
+            this.accountCount = accountCount;
+            this.transferFrom = transferFrom;
+            this.transferTo = transferTo;
+            this.pageCount = pageCount;
+            this.pages = pages;
+        }
+    }
+
+    Snapshots(final File directory) {
+        super();
+
+        this.directory = directory;
+    }
+
+    /**
+     * Capture the dirty account pages. The caller must make sure that nobody
+     * changes the ledger while we do this, but this is only a memory copy of
+     * the pages that changed, so it is quick.
+     */
+    Capture capture(final long journalPosition, final int accountCount,
+            final int transferCount, final DirtyPages dirtyPages,
+            final API ledger) {
+        final int pageTotal = (accountCount + PAGE_SIZE - 1) >>> PAGE_SHIFT;
+        ByteBuffer pages = ByteBuffer.allocate(PAGE_BYTES * 16)
+                .order(nativeOrder());
+        int pageCount = 0;
+        for (int page = 0; page < pageTotal; page++) {
+            if (!dirtyPages.clear(page)) {
+                continue;
+            }
+
+            if (pages.remaining() < PAGE_BYTES) {
+                final ByteBuffer bigger = ByteBuffer
+                        .allocate(pages.capacity() * 2).order(nativeOrder());
+                pages.flip();
+                bigger.put(pages);
+                pages = bigger;
+            }
+
+            pages.putInt(page);
+            final int first = page << PAGE_SHIFT;
+            for (int accountId = first; accountId < first
+                    + PAGE_SIZE; accountId++) {
+                final Account account = accountId < accountCount
+                        ? ledger.getAccount(accountId) : null;
+                pages.putInt(account == null ? NO_ACCOUNT : account.overdraft);
+                pages.putInt(account == null ? 0 : account.balance);
+            }
+            pageCount++;
+        }
+        pages.flip();
+
+        return new Capture(journalPosition, accountCount, transfersCovered,
+                transferCount, pageCount, pages);
+    }
+
+    /**
+     * Write a captured snapshot to disk, adding the transfers that were made
+     * since the previous snapshot. Transfers never change once they are
+     * written, so this can run while the ledger is busy.
+     */
+    void write(final Capture capture, final API ledger) throws IOException {
+        final File file = snapshotFile(nextSequence);
+        final File temporary = new File(directory, file.getName() + ".tmp");
+
+        final Transaction view = new Transaction(-1, -1, -1, -1, PENDING);
+        try (final RandomAccessFile raf = new RandomAccessFile(temporary,
+                "rw"); final FileChannel channel = raf.getChannel()) {
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE)
+                    .order(nativeOrder());
+            header.putInt(MAGIC).putInt(VERSION)
+                    .putLong(capture.journalPosition)
+                    .putInt(capture.accountCount).putInt(capture.pageCount)
+                    .putInt(capture.transferFrom).putInt(capture.transferTo);
+            header.flip();
+            writeFully(channel, header);
+            writeFully(channel, capture.pages);
+
+            final ByteBuffer transfers = ByteBuffer
+                    .allocateDirect(TRANSFER_BYTES * 8192).order(nativeOrder());
+            for (int id = capture.transferFrom; id < capture.transferTo; id++) {
+                if (transfers.remaining() < TRANSFER_BYTES) {
+                    transfers.flip();
+                    writeFully(channel, transfers);
+                    transfers.clear();
+                }
+
+                final Transaction transfer = ledger.getTransfer(id, view);
+                if (transfer == null) {
+                    transfers.putInt(-1).putInt(-1).putInt(-1).put(MISSING);
+                } else {
+                    transfers.putInt(transfer.from).putInt(transfer.to)
+                            .putInt(transfer.amount)
+                            .put((byte) transfer.status.ordinal());
+                }
+            }
+            transfers.flip();
+            writeFully(channel, transfers);
+
+            channel.force(true);
+        }
+
+        Files.move(temporary.toPath(), file.toPath(), ATOMIC_MOVE);
+        nextSequence++;
+        transfersCovered = capture.transferTo;
+
+        if (nextSequence - firstSequence >= CHAIN_LENGTH) {
+            compact();
+        }
+    }
+
+    /**
+     * Merge all snapshots that we keep into one full snapshot, which takes
+     * the place of the latest one. Only then do we delete the older ones,
+     * oldest first, so a crash at any point leaves a chain that restores
+     * to the same state.
+     */
+    private void compact() throws IOException {
+        final long start = nanoTime();
+        final int last = nextSequence - 1;
+        final MappedByteBuffer[] chain = new MappedByteBuffer[last
+                - firstSequence + 1];
+        for (int i = 0; i < chain.length; i++) {
+            chain[i] = map(snapshotFile(firstSequence + i));
+        }
+
+        // the latest version of each page, in page order
+        final TreeMap<Integer, ByteBuffer> pages = new TreeMap<>();
+        for (final MappedByteBuffer snapshot : chain) {
+            final int pageCount = snapshot.getInt(PAGE_COUNT_AT);
+            for (int i = 0; i < pageCount; i++) {
+                final int offset = HEADER_SIZE + i * PAGE_BYTES;
+                final ByteBuffer page = snapshot.duplicate();
+                page.position(offset).limit(offset + PAGE_BYTES);
+                pages.put(snapshot.getInt(offset), page.slice());
+            }
+        }
+
+        final MappedByteBuffer latest = chain[chain.length - 1];
+        final int transferFrom = chain[0].getInt(TRANSFER_FROM_AT);
+        final int transferTo = latest.getInt(TRANSFER_TO_AT);
+
+        final File file = snapshotFile(last);
+        final File temporary = new File(directory, file.getName() + ".tmp");
+        try (final RandomAccessFile raf = new RandomAccessFile(temporary,
+                "rw"); final FileChannel channel = raf.getChannel()) {
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE)
+                    .order(nativeOrder());
+            header.putInt(MAGIC).putInt(VERSION).putLong(latest.getLong(JOURNAL_POSITION_AT))
+                    .putInt(latest.getInt(ACCOUNT_COUNT_AT)).putInt(pages.size())
+                    .putInt(transferFrom).putInt(transferTo);
+            header.flip();
+            writeFully(channel, header);
+            for (final ByteBuffer page : pages.values()) {
+                writeFully(channel, page);
+            }
+
+            // the transfers of the increments follow on from each other
+            for (final MappedByteBuffer snapshot : chain) {
+                final ByteBuffer transfers = snapshot.duplicate();
+                transfers.position(
+                        HEADER_SIZE + snapshot.getInt(PAGE_COUNT_AT) * PAGE_BYTES);
+                writeFully(channel, transfers);
+            }
+
+            channel.force(true);
+        }
+
+        Files.move(temporary.toPath(), file.toPath(), ATOMIC_MOVE);
+        for (int sequence = firstSequence; sequence < last; sequence++) {
+            Files.delete(snapshotFile(sequence).toPath());
+        }
+        err.println("Compacted " + chain.length + " snapshots into one of "
+                + pages.size() + " pages and " + (transferTo - transferFrom)
+                + " transfers in "
+                + NANOSECONDS.toMillis(nanoTime() - start) + " ms.");
+        firstSequence = last;
+    }
+
+    private static MappedByteBuffer map(final File file) throws IOException {
+        try (final RandomAccessFile raf = new RandomAccessFile(file, "r");
+                final FileChannel channel = raf.getChannel()) {
+            final MappedByteBuffer snapshot = channel.map(READ_ONLY, 0L,
+                    channel.size());
+            snapshot.order(nativeOrder());
+            if (snapshot.getInt(0) != MAGIC
+                    || snapshot.getInt(4) != VERSION) {
+                throw new IOException(file + " is not a snapshot I can read");
+            }
+            return snapshot;
+        }
+    }
+
+    private static void writeFully(final FileChannel channel,
+            final ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Restore all snapshots, oldest first, into the ledger.
+     *
+     * @return The journal position of the latest snapshot, which is where
+     *         the journal replay should start. Zero if there are no
+     *         snapshots.
+     */
+    long restore(final Recoverable ledger) throws IOException {
+        // compaction deletes the oldest snapshots, so find where we start
+        final String[] names = directory.list();
+        if (names != null) {
+            firstSequence = MAX_VALUE;
+            for (final String name : names) {
+                if (name.startsWith(PREFIX) && name.endsWith(SUFFIX)) {
+                    firstSequence = min(firstSequence,
+                            parseInt(name.substring(PREFIX.length(),
+                                    name.length() - SUFFIX.length())));
+                }
+            }
+            if (firstSequence == MAX_VALUE) {
+                firstSequence = 0;
+            }
+        }
+        nextSequence = firstSequence;
+
+        long journalPosition = 0L;
+        while (snapshotFile(nextSequence).exists()) {
+            journalPosition = restore(snapshotFile(nextSequence), ledger);
+            nextSequence++;
+        }
+        return journalPosition;
+    }
+
+    private long restore(final File file, final Recoverable ledger)
+            throws IOException {
+        final MappedByteBuffer snapshot = map(file);
+        snapshot.position(JOURNAL_POSITION_AT);
+        final long journalPosition = snapshot.getLong();
+        final int accountCount = snapshot.getInt();
+        final int pageCount = snapshot.getInt();
+        final int transferFrom = snapshot.getInt();
+        final int transferTo = snapshot.getInt();
+        snapshot.position(HEADER_SIZE);
+
+        for (int i = 0; i < pageCount; i++) {
+            final int first = snapshot.getInt() << PAGE_SHIFT;
+            for (int accountId = first; accountId < first
+                    + PAGE_SIZE; accountId++) {
+                final int overdraft = snapshot.getInt();
+                final int balance = snapshot.getInt();
+                // an identifier below the count may have been claimed for
+                // an account that was not created yet
+                if (accountId < accountCount && overdraft != NO_ACCOUNT) {
+                    ledger.restoreAccount(accountId, overdraft, balance);
+                }
+            }
+        }
+
+        for (int id = transferFrom; id < transferTo; id++) {
+            final int from = snapshot.getInt();
+            final int to = snapshot.getInt();
+            final int amount = snapshot.getInt();
+            final byte status = snapshot.get();
+            if (status != MISSING) {
+                ledger.restoreTransferRecord(id, from, to, amount,
+                        STATUSES[status]);
+            }
+        }
+
+        transfersCovered = transferTo;
+        return journalPosition;
+    }
+
+    private File snapshotFile(final int sequence) {
+        return new File(directory, String.format(PREFIX + "%08d" + SUFFIX, sequence));
+    }
+}
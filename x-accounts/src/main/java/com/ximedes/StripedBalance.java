@@ -0,0 +1,205 @@
+package com.ximedes;
+
+import java.util.function.Supplier;
+
+/**
+ * The balance of a hot account, split over a number of stripes that each
+ * have a lock and a cache line of their own. The bank account that seeds
+ * every consumer and the merchants that every consumer pays would otherwise
+ * have all threads queue up on a single monitor.
+ * <p>
+ * Each thread has a home stripe. Credits go to the home stripe and so do
+ * debits, as long as the home stripe holds enough. When it runs short, we
+ * lock all stripes, in order, and decide on the sum of them. If that
+ * suffices we spread what is left evenly over the stripes again, so that the
+ * next debits find money at home. That way a debit is refused only if the
+ * account as a whole has too little, exactly as if it were a single
+ * balance.
+ * <p>
+ * A transfer holds the stripes of both of its accounts while it moves the
+ * money, so the {@link Simpleton} takes the locks and we only change the
+ * stripes that it holds. Every change first saves the stripe for the
+ * running audit, see {@link AuditSnapshot}.
+ */
+final class StripedBalance {
+    private final Stripe[] stripes;
+    private final int mask;
+
+    /**
+     * Set up a new striped balance.
+     *
+     * @param count
+     *            The number of stripes, a power of two.
+     * @param balance
+     *            The balance to start with, which we spread over the
+     *            stripes.
+     * @param epoch
+     *            The audit epoch in which that balance was set.
+     */
+    StripedBalance(final int count, final int balance, final int epoch) {
+        super();
+
+        stripes = new Stripe[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new Stripe();
+            stripes[i].epoch = epoch;
+        }
+        mask = count - 1;
+        spread(balance);
+    }
+
+    /**
+     * @return The home stripe of the calling thread, the lock to hold for
+     *         {@link #credit(int, int, AuditSnapshot)} and
+     *         {@link #debit(int, int, AuditSnapshot)}.
+     */
+    Stripe home() {
+        return stripes[(int) Thread.currentThread().getId() & mask];
+    }
+
+    /**
+     * Add money to the home stripe, or take it out unconditionally if the
+     * amount is negative. The caller holds the home stripe.
+     */
+    void credit(final int accountId, final int amount,
+            final AuditSnapshot current) {
+        final Stripe stripe = home();
+        stripe.save(accountId, current);
+        stripe.balance += amount;
+    }
+
+    /**
+     * Take money out of the home stripe, but only if it holds enough. The
+     * caller holds the home stripe.
+     *
+     * @return <code>true</code> if the money was taken, <code>false</code>
+     *         if the caller should try again with {@link #whole(Supplier)}
+     *         and {@link #debitAll(int, int, AuditSnapshot)}.
+     */
+    boolean debit(final int accountId, final int amount,
+            final AuditSnapshot current) {
+        final Stripe stripe = home();
+        if (stripe.balance < amount) {
+            return false;
+        }
+        stripe.save(accountId, current);
+        stripe.balance -= amount;
+        return true;
+    }
+
+    /**
+     * Take money out of the balance as a whole, but only if there is
+     * enough. The caller holds all stripes.
+     *
+     * @return <code>true</code> if the money was taken, <code>false</code>
+     *         if the balance was less than the amount.
+     */
+    boolean debitAll(final int accountId, final int amount,
+            final AuditSnapshot current) {
+        final int total = total();
+        if (total < amount) {
+            return false;
+        }
+        for (final Stripe stripe : stripes) {
+            stripe.save(accountId, current);
+        }
+        spread(total - amount);
+        return true;
+    }
+
+    /**
+     * Save the stripes that did not change since the audit began, one at a
+     * time, so that no transfer waits for more than a stripe.
+     *
+     * @return The sum of the balances of those stripes.
+     */
+    long save(final AuditSnapshot current) {
+        long saved = 0L;
+        for (final Stripe stripe : stripes) {
+            synchronized (stripe) {
+                if (stripe.epoch != current.epoch) {
+                    stripe.epoch = current.epoch;
+                    saved += stripe.balance;
+                }
+            }
+        }
+        return saved;
+    }
+
+    /**
+     * @return The sum of all stripes.
+     */
+    int sum() {
+        return whole(this::total);
+    }
+
+    /**
+     * Replace the balance outright, while we restore the ledger.
+     */
+    void set(final int balance) {
+        whole(() -> {
+            spread(balance);
+            return null;
+        });
+    }
+
+    /**
+     * Lock all stripes, in order, and run a function. Everyone who holds
+     * more than one stripe took them in this order, so this cannot deadlock.
+     */
+    <T> T whole(final Supplier<T> function) {
+        return whole(0, function);
+    }
+
+    private <T> T whole(final int stripe, final Supplier<T> function) {
+        synchronized (stripes[stripe]) {
+            return stripe < mask ? whole(stripe + 1, function)
+                    : function.get();
+        }
+    }
+
+    private int total() {
+        int total = 0;
+        for (final Stripe stripe : stripes) {
+            total += stripe.balance;
+        }
+        return total;
+    }
+
+    private void spread(final int total) {
+        final int share = total / stripes.length;
+        for (final Stripe stripe : stripes) {
+            stripe.balance = share;
+        }
+        stripes[0].balance += total - share * stripes.length;
+    }
+}
+
+/**
+ * A single stripe, padded like {@link Sequence} so that no two stripes share
+ * a cache line.
+ */
+final class Stripe extends StripeValue {
+    protected long p9, p10, p11, p12, p13, p14, p15;
+}
+
+abstract class StripePadding {
+    protected long p1, p2, p3, p4, p5, p6, p7;
+}
+
+abstract class StripeValue extends StripePadding {
+    // guarded by the stripe's monitor
+    protected int balance;
+    protected int epoch; // in which the balance last changed
+
+    /**
+     * Save the balance for the running audit, if it is the first change in
+     * the audit's epoch.
+     */
+    void save(final int accountId, final AuditSnapshot current) {
+        if (epoch != current.epoch) {
+            epoch = current.epoch;
+            current.save(accountId, balance);
+        }
+    }
+}
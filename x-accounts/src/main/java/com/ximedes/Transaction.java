@@ -1,7 +1,9 @@
 package com.ximedes;
 
 /**
- * The transaction DTO.
+ * The transaction DTO. All fields are mutable, so that one instance can be
+ * reused as a flyweight to read many transfers through
+ * {@link API#getTransfer(int, Transaction)}.
  * 
  * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
  */
@@ -17,7 +19,7 @@ public class Transaction {
         this.status = status;
     }
 
-    public final int transactionId;
+    public int transactionId;
     public int from;
     public int to;
     public int amount;
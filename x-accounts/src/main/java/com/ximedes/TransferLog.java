@@ -0,0 +1,88 @@
+package com.ximedes;
+
+import static com.ximedes.Segments.SEGMENT_SIZE;
+import static com.ximedes.Segments.offset;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * The log of all transfers, stored as packed primitive records rather than as
+ * one {@link Transaction} object per transfer. Each record is four ints in a
+ * segment: from, to, amount and status. That saves the object header and the
+ * reference per transfer and, more importantly, leaves the garbage collector
+ * with a handful of big primitive arrays to scan instead of millions of small
+ * objects.
+ * <p>
+ * Records are published safely. The writer stores the from, to and amount
+ * fields first and then the status, all with release semantics. A reader that
+ * finds a status with acquire semantics is therefore guaranteed to see the
+ * rest of the record complete. A status of zero means nothing was written
+ * yet, so we store the status as its ordinal plus one.
+ */
+final class TransferLog {
+    private static final int FROM = 0;
+    private static final int TO = 1;
+    private static final int AMOUNT = 2;
+    private static final int STATUS = 3;
+    private static final int RECORD_SIZE = 4; // ints
+
+    private static final Status[] STATUSES = Status.values();
+
+    private final Segments<AtomicIntegerArray> records = new Segments<>(
+            first -> new AtomicIntegerArray(SEGMENT_SIZE * RECORD_SIZE));
+
+    /**
+     * Record a transfer. Each transfer identifier must only be written by a
+     * single thread, which is the one that claimed that identifier.
+     */
+    void write(final int transactionId, final int from, final int to,
+            final int amount, final Status status) {
+        final AtomicIntegerArray segment = records.segment(transactionId);
+        final int record = offset(transactionId) * RECORD_SIZE;
+
+        segment.lazySet(record + FROM, from);
+        segment.lazySet(record + TO, to);
+        segment.lazySet(record + AMOUNT, amount);
+        segment.lazySet(record + STATUS, status.ordinal() + 1);
+    }
+
+    /**
+     * Change the status of a transfer that was recorded before. Readers see
+     * either the old status or the new one, with the same rest of the
+     * record.
+     */
+    void resolve(final int transactionId, final Status status) {
+        final AtomicIntegerArray segment = records.segment(transactionId);
+        segment.lazySet(offset(transactionId) * RECORD_SIZE + STATUS,
+                status.ordinal() + 1);
+    }
+
+    /**
+     * Read a transfer into a caller-supplied transaction object. This is the
+     * flyweight path: hot readers such as the HTTP handlers keep one
+     * transaction object around and read every transfer through it.
+     *
+     * @return The transaction object that was passed in, now filled with the
+     *         transfer, or <code>null</code> if there is no such transfer.
+     */
+    Transaction read(final int transactionId, final Transaction into) {
+        final AtomicIntegerArray segment = records
+                .segmentIfPresent(transactionId);
+        if (segment == null) {
+            return null;
+        }
+
+        final int record = offset(transactionId) * RECORD_SIZE;
+        final int status = segment.get(record + STATUS);
+        if (status == 0) {
+            return null;
+        }
+
+        into.transactionId = transactionId;
+        into.from = segment.get(record + FROM);
+        into.to = segment.get(record + TO);
+        into.amount = segment.get(record + AMOUNT);
+        into.status = STATUSES[status - 1];
+        return into;
+    }
+}
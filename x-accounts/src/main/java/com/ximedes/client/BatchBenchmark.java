@@ -0,0 +1,95 @@
+package com.ximedes.client;
+
+import static java.lang.Math.min;
+import static java.lang.System.out;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.sun.management.OperatingSystemMXBean;
+
+/**
+ * Compare making the consumer to merchant payments one request per transfer
+ * with making them in batches through <code>POST /transfers</code>. For each
+ * batch size we report the throughput and the CPU time that this client
+ * spent per transfer. Point it at a running server that is not
+ * partitioned.
+ */
+public class BatchBenchmark {
+    private static final int THREADS = 10;
+    private static final int[] BATCH_SIZES = { 1, 10, 100, 1000 };
+
+    private static final int MERCHANTS = 30;
+    private static final int CONSUMERS = 3000;
+    private static final int PAYMENTS = 12 * CONSUMERS;
+
+    /**
+     * Run the benchmark.
+     *
+     * @param args
+     *            The base URL of the server, defaults to
+     *            <code>http://localhost:8080/</code>, optionally followed by
+     *            the batch sizes to compare.
+     * @throws Exception
+     *             When the benchmark failed.
+     */
+    public static void main(final String[] args) throws Exception {
+        final HttpApiClient api = new HttpApiClient(
+                args.length == 0 ? "http://localhost:8080/" : args[0],
+                THREADS, THREADS);
+
+        final int[] merchants = new int[MERCHANTS];
+        for (int i = 0; i < MERCHANTS; i++) {
+            merchants[i] = api.createAccount(0);
+        }
+        final int[] consumers = new int[CONSUMERS];
+        for (int i = 0; i < CONSUMERS; i++) {
+            consumers[i] = api.createAccount(0);
+        }
+
+        final OperatingSystemMXBean os = (OperatingSystemMXBean) ManagementFactory
+                .getOperatingSystemMXBean();
+        out.println("batch size     tx/s  client cpu us/tx");
+        final int[] batchSizes = args.length < 2 ? BATCH_SIZES
+                : new int[args.length - 1];
+        for (int i = 1; i < args.length; i++) {
+            batchSizes[i - 1] = Integer.parseInt(args[i]);
+        }
+        for (final int batchSize : batchSizes) {
+            final long cpuBefore = os.getProcessCpuTime();
+            final long nanos = LedgerBenchmark.inParallel(THREADS, PAYMENTS,
+                    (first, last) -> {
+                        final ThreadLocalRandom random = ThreadLocalRandom
+                                .current();
+                        for (int i = first; i < last; i += batchSize) {
+                            final int size = min(batchSize, last - i);
+                            final int[] from = new int[size];
+                            final int[] to = new int[size];
+                            final int[] amount = new int[size];
+                            for (int j = 0; j < size; j++) {
+                                from[j] = consumers[random.nextInt(CONSUMERS)];
+                                to[j] = merchants[random.nextInt(MERCHANTS)];
+                                amount[j] = 1;
+                            }
+
+                            if (size == 1) {
+                                api.transfer(from[0], to[0], amount[0]);
+                            } else {
+                                final int[] ids = api.transfers(from, to,
+                                        amount);
+                                assertEquals(from[size - 1], api
+                                        .getTransfer(ids[size - 1]).from);
+                            }
+                        }
+                    });
+            final long cpu = os.getProcessCpuTime() - cpuBefore;
+
+            out.printf("%10d %8d %17d%n", batchSize,
+                    PAYMENTS * SECONDS.toNanos(1) / nanos,
+                    NANOSECONDS.toMicros(cpu) / PAYMENTS);
+        }
+    }
+}
@@ -0,0 +1,341 @@
+package com.ximedes.client;
+
+import static com.ximedes.BinaryProtocol.COUNT_CENTS;
+import static com.ximedes.BinaryProtocol.CREATE_ACCOUNT;
+import static com.ximedes.BinaryProtocol.GET_ACCOUNT;
+import static com.ximedes.BinaryProtocol.GET_TRANSFER;
+import static com.ximedes.BinaryProtocol.MAX_FRAME_SIZE;
+import static com.ximedes.BinaryProtocol.NOT_FOUND;
+import static com.ximedes.BinaryProtocol.PING;
+import static com.ximedes.BinaryProtocol.TRANSFER;
+import static com.ximedes.BinaryProtocol.requestSize;
+import static com.ximedes.BinaryProtocol.responseSize;
+import static com.ximedes.utils.SneakyThrows.sneakyThrow;
+import static java.lang.Integer.MAX_VALUE;
+import static java.lang.System.out;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import com.ximedes.API;
+import com.ximedes.Account;
+import com.ximedes.BinaryProtocol;
+import com.ximedes.Status;
+import com.ximedes.Transaction;
+
+/**
+ * An API client that speaks the {@link BinaryProtocol}. All threads share a
+ * few connections: a calling thread writes its request, tagged with a fresh
+ * request identifier, and parks until the reader thread of the connection
+ * finds the response with that identifier. This way ten threads need no
+ * more than a single connection, and the server gets their requests in
+ * batches.
+ * <p>
+ * The client talks to a single node. It does not route by partition like
+ * the {@link HttpApiClient} does. The protocol has no batches of transfers,
+ * so we send the transfers of a batch as single requests, back to back on
+ * one connection, and only then wait for their responses.
+ */
+class BinaryApiClient implements API {
+    private static final Status[] STATUSES = Status.values();
+
+    private final Connection[] connections;
+    private final AtomicInteger nextConnection = new AtomicInteger(0);
+    private final AtomicInteger nextRequestId = new AtomicInteger(0);
+
+    /**
+     * A request that waits for its response. The reader thread fills in the
+     * results before it sets <code>done</code>.
+     */
+    private static final class Call {
+        final Thread caller = Thread.currentThread();
+        byte type;
+        int a;
+        int b;
+        int c;
+        byte status;
+        IOException failure;
+        volatile boolean done = false;
+    }
+
+    /**
+     * A connection to the server, with the thread that reads its responses.
+     */
+    private static final class Connection implements Runnable {
+        private final Socket socket;
+        private final OutputStream os;
+        private final ByteBuffer frame = ByteBuffer.allocate(MAX_FRAME_SIZE);
+        private final Map<Integer, Call> calls = new ConcurrentHashMap<>();
+        private volatile IOException failure = null;
+
+        Connection(final String host, final int port) throws IOException {
+            super();
+
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            os = socket.getOutputStream();
+        }
+
+        void send(final Call call, final byte type, final int requestId,
+                final int a, final int b, final int c) {
+            calls.put(requestId, call);
+            // the reader fails all calls that it knows of when the
+            // connection breaks, and we might have been just too late
+            if (failure != null) {
+                calls.remove(requestId);
+                throw sneakyThrow(failure);
+            }
+
+            final int size = requestSize(type);
+            synchronized (this) {
+                frame.clear();
+                frame.put((byte) (size - 1)).put(type).putInt(requestId);
+                if (frame.position() < size) {
+                    frame.putInt(a);
+                }
+                if (frame.position() < size) {
+                    frame.putInt(b).putInt(c);
+                }
+                try {
+                    os.write(frame.array(), 0, size);
+                } catch (IOException e) {
+                    calls.remove(requestId);
+                    throw sneakyThrow(e);
+                }
+            }
+        }
+
+        /**
+         * Read the responses and hand them to the threads that wait for
+         * them.
+         *
+         * @see java.lang.Runnable#run()
+         */
+        @Override
+        public void run() {
+            try (final DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(socket.getInputStream(),
+                            64 * 1024))) {
+                for (;;) {
+                    receive(in);
+                }
+            } catch (IOException e) {
+                failure = e;
+                for (final Integer requestId : calls.keySet()) {
+                    final Call call = calls.remove(requestId);
+                    if (call != null) {
+                        call.failure = e;
+                        call.done = true;
+                        LockSupport.unpark(call.caller);
+                    }
+                }
+            }
+        }
+
+        private void receive(final DataInputStream in) throws IOException {
+            final int length = in.readUnsignedByte();
+            final byte type = in.readByte();
+            final int requestId = in.readInt();
+            if (length + 1 != responseSize(type)) {
+                throw new ProtocolException(
+                        "bad frame of type " + type + " and length " + length);
+            }
+
+            final Call call = calls.remove(requestId);
+            if (call == null) {
+                throw new ProtocolException(
+                        "response to unknown request " + requestId);
+            }
+            call.type = type;
+            if (length >= 9) {
+                call.a = in.readInt();
+            }
+            if (length >= 13) {
+                call.b = in.readInt();
+            }
+            if (length >= 17) {
+                call.c = in.readInt();
+                call.status = in.readByte();
+            }
+            call.done = true;
+            LockSupport.unpark(call.caller);
+        }
+    }
+
+    /**
+     * Set up a new binary API client and connect to the server.
+     *
+     * @param host
+     *            The host that the server runs on.
+     * @param port
+     *            The port that the server serves the binary protocol on.
+     * @param connections
+     *            The number of connections to share between the threads
+     *            that use this client.
+     * @throws IOException
+     *             When we could not connect.
+     */
+    public BinaryApiClient(final String host, final int port,
+            final int connections) throws IOException {
+        super();
+
+        out.println("Connecting to " + host + ":" + port);
+        out.println("Connections " + connections);
+
+        this.connections = new Connection[connections];
+        for (int i = 0; i < connections; i++) {
+            this.connections[i] = new Connection(host, port);
+            final Thread reader = new Thread(this.connections[i],
+                    "binary-client-" + i);
+            reader.setDaemon(true);
+            reader.start();
+        }
+    }
+
+    /**
+     * Send a request and wait for its response.
+     */
+    private Call call(final byte type, final int a, final int b,
+            final int c) {
+        final Call call = new Call();
+        connection().send(call, type, nextRequestId.getAndIncrement(), a, b,
+                c);
+        return await(call);
+    }
+
+    private Connection connection() {
+        return connections[(nextConnection.getAndIncrement() & MAX_VALUE)
+                % connections.length];
+    }
+
+    /**
+     * Wait for the response to a request that we sent.
+     */
+    private static Call await(final Call call) {
+        while (!call.done) {
+            LockSupport.park(call);
+        }
+        if (call.failure != null) {
+            throw sneakyThrow(call.failure);
+        }
+        return call;
+    }
+
+    /**
+     * @see com.ximedes.API#createAccount(int)
+     */
+    @Override
+    public int createAccount(final int overdraft) {
+        return call(CREATE_ACCOUNT, overdraft, 0, 0).a;
+    }
+
+    /**
+     * @see com.ximedes.API#getAccount(int)
+     */
+    @Override
+    public Account getAccount(final int accountId) {
+        final Call call = call(GET_ACCOUNT, accountId, 0, 0);
+        if (call.type == NOT_FOUND) {
+            return null;
+        }
+        return new Account(accountId, call.a, call.b);
+    }
+
+    /**
+     * @see com.ximedes.API#transfer(int, int, int)
+     */
+    @Override
+    public int transfer(final int from, final int to, final int amount) {
+        return call(TRANSFER, from, to, amount).a;
+    }
+
+    /**
+     * The transfers of the batch are single requests, so other threads may
+     * make transfers in between and the identifiers of the batch need not
+     * be consecutive. Use {@link #transfers(int[], int[], int[])} to learn
+     * all of them.
+     *
+     * @see com.ximedes.API#transfer(int[], int[], int[])
+     */
+    @Override
+    public int transfer(final int[] from, final int[] to, final int[] amount) {
+        return from.length == 0 ? -1 : transfers(from, to, amount)[0];
+    }
+
+    /**
+     * Send all transfers of the batch before we wait for the first
+     * response, so that the batch costs us a single round trip and the
+     * server gets it in as few reads as the connection allows. We send them
+     * all on one connection, which the server serves in order, so the
+     * transfers are made in the order of the arrays.
+     *
+     * @see com.ximedes.API#transfers(int[], int[], int[])
+     */
+    @Override
+    public int[] transfers(final int[] from, final int[] to,
+            final int[] amount) {
+        if (to.length != from.length || amount.length != from.length) {
+            throw new IllegalArgumentException("batch of " + from.length
+                    + " from, " + to.length + " to and " + amount.length
+                    + " amount values");
+        }
+
+        final Connection connection = connection();
+        final Call[] calls = new Call[from.length];
+        for (int i = 0; i < calls.length; i++) {
+            calls[i] = new Call();
+            connection.send(calls[i], TRANSFER,
+                    nextRequestId.getAndIncrement(), from[i], to[i],
+                    amount[i]);
+        }
+
+        final int[] ids = new int[calls.length];
+        for (int i = 0; i < calls.length; i++) {
+            ids[i] = await(calls[i]).a;
+        }
+        return ids;
+    }
+
+    /**
+     * @see com.ximedes.API#getTransfer(int)
+     */
+    @Override
+    public Transaction getTransfer(final int transferId) {
+        final Call call = call(GET_TRANSFER, transferId, 0, 0);
+        if (call.type == NOT_FOUND) {
+            return null;
+        }
+        return new Transaction(transferId, call.a, call.b, call.c,
+                STATUSES[call.status]);
+    }
+
+    /**
+     * @see com.ximedes.API#ping()
+     */
+    @Override
+    public void ping() {
+        call(PING, 0, 0, 0);
+    }
+
+    /**
+     * @see com.ximedes.API#countCentsInTheSystem()
+     */
+    @Override
+    public int countCentsInTheSystem() {
+        final Call call = call(COUNT_CENTS, 0, 0, 0);
+        if (call.type == NOT_FOUND) {
+            throw new ArithmeticException(
+                    "the cents in the system do not fit in an int");
+        }
+        return call.a;
+    }
+}
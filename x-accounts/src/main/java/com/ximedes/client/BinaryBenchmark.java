@@ -0,0 +1,114 @@
+package com.ximedes.client;
+
+import static java.lang.System.out;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.sun.management.OperatingSystemMXBean;
+import com.ximedes.API;
+import com.ximedes.BinaryProtocol;
+
+/**
+ * Compare making the consumer to merchant payments over HTTP with making
+ * them over the {@link BinaryProtocol}. For each protocol we report the
+ * throughput, the CPU time that this client spent per transfer and the
+ * bytes that it sent and received per transfer. We read the bytes from
+ * <code>/proc/self/io</code>, so they are only there on Linux. Both clients
+ * are used by the same number of threads, but the binary one multiplexes
+ * them over a single connection.
+ * <p>
+ * Start the server with <code>-Dx-accounts.binary.port=8081</code> and run
+ * this with the host and the two ports, for example
+ * <code>BinaryBenchmark localhost 8080 8081</code>.
+ */
+public class BinaryBenchmark {
+    private static final int THREADS = 10;
+    private static final int RUNS = 3;
+
+    private static final int MERCHANTS = 30;
+    private static final int CONSUMERS = 3000;
+    private static final int PAYMENTS = 12 * CONSUMERS;
+
+    /**
+     * Run the benchmark.
+     *
+     * @param args
+     *            The host, HTTP port and binary port of the server, default
+     *            to <code>localhost 8080 8081</code>.
+     * @throws Exception
+     *             When the benchmark failed.
+     */
+    public static void main(final String[] args) throws Exception {
+        final String host = args.length < 1 ? "localhost" : args[0];
+        final API http = new HttpApiClient("http://" + host + ":"
+                + (args.length < 2 ? "8080" : args[1]) + "/", THREADS,
+                THREADS);
+        final API binary = new BinaryApiClient(host,
+                args.length < 3 ? 8081 : Integer.parseInt(args[2]), 1);
+
+        final int[] merchants = new int[MERCHANTS];
+        for (int i = 0; i < MERCHANTS; i++) {
+            merchants[i] = binary.createAccount(0);
+        }
+        final int[] consumers = new int[CONSUMERS];
+        for (int i = 0; i < CONSUMERS; i++) {
+            consumers[i] = binary.createAccount(0);
+        }
+
+        out.println("protocol     tx/s  client cpu us/tx  bytes/tx");
+        for (int run = 0; run < RUNS; run++) {
+            measure("http", http, merchants, consumers);
+            measure("binary", binary, merchants, consumers);
+        }
+    }
+
+    private static void measure(final String protocol, final API api,
+            final int[] merchants, final int[] consumers) throws Exception {
+        final OperatingSystemMXBean os = (OperatingSystemMXBean) ManagementFactory
+                .getOperatingSystemMXBean();
+        final long cpuBefore = os.getProcessCpuTime();
+        final long bytesBefore = bytesReadAndWritten();
+        final long nanos = LedgerBenchmark.inParallel(THREADS, PAYMENTS,
+                (first, last) -> {
+                    final ThreadLocalRandom random = ThreadLocalRandom
+                            .current();
+                    for (int i = first; i < last; i++) {
+                        api.transfer(consumers[random.nextInt(CONSUMERS)],
+                                merchants[random.nextInt(MERCHANTS)], 1);
+                    }
+                });
+        final long cpu = os.getProcessCpuTime() - cpuBefore;
+        final long bytes = bytesReadAndWritten() - bytesBefore;
+
+        out.printf("%-8s %8d %17d %9s%n", protocol,
+                PAYMENTS * SECONDS.toNanos(1) / nanos,
+                NANOSECONDS.toMicros(cpu) / PAYMENTS,
+                bytesBefore < 0L ? "-" : Long.toString(bytes / PAYMENTS));
+    }
+
+    /**
+     * @return The bytes that this process read and wrote, sockets included,
+     *         or -1 if we cannot tell.
+     */
+    private static long bytesReadAndWritten() {
+        try (final BufferedReader io = new BufferedReader(
+                new FileReader("/proc/self/io"))) {
+            long bytes = 0L;
+            String line;
+            while ((line = io.readLine()) != null) {
+                if (line.startsWith("rchar:") || line.startsWith("wchar:")) {
+                    bytes += Long.parseLong(line.substring(6).trim());
+                }
+            }
+            return bytes;
+        } catch (IOException e) {
+            return -1L;
+        }
+    }
+}
@@ -174,9 +174,8 @@ public class ClientMain {
     private static void seedConsumerAccountsFromBank(final int bankAccount,
             final Collection<Integer> consumerAccounts) {
         for (Integer consumerAccount : consumerAccounts) {
-            final int transferId = api.transfer(bankAccount, consumerAccount,
-                    10);
-            final Transaction transaction = api.getTransfer(transferId);
+            final Transaction transaction = api
+                    .transferWithResult(bankAccount, consumerAccount, 10);
 
             assertEquals(bankAccount, transaction.from);
             assertEquals(consumerAccount.intValue(), transaction.to);
@@ -198,9 +197,8 @@ public class ClientMain {
                     .get(random.nextInt(consumerAccounts.size()));
             final int merchantAccount = merchantAccounts
                     .get(random.nextInt(merchantAccounts.size()));
-            final int transferId = api.transfer(consumerAccount,
-                    merchantAccount, 1);
-            final Transaction transaction = api.getTransfer(transferId);
+            final Transaction transaction = api
+                    .transferWithResult(consumerAccount, merchantAccount, 1);
 
             assertNotEquals(0, transaction.transactionId);
             assertEquals(consumerAccount, transaction.from);
@@ -16,6 +16,9 @@ public class ClientSlave {
 
 	private static final boolean trace = false;
 
+	// transfers per POST /transfers in the consumer to merchant phase
+	private static final int BATCH_SIZE = 100;
+
 	private final API api = new HttpApiClient("http://172.31.3.73:8080/",
 											  110, 110);
 
@@ -136,16 +139,33 @@ public class ClientSlave {
 			if (trace) {
 				out.println("in random order 12 transfers are made from each consumer to the merchant");
 			}
+			// we send these in batches, which saves us a request and a
+			// response with all their headers for every single transfer
+			final int[] from = new int[BATCH_SIZE];
+			final int[] to = new int[BATCH_SIZE];
+			final int[] amount = new int[BATCH_SIZE];
+			int batched = 0;
 			while (!toTransfers.isEmpty()) {
 				// toTransfer.size() is ok because it is exclusive
 				int nextIndex = ThreadLocalRandom.current().nextInt(0, toTransfers.size());
 				ToTransfer toTransfer = toTransfers.get(nextIndex);
-				api.transfer(toTransfer.consumerAccount, merchantAccount, 1);
+				from[batched] = toTransfer.consumerAccount;
+				to[batched] = merchantAccount;
+				amount[batched] = 1;
+				batched++;
 				toTransfer.toTransferRemaining--;
 
 				if (toTransfer.toTransferRemaining == 0) {
 					toTransfers.remove(nextIndex);
 				}
+
+				if (batched == BATCH_SIZE) {
+					api.transfer(from, to, amount);
+					batched = 0;
+				}
+			}
+			if (batched > 0) {
+				api.transfer(Arrays.copyOf(from, batched), Arrays.copyOf(to, batched), Arrays.copyOf(amount, batched));
 			}
 		}
 
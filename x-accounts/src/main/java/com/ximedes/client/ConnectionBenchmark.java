@@ -0,0 +1,277 @@
+package com.ximedes.client;
+
+import static java.lang.Math.ceil;
+import static java.lang.Math.max;
+import static java.lang.System.nanoTime;
+import static java.lang.System.out;
+import static java.nio.channels.SelectionKey.OP_READ;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * See how the server copes with many keep-alive connections. We open the
+ * given number of connections and then keep every one of them busy for a
+ * while: send a <code>GET /ping</code>, wait for the answer, send the next.
+ * We report the throughput, the response times and how many of the
+ * connections got any answer at all. A server that runs a thread per
+ * connection only serves as many connections as it has threads and leaves
+ * the others waiting.
+ * <p>
+ * A single thread drives all connections through a selector, so the client
+ * does not need thousands of threads either. Run it with the host, port and
+ * the connection counts to try, for example
+ * <code>ConnectionBenchmark localhost 8080 110 1000 10000</code>. Between
+ * the port and the connection counts you may put these options:
+ *
+ * <pre>
+ *   transfer     post transfers between two fresh accounts instead of
+ *                pinging, so that the ledger is part of the picture
+ *   pipeline=N   send N requests at a time on each connection, without
+ *                waiting for the answers in between (1)
+ *   timeout=MS   tell the server that we wait MS milliseconds for each
+ *                answer, after which it may drop the request (none)
+ * </pre>
+ *
+ * We also report how many responses we got per read, which shows how well
+ * the server batches its responses to pipelined requests, and how many
+ * connections the server closed on us, for example because it was too busy
+ * to take them. The process needs
+ * a file descriptor per connection, so check <code>ulimit -n</code>.
+ */
+public class ConnectionBenchmark {
+    private static final int[] CONNECTIONS = { 110, 1000, 10000 };
+    private static final long SECONDS_PER_RUN = 10L;
+
+    private static final byte[] PING = "GET /ping HTTP/1.1\nHost: localhost\n\n"
+            .getBytes();
+
+    /**
+     * The state of one connection.
+     */
+    private static final class Connection {
+        final ByteBuffer in = ByteBuffer.allocate(4096);
+        final ByteBuffer requests;
+        long sent;
+        int pending;
+        int responses;
+        boolean closed = false;
+
+        Connection(final byte[] requests) {
+            super();
+
+            this.requests = ByteBuffer.wrap(requests);
+        }
+    }
+
+    /**
+     * Run the benchmark.
+     *
+     * @param args
+     *            The host and port of the server, defaults to
+     *            <code>localhost 8080</code>, optionally followed by the
+     *            options and the numbers of connections to try.
+     * @throws Exception
+     *             When the benchmark failed.
+     */
+    public static void main(final String[] args) throws Exception {
+        final InetSocketAddress server = new InetSocketAddress(
+                args.length < 1 ? "localhost" : args[0],
+                args.length < 2 ? 8080 : Integer.parseInt(args[1]));
+
+        byte[] request = PING;
+        int pipeline = 1;
+        final List<Integer> connectionCounts = new ArrayList<>();
+        for (int i = 2; i < args.length; i++) {
+            if ("transfer".equals(args[i])) {
+                request = transferRequest(server);
+            } else if (args[i].startsWith("pipeline=")) {
+                pipeline = Integer.parseInt(args[i].substring(9));
+            } else if (args[i].startsWith("timeout=")) {
+                // right after the request line
+                request = new String(request).replaceFirst("\n",
+                        "\nX-Timeout-Millis: " + args[i].substring(8) + "\n")
+                        .getBytes();
+            } else {
+                connectionCounts.add(Integer.parseInt(args[i]));
+            }
+        }
+        if (connectionCounts.isEmpty()) {
+            for (final int connections : CONNECTIONS) {
+                connectionCounts.add(connections);
+            }
+        }
+
+        final byte[] requests = new byte[request.length * pipeline];
+        for (int i = 0; i < pipeline; i++) {
+            System.arraycopy(request, 0, requests, i * request.length,
+                    request.length);
+        }
+
+        out.println("connections pipeline   served   closed    req/s"
+                + "  resp/read  p50 us  p99 us  p99.9 us");
+        for (final int connections : connectionCounts) {
+            run(server, connections, pipeline, requests);
+        }
+    }
+
+    private static byte[] transferRequest(final InetSocketAddress server) {
+        final HttpApiClient api = new HttpApiClient("http://"
+                + server.getHostString() + ":" + server.getPort() + "/", 1,
+                1);
+        final String json = "{\"from\":\"" + api.createAccount(0)
+                + "\",\"to\":\"" + api.createAccount(0) + "\",\"amount\":1}";
+        return ("POST /transfer HTTP/1.1\nHost: localhost\n"
+                + "Content-Type: application/json\nContent-Length: "
+                + json.length() + "\n\n" + json).getBytes();
+    }
+
+    private static void run(final InetSocketAddress server,
+            final int connections, final int pipeline, final byte[] requests)
+            throws IOException {
+        final Selector selector = Selector.open();
+        final SocketChannel[] channels = new SocketChannel[connections];
+        final Connection[] states = new Connection[connections];
+        for (int i = 0; i < connections; i++) {
+            channels[i] = SocketChannel.open(server);
+            channels[i].configureBlocking(false);
+            states[i] = new Connection(requests);
+            channels[i].register(selector, OP_READ, states[i]);
+        }
+
+        long[] latencies = new long[1 << 20];
+        int responses = 0;
+        long reads = 0L;
+        final long start = nanoTime();
+        for (int i = 0; i < connections; i++) {
+            send(channels[i], states[i], pipeline, start);
+        }
+        final long end = start + SECONDS.toNanos(SECONDS_PER_RUN);
+
+        long now = start;
+        while (now < end) {
+            selector.select(100L);
+            now = nanoTime();
+
+            final Iterator<SelectionKey> keys = selector.selectedKeys()
+                    .iterator();
+            while (keys.hasNext()) {
+                final SelectionKey key = keys.next();
+                keys.remove();
+
+                final SocketChannel channel = (SocketChannel) key.channel();
+                final Connection connection = (Connection) key.attachment();
+                if (connection.closed || read(channel, connection) == -1) {
+                    connection.closed = true;
+                    key.cancel();
+                    continue;
+                }
+                reads++;
+
+                final int complete = complete(connection.in);
+                for (int i = 0; i < complete; i++) {
+                    if (responses == latencies.length) {
+                        latencies = Arrays.copyOf(latencies, responses * 2);
+                    }
+                    latencies[responses++] = now - connection.sent;
+                }
+                connection.responses += complete;
+                connection.pending -= complete;
+
+                if (connection.pending == 0) {
+                    send(channel, connection, pipeline, now);
+                }
+            }
+        }
+
+        int served = 0;
+        int closed = 0;
+        for (final Connection connection : states) {
+            if (connection.closed) {
+                closed++;
+            } else if (connection.responses > 0) {
+                served++;
+            }
+        }
+        for (final SocketChannel channel : channels) {
+            channel.close();
+        }
+        selector.close();
+
+        Arrays.sort(latencies, 0, responses);
+        out.printf("%11d %8d %8d %8d %8d %10.1f %7d %7d %9d%n", connections,
+                pipeline, served, closed,
+                responses * SECONDS.toNanos(1) / (now - start),
+                (double) responses / max(reads, 1L),
+                percentile(latencies, responses, 50.0),
+                percentile(latencies, responses, 99.0),
+                percentile(latencies, responses, 99.9));
+    }
+
+    private static void send(final SocketChannel channel,
+            final Connection connection, final int pipeline,
+            final long now) {
+        connection.requests.rewind();
+        connection.sent = now;
+        connection.pending = pipeline;
+        try {
+            while (connection.requests.hasRemaining()) {
+                channel.write(connection.requests);
+            }
+        } catch (IOException e) {
+            // the server closed the connection before we got to send
+            connection.closed = true;
+        }
+    }
+
+    private static int read(final SocketChannel channel,
+            final Connection connection) {
+        try {
+            return channel.read(connection.in);
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Count the complete responses in the input and keep only what is left
+     * of the next one. Neither pings nor transfers have a body in the
+     * response, so a response is complete at the end of its headers.
+     */
+    private static int complete(final ByteBuffer in) {
+        final byte[] bytes = in.array();
+        final int length = in.position();
+        int complete = 0;
+        int end = 0;
+        for (int i = 1; i < length; i++) {
+            if (bytes[i] == '\n' && (bytes[i - 1] == '\n' || (i > 2
+                    && bytes[i - 1] == '\r' && bytes[i - 2] == '\n'))) {
+                complete++;
+                end = i + 1;
+            }
+        }
+
+        System.arraycopy(bytes, end, bytes, 0, length - end);
+        in.position(length - end);
+        return complete;
+    }
+
+    private static long percentile(final long[] sorted, final int count,
+            final double percentile) {
+        if (count == 0) {
+            return 0L;
+        }
+        final int index = (int) ceil(percentile / 100.0 * count) - 1;
+        return NANOSECONDS.toMicros(sorted[max(index, 0)]);
+    }
+}
@@ -0,0 +1,156 @@
+package com.ximedes.client;
+
+import static java.lang.Math.ceil;
+import static java.lang.Math.max;
+import static java.lang.System.nanoTime;
+import static java.lang.System.out;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * See how fast the server accepts new connections. This is what happens when
+ * clients reconnect in bursts, for example when their pools of keep-alive
+ * connections are full. Each thread opens a connection, sends a single
+ * <code>GET /ping</code>, waits for the answer and closes the connection,
+ * over and over. We report the connections per second, the time from
+ * connecting until the answer came in and how many connections failed.
+ * <p>
+ * Run it with the host, port and the numbers of threads to try, for example
+ * <code>ConnectionStormBenchmark localhost 8080 1 16 64</code>. Compare a
+ * server with a single acceptor to one with
+ * <code>-Dx-accounts.acceptors=4</code>.
+ */
+public class ConnectionStormBenchmark {
+    private static final int[] THREADS = { 1, 16, 64 };
+    private static final long SECONDS_PER_RUN = 10L;
+    private static final int SAMPLES = 1 << 16; // per thread
+
+    private static final byte[] PING = "GET /ping HTTP/1.1\nHost: localhost\n\n"
+            .getBytes();
+
+    /**
+     * Run the benchmark.
+     *
+     * @param args
+     *            The host and port of the server, defaults to
+     *            <code>localhost 8080</code>, optionally followed by the
+     *            numbers of threads to try.
+     * @throws Exception
+     *             When the benchmark failed.
+     */
+    public static void main(final String[] args) throws Exception {
+        final InetSocketAddress server = new InetSocketAddress(
+                args.length < 1 ? "localhost" : args[0],
+                args.length < 2 ? 8080 : Integer.parseInt(args[1]));
+        final int[] threadCounts = args.length < 3 ? THREADS
+                : new int[args.length - 2];
+        for (int i = 2; i < args.length; i++) {
+            threadCounts[i - 2] = Integer.parseInt(args[i]);
+        }
+
+        out.println("threads  connections/s  failed  p50 us  p99 us  p99.9 us");
+        for (final int threads : threadCounts) {
+            run(server, threads);
+        }
+    }
+
+    private static void run(final InetSocketAddress server, final int threads)
+            throws InterruptedException {
+        final long[][] latencies = new long[threads][SAMPLES];
+        final int[] connections = new int[threads];
+        final AtomicLong failed = new AtomicLong(0L);
+
+        final long start = nanoTime();
+        final long end = start + SECONDS.toNanos(SECONDS_PER_RUN);
+        final Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final int thread = i;
+            workers[i] = new Thread(() -> {
+                final byte[] in = new byte[256];
+                long now = nanoTime();
+                while (now < end) {
+                    try {
+                        connectAndPing(server, in);
+                        final long done = nanoTime();
+                        latencies[thread][connections[thread]++
+                                % SAMPLES] = done - now;
+                        now = done;
+                    } catch (IOException e) {
+                        failed.incrementAndGet();
+                        now = nanoTime();
+                    }
+                }
+            });
+            workers[i].start();
+        }
+        int total = 0;
+        for (int i = 0; i < threads; i++) {
+            workers[i].join();
+            total += connections[i];
+        }
+        final long nanos = nanoTime() - start;
+
+        final long[] all = new long[threads * SAMPLES];
+        int samples = 0;
+        for (int i = 0; i < threads; i++) {
+            final int n = Math.min(connections[i], SAMPLES);
+            System.arraycopy(latencies[i], 0, all, samples, n);
+            samples += n;
+        }
+        Arrays.sort(all, 0, samples);
+        out.printf("%7d %14d %7d %7d %7d %9d%n", threads,
+                total * SECONDS.toNanos(1) / nanos, failed.get(),
+                percentile(all, samples, 50.0),
+                percentile(all, samples, 99.0),
+                percentile(all, samples, 99.9));
+    }
+
+    /**
+     * Open a connection, ping and close the connection again. The ping has
+     * no body in the response, so the response is complete at the end of
+     * its headers.
+     */
+    private static void connectAndPing(final InetSocketAddress server,
+            final byte[] in) throws IOException {
+        try (final Socket socket = new Socket(server.getAddress(),
+                server.getPort())) {
+            socket.setTcpNoDelay(true);
+            final OutputStream os = socket.getOutputStream();
+            os.write(PING);
+            os.flush();
+
+            final InputStream is = socket.getInputStream();
+            int length = 0;
+            for (;;) {
+                final int read = is.read(in, length, in.length - length);
+                if (read == -1) {
+                    throw new IOException("server closed the connection");
+                }
+                length += read;
+                if (length >= 2 && in[length - 1] == '\n'
+                        && (in[length - 2] == '\n' || (length >= 3
+                                && in[length - 2] == '\r'
+                                && in[length - 3] == '\n'))) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private static long percentile(final long[] sorted, final int count,
+            final double percentile) {
+        if (count == 0) {
+            return 0L;
+        }
+        final int index = (int) ceil(percentile / 100.0 * count) - 1;
+        return NANOSECONDS.toMicros(sorted[max(index, 0)]);
+    }
+}
@@ -0,0 +1,97 @@
+package com.ximedes.client;
+
+import static com.ximedes.Ledgers.newLedger;
+import static java.lang.System.out;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.ximedes.API;
+
+/**
+ * An in-process throughput comparison of the ledgers on a workload that
+ * keeps hammering a handful of accounts. Half of the transfers come from
+ * the bank account, which has enough overdraft to never run out. The other
+ * half are payments from random consumers, of which nine in ten go to the
+ * same {@link #HOT_MERCHANTS} merchants. This is where the monitors of the
+ * {@link com.ximedes.Simpleton} and the compare-and-set loops of the
+ * {@link com.ximedes.CasLedger} fight over the same cache lines, and where
+ * the {@link com.ximedes.CombiningLedger} should shine.
+ * <p>
+ * Run it with the names of the ledgers to compare as arguments, for example
+ * <code>ContentionBenchmark simpleton cas combining</code>.
+ */
+public class ContentionBenchmark {
+    private static final int[] THREADS = { 1, 8, 32, 150 };
+
+    private static final int MERCHANTS = 300;
+    private static final int HOT_MERCHANTS = 3;
+    private static final int CONSUMERS = 300000;
+    private static final int TRANSFERS = 4 * CONSUMERS;
+    private static final int BANK_OVERDRAFT = Integer.MAX_VALUE / 2;
+
+    /**
+     * Run the benchmark.
+     *
+     * @param args
+     *            The names of the ledgers to compare, defaults to
+     *            <code>simpleton cas combining</code>.
+     * @throws Exception
+     *             When the benchmark failed.
+     */
+    public static void main(final String[] args) throws Exception {
+        final String[] ledgers = args.length == 0
+                ? new String[] { "simpleton", "cas", "combining" } : args;
+
+        out.println("ledger     threads        tx/s");
+        for (final String ledger : ledgers) {
+            for (final int threads : THREADS) {
+                run(ledger, threads);
+            }
+        }
+    }
+
+    private static void run(final String ledger, final int threads)
+            throws Exception {
+        final API api = newLedger(ledger);
+
+        final int bankAccount = api.createAccount(BANK_OVERDRAFT);
+        final int[] merchants = new int[MERCHANTS];
+        for (int i = 0; i < MERCHANTS; i++) {
+            merchants[i] = api.createAccount(0);
+        }
+        final int[] consumers = new int[CONSUMERS];
+        for (int i = 0; i < CONSUMERS; i++) {
+            consumers[i] = api.createAccount(0);
+        }
+
+        final long nanos = LedgerBenchmark.inParallel(threads, TRANSFERS,
+                (first, last) -> {
+                    final ThreadLocalRandom random = ThreadLocalRandom
+                            .current();
+                    for (int i = first; i < last; i++) {
+                        final int consumer = consumers[random
+                                .nextInt(CONSUMERS)];
+                        if (random.nextBoolean()) {
+                            api.transfer(bankAccount, consumer, 2);
+                        } else {
+                            api.transfer(consumer,
+                                    merchants[random.nextInt(10) == 0
+                                            ? random.nextInt(MERCHANTS)
+                                            : random.nextInt(HOT_MERCHANTS)],
+                                    1);
+                        }
+                    }
+                });
+
+        assertEquals(BANK_OVERDRAFT, api.countCentsInTheSystem());
+
+        out.printf("%-10s %7d %11d%n", ledger, threads,
+                TRANSFERS * SECONDS.toNanos(1) / nanos);
+
+        if (api instanceof AutoCloseable) {
+            ((AutoCloseable) api).close();
+        }
+    }
+}
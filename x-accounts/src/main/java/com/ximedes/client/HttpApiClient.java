@@ -3,10 +3,16 @@ package com.ximedes.client;
 import static com.mashape.unirest.http.Unirest.get;
 import static com.mashape.unirest.http.Unirest.post;
 import static com.ximedes.utils.SneakyThrows.sneakyThrow;
+import static java.lang.Integer.MAX_VALUE;
 import static java.lang.Integer.parseInt;
+import static java.lang.Math.max;
+import static java.lang.Math.toIntExact;
 import static java.lang.System.currentTimeMillis;
 import static java.lang.System.out;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONArray;
 import org.json.JSONObject;
 
 import com.mashape.unirest.http.HttpResponse;
@@ -15,18 +21,30 @@ import com.mashape.unirest.http.Unirest;
 import com.mashape.unirest.http.exceptions.UnirestException;
 import com.ximedes.API;
 import com.ximedes.Account;
+import com.ximedes.Partitions;
 import com.ximedes.Status;
 import com.ximedes.Transaction;
 
 /**
- * An HTTP API client.
+ * An HTTP API client. When the server is one node of a partitioned ledger,
+ * the client learns the partition map from it and sends every request
+ * straight to the node that owns the account or transfer.
+ * <p>
+ * We stop caring about an answer after {@link #CUTOFF}, so we tell the server
+ * how much of that is left in an <code>X-Timeout-Millis</code> header. It is
+ * relative, so our clocks need not agree. The server may then drop a
+ * request that it only gets to later, which we report with an
+ * {@link IllegalStateException}.
  * 
  * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
  */
 class HttpApiClient implements API {
     private static final int CUTOFF = 2500; /* milliseconds */
+    private static final String TIMEOUT = "X-Timeout-Millis";
 
     private final String baseUrl;
+    private final Partitions partitions;
+    private final AtomicInteger nextShard = new AtomicInteger(0);
 
     /**
      * Set up a new HTTP API client, specifying the base URL for the server to
@@ -50,6 +68,45 @@ class HttpApiClient implements API {
         out.println("Connecting to " + baseUrl);
         out.println("Max total " + maxTotal);
         out.println("Max per route " + maxPerRoute);
+
+        this.partitions = fetchPartitions();
+        out.println("Partitioned over " + partitions.shards() + " node(s)");
+    }
+
+    /**
+     * Ask the server for the partition map. A server that is not partitioned
+     * sends an empty list of nodes, in which case it is the only node.
+     */
+    private Partitions fetchPartitions() {
+        try {
+            final JSONArray nodes = get(baseUrl + "nodes").asJson().getBody()
+                    .getObject().getJSONArray("nodes");
+            if (nodes.length() == 0) {
+                return new Partitions(baseUrl);
+            }
+
+            final String[] urls = new String[nodes.length()];
+            for (int i = 0; i < urls.length; i++) {
+                urls[i] = nodes.getString(i);
+            }
+            return new Partitions(urls);
+        } catch (UnirestException e) {
+            throw sneakyThrow(e);
+        }
+    }
+
+    /**
+     * @return The base URL of the node that owns an account or transfer.
+     */
+    private String nodeOf(final int id) {
+        return partitions.node(partitions.shardOf(id));
+    }
+
+    /**
+     * @return The partition map that we learned from the server.
+     */
+    Partitions partitions() {
+        return partitions;
     }
 
     /**
@@ -59,11 +116,17 @@ class HttpApiClient implements API {
     public int createAccount(final int overdraft) {
         final long start = currentTimeMillis();
 
+        // new accounts are spread evenly over the shards, the first one
+        // (usually the bank account) going to the first shard
+        final int shard = (nextShard.getAndIncrement() & MAX_VALUE)
+                % partitions.shards();
         final String json = "{\"overdraft\":" + overdraft + "}";
         try {
-            final HttpResponse<JsonNode> response = post(baseUrl + "account")
-                    .header("Content-Type", "application/json").body(json)
-                    .asJson();
+            final HttpResponse<JsonNode> response = post(
+                    partitions.node(shard) + "account")
+                    .header("Content-Type", "application/json")
+                    .header(TIMEOUT, timeout(start)).body(json).asJson();
+            checkServed(response, "create account");
 
             final long responseTime = currentTimeMillis() - start;
             if (responseTime > CUTOFF) {
@@ -88,9 +151,11 @@ class HttpApiClient implements API {
         final String json = "{\"from\":\"" + from + "\",\"to\":\"" + to
                 + "\",\"amount\":" + amount + "}";
         try {
-            final HttpResponse<JsonNode> response = post(baseUrl + "transfer")
-                    .header("Content-Type", "application/json").body(json)
-                    .asJson();
+            final HttpResponse<JsonNode> response = post(
+                    nodeOf(from) + "transfer")
+                    .header("Content-Type", "application/json")
+                    .header(TIMEOUT, timeout(start)).body(json).asJson();
+            checkServed(response, "transfer");
 
             final long responseTime = currentTimeMillis() - start;
             if (responseTime > CUTOFF) {
@@ -104,6 +169,157 @@ class HttpApiClient implements API {
         }
     }
 
+    /**
+     * Post a transfer to <code>/transfer?status</code>, so that the server
+     * tells us the outcome in a <code>Transfer-Status</code> header of its
+     * answer. That saves us the <code>GET</code> of the transfer that we
+     * would otherwise need.
+     * 
+     * @see com.ximedes.API#transferWithResult(int, int, int)
+     */
+    @Override
+    public Transaction transferWithResult(final int from, final int to,
+            final int amount) {
+        final long start = currentTimeMillis();
+
+        final String json = "{\"from\":\"" + from + "\",\"to\":\"" + to
+                + "\",\"amount\":" + amount + "}";
+        try {
+            final HttpResponse<JsonNode> response = post(
+                    nodeOf(from) + "transfer?status")
+                    .header("Content-Type", "application/json")
+                    .header(TIMEOUT, timeout(start)).body(json).asJson();
+            checkServed(response, "transfer");
+
+            final long responseTime = currentTimeMillis() - start;
+            if (responseTime > CUTOFF) {
+                out.println("transfer took " + responseTime + " ms.");
+            }
+
+            final int transferId = uhmParseUriLastInteger(
+                    response.getHeaders().getFirst("Location"));
+            final String status = response.getHeaders()
+                    .getFirst("Transfer-Status");
+            if (status == null) {
+                // a server that does not know about the status yet
+                return getTransfer(transferId);
+            }
+            return new Transaction(transferId, from, to, amount,
+                    Status.valueOf(status.trim()));
+        } catch (UnirestException e) {
+            throw sneakyThrow(e);
+        }
+    }
+
+    /**
+     * Send a whole batch of transfers in one <code>POST /transfers</code>.
+     * The body is one line per transfer with the from, to and amount values
+     * separated by commas, which is about 15 bytes per transfer instead of
+     * the 400 or so that a request and response of its own cost us. The
+     * server answers with the location of the first transfer.
+     * <p>
+     * On a partitioned ledger the identifiers of the batch are not
+     * consecutive, see {@link #transfers(int[], int[], int[])}. We return the
+     * identifier of the first transfer of the batch all the same.
+     * 
+     * @see com.ximedes.API#transfer(int[], int[], int[])
+     */
+    @Override
+    public int transfer(final int[] from, final int[] to, final int[] amount) {
+        return from.length == 0 ? -1 : transfers(from, to, amount)[0];
+    }
+
+    /**
+     * On a partitioned ledger each transfer has to go to the node that owns
+     * its "from" account, so we split the batch up by shard and send each
+     * node its part. Each node makes its part under consecutive identifiers
+     * of its own shard, so we work out the identifiers of a part from the
+     * first one that its node answers with.
+     * 
+     * @see com.ximedes.API#transfers(int[], int[], int[])
+     */
+    @Override
+    public int[] transfers(final int[] from, final int[] to,
+            final int[] amount) {
+        if (to.length != from.length || amount.length != from.length) {
+            throw new IllegalArgumentException("batch of " + from.length
+                    + " from, " + to.length + " to and " + amount.length
+                    + " amount values");
+        }
+
+        final StringBuilder[] bodies = new StringBuilder[partitions.shards()];
+        final int[] sizes = new int[bodies.length];
+        for (int i = 0; i < from.length; i++) {
+            final int shard = from[i] < 0 ? 0 : partitions.shardOf(from[i]);
+            if (bodies[shard] == null) {
+                bodies[shard] = new StringBuilder(from.length * 16);
+            }
+            bodies[shard].append(from[i]).append(',').append(to[i])
+                    .append(',').append(amount[i]).append('\n');
+            sizes[shard]++;
+        }
+
+        final int[] next = new int[bodies.length];
+        for (int shard = 0; shard < bodies.length; shard++) {
+            if (bodies[shard] != null) {
+                next[shard] = partitions.localId(transfer(shard,
+                        bodies[shard].toString(), sizes[shard]));
+            }
+        }
+
+        final int[] ids = new int[from.length];
+        for (int i = 0; i < ids.length; i++) {
+            final int shard = from[i] < 0 ? 0 : partitions.shardOf(from[i]);
+            ids[i] = partitions.globalId(shard, next[shard]++);
+        }
+        return ids;
+    }
+
+    private int transfer(final int shard, final String body,
+            final int batchSize) {
+        final long start = currentTimeMillis();
+        try {
+            final HttpResponse<String> response = post(
+                    partitions.node(shard) + "transfers")
+                            .header("Content-Type", "text/plain")
+                            .header(TIMEOUT, timeout(start)).body(body)
+                            .asString();
+            checkServed(response, "transfer batch");
+
+            final long responseTime = currentTimeMillis() - start;
+            if (responseTime > CUTOFF) {
+                out.println("transfer batch of " + batchSize + " took "
+                        + responseTime + " ms.");
+            }
+
+            return uhmParseUriLastInteger(
+                    response.getHeaders().getFirst("Location"));
+        } catch (UnirestException e) {
+            throw sneakyThrow(e);
+        }
+    }
+
+    /**
+     * @return The milliseconds that we still wait for the answer to a
+     *         request that we started at the given time.
+     */
+    private static String timeout(final long start) {
+        return Long.toString(max(0L, start + CUTOFF - currentTimeMillis()));
+    }
+
+    /**
+     * Check that the server did not turn the request away, either because
+     * it was past its deadline or because the server was too busy to take
+     * our connection.
+     */
+    private static void checkServed(final HttpResponse<?> response,
+            final String request) {
+        if (response.getStatus() == 503) {
+            throw new IllegalStateException(
+                    "the server dropped our " + request + " request");
+        }
+    }
+
     /**
      * Chop the last bit off of an URI and use that as an integer value.
      * 
@@ -122,14 +338,31 @@ class HttpApiClient implements API {
      */
     @Override
     public int countCentsInTheSystem() {
-        try {
-            final HttpResponse<JsonNode> response = get(
-                    baseUrl + "countCentsInTheSystem").asJson();
+        return toIntExact(auditCentsInTheSystem());
+    }
 
-            return (int) response.getBody().getObject().get("cents");
-        } catch (UnirestException e) {
-            throw sneakyThrow(e);
+    /**
+     * Each node counts the cents on its own shard, so we add up the counts
+     * of all nodes.
+     *
+     * @see com.ximedes.API#auditCentsInTheSystem()
+     */
+    @Override
+    public long auditCentsInTheSystem() {
+        long cents = 0L;
+        for (int shard = 0; shard < partitions.shards(); shard++) {
+            try {
+                final HttpResponse<JsonNode> response = get(
+                        partitions.node(shard) + "countCentsInTheSystem")
+                                .asJson();
+                checkServed(response, "count cents");
+
+                cents += response.getBody().getObject().getLong("cents");
+            } catch (UnirestException e) {
+                throw sneakyThrow(e);
+            }
         }
+        return cents;
     }
 
     /**
@@ -141,7 +374,9 @@ class HttpApiClient implements API {
 
         try {
             final HttpResponse<JsonNode> response = get(
-                    baseUrl + "account/" + accountId).asJson();
+                    nodeOf(accountId) + "account/" + accountId)
+                            .header(TIMEOUT, timeout(start)).asJson();
+            checkServed(response, "GET account");
 
             final long responseTime = currentTimeMillis() - start;
             if (responseTime > CUTOFF) {
@@ -165,7 +400,9 @@ class HttpApiClient implements API {
 
         try {
             final HttpResponse<JsonNode> response = get(
-                    baseUrl + "transfer/" + transferId).asJson();
+                    nodeOf(transferId) + "transfer/" + transferId)
+                            .header(TIMEOUT, timeout(start)).asJson();
+            checkServed(response, "GET transfer");
 
             final long responseTime = currentTimeMillis() - start;
             if (responseTime > CUTOFF) {
@@ -181,6 +418,44 @@ class HttpApiClient implements API {
         }
     }
 
+    /**
+     * Get a transfer once it is no longer pending. The server holds on to
+     * our request until the transfer is decided, or until it waited as long
+     * as we asked, so we need no more than one request per transfer, where
+     * we would otherwise have to poll.
+     * 
+     * @param transferId
+     *            The identifier of the transfer to look up.
+     * @param waitMillis
+     *            How long the server may wait for the transfer to be
+     *            decided, at most a minute.
+     * @return The transfer, which may still be pending if the server gave
+     *         up waiting, or <code>null</code> if there is no such transfer.
+     */
+    public Transaction awaitTransfer(final int transferId,
+            final int waitMillis) {
+        final long start = currentTimeMillis();
+
+        try {
+            final HttpResponse<JsonNode> response = get(nodeOf(transferId)
+                    + "transfer/" + transferId + "?wait=" + waitMillis)
+                            .header(TIMEOUT,
+                                    timeout(start + waitMillis))
+                            .asJson();
+            checkServed(response, "GET transfer");
+            if (response.getStatus() == 404) {
+                return null;
+            }
+
+            final JSONObject json = response.getBody().getObject();
+            return new Transaction(transferId, json.getInt("from"),
+                    json.getInt("to"), json.getInt("amount"),
+                    json.optEnum(Status.class, "status"));
+        } catch (UnirestException e) {
+            throw sneakyThrow(e);
+        }
+    }
+
     /**
      * @see com.ximedes.API#ping()
      */
@@ -189,7 +464,8 @@ class HttpApiClient implements API {
         final long start = currentTimeMillis();
 
         try {
-            get(baseUrl + "ping").asJson();
+            checkServed(get(baseUrl + "ping").header(TIMEOUT, timeout(start))
+                    .asJson(), "ping");
 
             final long responseTime = currentTimeMillis() - start;
             if (responseTime > CUTOFF) {
@@ -0,0 +1,122 @@
+package com.ximedes.client;
+
+import static com.ximedes.Durability.NONE;
+import static com.ximedes.Ledgers.newLedger;
+import static java.lang.System.currentTimeMillis;
+import static java.lang.System.out;
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.ximedes.API;
+import com.ximedes.Durability;
+import com.ximedes.Journal;
+import com.ximedes.JournaledLedger;
+import com.ximedes.Recoverable;
+
+/**
+ * Compare the transfer throughput of the durability modes. Each mode runs
+ * for a fixed amount of time rather than a fixed number of transfers, since
+ * forcing the journal for every request is orders of magnitude slower than
+ * the other modes. After each journaled run we replay the journal into a
+ * fresh ledger and check that it comes back with the same money.
+ * <p>
+ * Run it with the modes to compare as arguments, for example
+ * <code>JournalBenchmark none batched per-request</code>.
+ */
+public class JournalBenchmark {
+    private static final int THREADS = 32;
+    private static final long DURATION = SECONDS.toMillis(10);
+
+    private static final int MERCHANTS = 300;
+    private static final int CONSUMERS = 3000;
+    private static final int SEED = 1000; // cents per consumer
+
+    /**
+     * Run the benchmark.
+     *
+     * @param args
+     *            The durability modes to compare, defaults to all of them.
+     * @throws Exception
+     *             When the benchmark failed.
+     */
+    public static void main(final String[] args) throws Exception {
+        final String[] modes = args.length == 0
+                ? new String[] { "none", "batched", "per-request" } : args;
+
+        out.println("durability      tx/s   replayed");
+        for (final String mode : modes) {
+            run(Durability.parse(mode));
+        }
+    }
+
+    private static void run(final Durability durability) throws Exception {
+        final File directory = Files.createTempDirectory("journal").toFile();
+        try {
+            final API api = open(durability, directory);
+
+            final int bankAccount = api.createAccount(CONSUMERS * SEED);
+            final int[] merchants = new int[MERCHANTS];
+            for (int i = 0; i < MERCHANTS; i++) {
+                merchants[i] = api.createAccount(0);
+            }
+            final int[] consumers = new int[CONSUMERS];
+            for (int i = 0; i < CONSUMERS; i++) {
+                consumers[i] = api.createAccount(0);
+                api.transfer(bankAccount, consumers[i], SEED);
+            }
+
+            final AtomicLong transfers = new AtomicLong(0L);
+            final long end = currentTimeMillis() + DURATION;
+            LedgerBenchmark.inParallel(THREADS, THREADS, (first, last) -> {
+                final ThreadLocalRandom random = ThreadLocalRandom.current();
+                long count = 0L;
+                while (currentTimeMillis() < end) {
+                    api.transfer(consumers[random.nextInt(CONSUMERS)],
+                            merchants[random.nextInt(MERCHANTS)], 1);
+                    count++;
+                }
+                transfers.addAndGet(count);
+            });
+
+            final int cents = api.countCentsInTheSystem();
+            assertEquals(CONSUMERS * SEED, cents);
+            if (api instanceof AutoCloseable) {
+                ((AutoCloseable) api).close();
+            }
+
+            String replayed = "-";
+            if (durability != NONE) {
+                final API recovered = open(durability, directory);
+                assertEquals(cents, recovered.countCentsInTheSystem());
+                ((AutoCloseable) recovered).close();
+                replayed = "ok";
+            }
+
+            out.printf("%-11s %9d %10s%n", durability,
+                    transfers.get() * SECONDS.toMillis(1) / DURATION,
+                    replayed);
+        } finally {
+            for (final File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    private static API open(final Durability durability, final File directory)
+            throws Exception {
+        final Recoverable ledger = (Recoverable) newLedger("simpleton");
+        if (durability == NONE) {
+            return ledger;
+        }
+
+        return new JournaledLedger(ledger, new Journal(directory, durability,
+                MICROSECONDS.toNanos(1000L), 256));
+    }
+}
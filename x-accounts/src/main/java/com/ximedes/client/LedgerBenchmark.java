@@ -0,0 +1,162 @@
+package com.ximedes.client;
+
+import static com.ximedes.Ledgers.newLedger;
+import static java.lang.System.gc;
+import static java.lang.System.nanoTime;
+import static java.lang.System.out;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.ximedes.API;
+
+/**
+ * An in-process throughput comparison of the ledger implementations. This
+ * takes HTTP out of the picture, so that we see only what the ledger itself
+ * costs. Each run sets up a fresh ledger with the same accounts as the
+ * challenge test and then times two phases: seeding the consumers from the
+ * bank and the consumers paying the merchants. For each run we also report
+ * the number of young generation collections and the heap that the ledger
+ * still occupies once it is done.
+ * <p>
+ * Run it with the names of the ledgers to compare as arguments, for example
+ * <code>LedgerBenchmark simpleton cas</code>. To see what the striped
+ * balances of the hot accounts buy the simpleton, compare a run with
+ * <code>-Dx-accounts.stripes=1</code> to one with as many stripes as cores:
+ * the seeding phase, in which all threads take from the one bank account,
+ * should scale with the threads up to the number of cores.
+ */
+public class LedgerBenchmark {
+    private static final int[] THREADS = { 1, 8, 32, 150 };
+
+    private static final int MERCHANTS = 300;
+    private static final int CONSUMERS = 300000;
+    private static final int SEED = 10; // cents per consumer
+    private static final int PAYMENTS = 12 * CONSUMERS;
+
+    /**
+     * Run the benchmark.
+     *
+     * @param args
+     *            The names of the ledgers to compare, defaults to all of
+     *            them.
+     * @throws Exception
+     *             When the benchmark failed.
+     */
+    public static void main(final String[] args) throws Exception {
+        final String[] ledgers = args.length == 0
+                ? new String[] { "simpleton", "cas", "sequenced" } : args;
+
+        out.println(
+                "ledger     threads   seed tx/s    pay tx/s  young gcs  heap MB");
+        for (final String ledger : ledgers) {
+            for (final int threads : THREADS) {
+                run(ledger, threads);
+            }
+        }
+    }
+
+    private static void run(final String ledger, final int threads)
+            throws Exception {
+        gc();
+        final long youngCollectionsBefore = youngCollections();
+        final API api = newLedger(ledger);
+
+        final int bankAccount = api.createAccount(CONSUMERS * SEED);
+        final int[] merchants = new int[MERCHANTS];
+        for (int i = 0; i < MERCHANTS; i++) {
+            merchants[i] = api.createAccount(0);
+        }
+        final int[] consumers = new int[CONSUMERS];
+        for (int i = 0; i < CONSUMERS; i++) {
+            consumers[i] = api.createAccount(0);
+        }
+
+        final long seedNanos = inParallel(threads, CONSUMERS,
+                (first, last) -> {
+                    for (int i = first; i < last; i++) {
+                        api.transfer(bankAccount, consumers[i], SEED);
+                    }
+                });
+
+        final long payNanos = inParallel(threads, PAYMENTS, (first, last) -> {
+            final ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int i = first; i < last; i++) {
+                api.transfer(consumers[random.nextInt(CONSUMERS)],
+                        merchants[random.nextInt(MERCHANTS)], 1);
+            }
+        });
+
+        assertEquals(CONSUMERS * SEED, api.countCentsInTheSystem());
+
+        final long youngCollections = youngCollections()
+                - youngCollectionsBefore;
+        gc();
+        final Runtime runtime = Runtime.getRuntime();
+        final long heapUsed = runtime.totalMemory() - runtime.freeMemory();
+
+        out.printf("%-10s %7d %11d %11d %10d %8d%n", ledger, threads,
+                perSecond(CONSUMERS, seedNanos),
+                perSecond(PAYMENTS, payNanos), youngCollections,
+                heapUsed / (1024 * 1024));
+
+        if (api instanceof AutoCloseable) {
+            ((AutoCloseable) api).close();
+        }
+    }
+
+    /**
+     * A slice of work, from index <code>first</code> up to but not including
+     * <code>last</code>.
+     */
+    interface Slice {
+        void run(int first, int last);
+    }
+
+    /**
+     * Spread <code>work</code> items evenly over a number of threads, run
+     * them all and return the wall clock time that took.
+     */
+    static long inParallel(final int threads, final int work,
+            final Slice slice) throws InterruptedException {
+        final Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int first = (int) ((long) work * t / threads);
+            final int last = (int) ((long) work * (t + 1) / threads);
+            workers[t] = new Thread(() -> slice.run(first, last));
+        }
+
+        final long start = nanoTime();
+        for (final Thread worker : workers) {
+            worker.start();
+        }
+        for (final Thread worker : workers) {
+            worker.join();
+        }
+        return nanoTime() - start;
+    }
+
+    /**
+     * Count the collections of the young generation, whichever collector the
+     * JVM happens to be running.
+     */
+    private static long youngCollections() {
+        long collections = 0L;
+        for (final GarbageCollectorMXBean collector : ManagementFactory
+                .getGarbageCollectorMXBeans()) {
+            final String name = collector.getName();
+            if (name.contains("Young") || name.contains("Scavenge")
+                    || name.contains("Copy") || name.contains("ParNew")) {
+                collections += collector.getCollectionCount();
+            }
+        }
+        return collections;
+    }
+
+    private static long perSecond(final int count, final long nanos) {
+        return count * SECONDS.toNanos(1) / nanos;
+    }
+}
@@ -0,0 +1,144 @@
+package com.ximedes.client;
+
+import static com.ximedes.Status.CONFIRMED;
+import static com.ximedes.Status.INSUFFICIENT_FUNDS;
+import static com.ximedes.Status.PENDING;
+import static java.lang.System.out;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.ximedes.Partitions;
+import com.ximedes.Transaction;
+
+/**
+ * Check and time a partitioned ledger over HTTP. Start one server per shard
+ * first, for example with <code>run.partitioned.sh</code>, and point this at
+ * any one of them. We learn the partition map from that node, set up the
+ * bank, merchants and consumers spread over all shards and let the consumers
+ * pay random merchants until they run out of money.
+ * <p>
+ * Then we check the outcome. Every consumer starts with {@link #SEED} cents
+ * and only ever pays one cent at a time, so a consumer must have exactly
+ * {@link #SEED} confirmed payments if any of its payments was refused, and
+ * the merchants must hold exactly the confirmed payments. The cents that
+ * all shards count together must still be what the bank started with.
+ * <p>
+ * A cross-shard payment whose deposit was in doubt comes back pending, and
+ * the paying shard settles it in the background. We wait for that before
+ * we count it.
+ */
+public class PartitionBenchmark {
+    private static final int THREADS = 32;
+
+    private static final int MERCHANTS = 300;
+    private static final int CONSUMERS = 3000;
+    private static final int SEED = 10; // cents per consumer
+    private static final int PAYMENTS = 12 * CONSUMERS;
+
+    /**
+     * Run the benchmark.
+     *
+     * @param args
+     *            The base URL of one of the nodes, defaults to
+     *            <code>http://localhost:8080/</code>.
+     * @throws Exception
+     *             When the benchmark or the checks failed.
+     */
+    public static void main(final String[] args) throws Exception {
+        final HttpApiClient api = new HttpApiClient(
+                args.length == 0 ? "http://localhost:8080/" : args[0],
+                THREADS * 4, THREADS);
+        final Partitions partitions = api.partitions();
+        final int centsBefore = api.countCentsInTheSystem();
+
+        final int bankAccount = api.createAccount(CONSUMERS * SEED);
+        final int[] merchants = new int[MERCHANTS];
+        for (int i = 0; i < MERCHANTS; i++) {
+            merchants[i] = api.createAccount(0);
+        }
+        final int[] consumers = new int[CONSUMERS];
+        LedgerBenchmark.inParallel(THREADS, CONSUMERS, (first, last) -> {
+            for (int i = first; i < last; i++) {
+                consumers[i] = api.createAccount(0);
+                final Transaction seed = api.transferWithResult(bankAccount,
+                        consumers[i], SEED);
+                assertEquals(CONFIRMED, seed.status);
+            }
+        });
+
+        final AtomicIntegerArray confirmed = new AtomicIntegerArray(
+                CONSUMERS);
+        final AtomicIntegerArray refused = new AtomicIntegerArray(CONSUMERS);
+        final AtomicLong crossShard = new AtomicLong(0L);
+        final long nanos = LedgerBenchmark.inParallel(THREADS, PAYMENTS,
+                (first, last) -> {
+                    final ThreadLocalRandom random = ThreadLocalRandom
+                            .current();
+                    for (int i = first; i < last; i++) {
+                        final int consumer = random.nextInt(CONSUMERS);
+                        final int merchant = merchants[random
+                                .nextInt(MERCHANTS)];
+                        final Transaction payment = settled(api,
+                                api.transferWithResult(consumers[consumer],
+                                        merchant, 1));
+
+                        assertEquals(consumers[consumer], payment.from);
+                        assertEquals(merchant, payment.to);
+                        if (payment.status == CONFIRMED) {
+                            confirmed.incrementAndGet(consumer);
+                        } else {
+                            assertEquals(INSUFFICIENT_FUNDS, payment.status);
+                            refused.incrementAndGet(consumer);
+                        }
+                        if (partitions.shardOf(
+                                consumers[consumer]) != partitions
+                                        .shardOf(merchant)) {
+                            crossShard.incrementAndGet();
+                        }
+                    }
+                });
+
+        long payments = 0L;
+        for (int i = 0; i < CONSUMERS; i++) {
+            assertTrue(confirmed.get(i) <= SEED);
+            if (refused.get(i) > 0) {
+                assertEquals(SEED, confirmed.get(i));
+            }
+            assertEquals(SEED - confirmed.get(i),
+                    api.getAccount(consumers[i]).balance);
+            payments += confirmed.get(i);
+        }
+        long earnings = 0L;
+        for (final int merchant : merchants) {
+            earnings += api.getAccount(merchant).balance;
+        }
+        assertEquals(payments, earnings);
+        assertEquals(centsBefore + CONSUMERS * SEED,
+                api.countCentsInTheSystem());
+
+        out.println("shards  payments  cross-shard  confirmed    tx/s");
+        out.printf("%6d %9d %11d%% %10d %7d%n", partitions.shards(), PAYMENTS,
+                crossShard.get() * 100 / PAYMENTS, payments,
+                PAYMENTS * SECONDS.toNanos(1) / nanos);
+    }
+
+    /**
+     * Wait for a pending payment to be settled and return its outcome.
+     */
+    private static Transaction settled(final HttpApiClient api,
+            final Transaction payment) {
+        Transaction settled = payment;
+        while (settled.status == PENDING) {
+            LockSupport.parkNanos(MILLISECONDS.toNanos(10L));
+            settled = api.getTransfer(payment.transactionId);
+        }
+        return settled;
+    }
+}
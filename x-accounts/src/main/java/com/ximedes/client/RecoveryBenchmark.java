@@ -0,0 +1,108 @@
+package com.ximedes.client;
+
+import static com.ximedes.Durability.BATCHED;
+import static com.ximedes.Ledgers.newLedger;
+import static java.lang.System.nanoTime;
+import static java.lang.System.out;
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.ximedes.Journal;
+import com.ximedes.JournaledLedger;
+import com.ximedes.Recoverable;
+
+/**
+ * Measure how long a restart takes with a full-size ledger: 300.000 accounts
+ * and about 4 million transfers. We build the ledger through the journal,
+ * taking a full snapshot after seeding and an incremental one after most of
+ * the payments, and leave a tail of payments in the journal only. Then we
+ * time restoring a fresh ledger from that directory.
+ * <p>
+ * Run it with the directory to use as argument. The directory should not
+ * exist yet, and is left behind so that it can be used to start a server.
+ */
+public class RecoveryBenchmark {
+    private static final int THREADS = 200;
+
+    private static final int MERCHANTS = 300;
+    private static final int CONSUMERS = 300000;
+    private static final int SEED = 10; // cents per consumer
+    private static final int PAYMENTS = 12 * CONSUMERS;
+    private static final int TAIL = 100000; // payments only in the journal
+
+    /**
+     * Run the benchmark.
+     *
+     * @param args
+     *            The directory to keep the journal and snapshots in.
+     * @throws Exception
+     *             When the benchmark failed.
+     */
+    public static void main(final String[] args) throws Exception {
+        final File directory = new File(args.length == 0 ? "recovery" : args[0]);
+        if (directory.exists()) {
+            throw new IllegalArgumentException(directory + " already exists");
+        }
+
+        final int transfers = build(directory);
+
+        final long start = nanoTime();
+        final JournaledLedger recovered = open(directory);
+        final long elapsed = nanoTime() - start;
+
+        assertEquals(CONSUMERS * SEED, recovered.countCentsInTheSystem());
+        assertNotNull(recovered.getTransfer(transfers - 1));
+        assertNull(recovered.getTransfer(transfers));
+        recovered.close();
+
+        out.println("restored " + (1 + MERCHANTS + CONSUMERS) + " accounts and "
+                + transfers + " transfers in "
+                + NANOSECONDS.toMillis(elapsed) + " ms.");
+    }
+
+    private static int build(final File directory) throws Exception {
+        final JournaledLedger api = open(directory);
+
+        final int bankAccount = api.createAccount(CONSUMERS * SEED);
+        final int[] merchants = new int[MERCHANTS];
+        for (int i = 0; i < MERCHANTS; i++) {
+            merchants[i] = api.createAccount(0);
+        }
+        final int[] consumers = new int[CONSUMERS];
+        LedgerBenchmark.inParallel(THREADS, CONSUMERS, (first, last) -> {
+            for (int i = first; i < last; i++) {
+                consumers[i] = api.createAccount(0);
+                api.transfer(bankAccount, consumers[i], SEED);
+            }
+        });
+        api.snapshot();
+
+        final LedgerBenchmark.Slice pay = (first, last) -> {
+            final ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int i = first; i < last; i++) {
+                api.transfer(consumers[random.nextInt(CONSUMERS)],
+                        merchants[random.nextInt(MERCHANTS)], 1);
+            }
+        };
+        LedgerBenchmark.inParallel(THREADS, PAYMENTS - TAIL, pay);
+        api.snapshot();
+        LedgerBenchmark.inParallel(THREADS, TAIL, pay);
+
+        api.close();
+        return CONSUMERS + PAYMENTS;
+    }
+
+    private static JournaledLedger open(final File directory)
+            throws Exception {
+        return new JournaledLedger((Recoverable) newLedger("simpleton"),
+                new Journal(directory, BATCHED, MICROSECONDS.toNanos(2000L),
+                        4096),
+                0L);
+    }
+}
@@ -0,0 +1,106 @@
+package com.ximedes.server;
+
+import static java.lang.System.currentTimeMillis;
+import static java.lang.System.nanoTime;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.ximedes.API;
+
+/**
+ * Serves <code>GET /audit</code> without keeping the handler waiting for a
+ * scan of the whole ledger. We answer with the ledger's running total,
+ * which it has at hand, and with the outcome of the latest full audit of
+ * the balances. A request starts the next audit on the fork-join pool,
+ * unless one is running already or the latest one ended less long ago than
+ * it took. So whoever polls the endpoint keeps the pool busy auditing at
+ * most half of the time, and never waits for an audit.
+ * <p>
+ * The ledger counts the balances as they were at a single moment, while the
+ * transfers go on, so the two must agree, even under load. Only on a
+ * partitioned ledger may they differ, by the money that is on its way to
+ * another shard.
+ * <p>
+ * There is one auditor per ledger, which all handlers of that ledger share.
+ */
+final class Auditor {
+    private static final Map<API, Auditor> auditors = new WeakHashMap<>();
+
+    /**
+     * The outcome of one audit. We publish it as a whole, so that a request
+     * never reports the sum of one audit with the time of another.
+     */
+    private static final class Result {
+        final long audited;
+        final long auditedAt;
+        final long auditNanos;
+        final long endNanos;
+
+        Result(final long audited, final long auditedAt,
+                final long auditNanos, final long endNanos) {
+            super();
+
+            this.audited = audited;
+            this.auditedAt = auditedAt;
+            this.auditNanos = auditNanos;
+            this.endNanos = endNanos;
+        }
+    }
+
+    private final API api;
+    private final AtomicBoolean auditing = new AtomicBoolean(false);
+
+    // the latest audit, null if there was none yet
+    private volatile Result latest = null;
+
+    private Auditor(final API api) {
+        super();
+
+        this.api = api;
+    }
+
+    /**
+     * @return The auditor of a ledger, which we set up the first time that
+     *         someone asks for it.
+     */
+    static Auditor of(final API api) {
+        synchronized (auditors) {
+            return auditors.computeIfAbsent(api, Auditor::new);
+        }
+    }
+
+    /**
+     * Append the running total and the latest audit to a JSON object, and
+     * start the next audit if it is time for one.
+     */
+    void audit(final StringBuilder json) {
+        json.append("\"cents\":").append(api.centsInTheSystem());
+        final Result result = latest;
+        if (result != null) {
+            json.append(",\"audited\":").append(result.audited)
+                    .append(",\"auditedAt\":").append(result.auditedAt)
+                    .append(",\"auditMicros\":")
+                    .append(NANOSECONDS.toMicros(result.auditNanos));
+        }
+
+        if ((result == null
+                || nanoTime() - result.endNanos >= result.auditNanos)
+                && auditing.compareAndSet(false, true)) {
+            ForkJoinPool.commonPool().execute(() -> {
+                try {
+                    final long start = nanoTime();
+                    final long cents = api.auditCentsInTheSystem();
+                    final long end = nanoTime();
+                    latest = new Result(cents, currentTimeMillis(),
+                            end - start, end);
+                } finally {
+                    auditing.set(false);
+                }
+            });
+        }
+    }
+}
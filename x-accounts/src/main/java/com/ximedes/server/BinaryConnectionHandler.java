@@ -0,0 +1,188 @@
+package com.ximedes.server;
+
+import static com.ximedes.BinaryProtocol.COUNT_CENTS;
+import static com.ximedes.BinaryProtocol.CREATE_ACCOUNT;
+import static com.ximedes.BinaryProtocol.GET_ACCOUNT;
+import static com.ximedes.BinaryProtocol.GET_TRANSFER;
+import static com.ximedes.BinaryProtocol.MAX_FRAME_SIZE;
+import static com.ximedes.BinaryProtocol.NOT_FOUND;
+import static com.ximedes.BinaryProtocol.PING;
+import static com.ximedes.BinaryProtocol.TRANSFER;
+import static com.ximedes.BinaryProtocol.requestSize;
+import static com.ximedes.BinaryProtocol.responseSize;
+import static java.lang.Integer.MAX_VALUE;
+import static java.lang.Integer.MIN_VALUE;
+import static java.lang.System.err;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+import com.ximedes.API;
+import com.ximedes.Account;
+import com.ximedes.BinaryProtocol;
+import com.ximedes.Transaction;
+
+/**
+ * Serves the {@link BinaryProtocol} on one connection. Like the
+ * {@link ConnectionHandler}, we answer all complete requests that a read
+ * brought in and then write all the answers in one go, so a client that
+ * multiplexes many requests over the connection gets them answered in
+ * batches.
+ * <p>
+ * A client that sends us garbage loses its connection, nothing more. The
+ * same goes for a request that the ledger refuses with an exception, for
+ * instance because it ran out of identifiers: we log it and close that one
+ * connection, and the server carries on.
+ */
+class BinaryConnectionHandler implements Runnable {
+    private static final int BUFSIZE = 64 * 1024;
+
+    private final Socket socket;
+    private final API api;
+    private final Transaction transferView = new Transaction(-1, -1, -1, -1,
+            null);
+
+    private final ByteBuffer in = ByteBuffer.allocate(BUFSIZE);
+    private final ByteBuffer out = ByteBuffer.allocate(BUFSIZE);
+
+    /**
+     * Set up a new handler for a connection.
+     *
+     * @param socket
+     *            The connection to serve.
+     * @param api
+     *            The API to call for the requests.
+     */
+    BinaryConnectionHandler(final Socket socket, final API api) {
+        super();
+
+        this.socket = socket;
+        this.api = api;
+    }
+
+    /**
+     * @see java.lang.Runnable#run()
+     */
+    @Override
+    public void run() {
+        try {
+            serve();
+        } catch (IOException | RuntimeException e) {
+            err.println("Closing binary connection from "
+                    + socket.getRemoteSocketAddress() + ": " + e);
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignore, we are done with it anyway
+            }
+        }
+    }
+
+    private void serve() throws IOException {
+        socket.setTcpNoDelay(true); // see ConnectionHandler
+        final InputStream is = socket.getInputStream();
+        final OutputStream os = socket.getOutputStream();
+        for (;;) {
+            final int read = is.read(in.array(), in.position(),
+                    in.remaining());
+            if (read == -1) {
+                return;
+            }
+            in.position(in.position() + read);
+
+            in.flip();
+            while (in.hasRemaining()
+                    && in.remaining() > (in.get(in.position()) & 0xff)) {
+                if (out.remaining() < MAX_FRAME_SIZE) {
+                    write(os);
+                }
+                handle();
+            }
+            in.compact();
+
+            write(os);
+        }
+    }
+
+    /**
+     * Handle the complete request frame at the position of the input.
+     */
+    private void handle() throws ProtocolException {
+        final int length = in.get() & 0xff;
+        final byte type = in.get();
+        final int requestId = in.getInt();
+        if (type == NOT_FOUND || length + 1 != requestSize(type)) {
+            throw new ProtocolException(
+                    "bad frame of type " + type + " and length " + length);
+        }
+
+        switch (type) {
+        case CREATE_ACCOUNT:
+            header(CREATE_ACCOUNT, requestId)
+                    .putInt(api.createAccount(in.getInt()));
+            break;
+        case TRANSFER:
+            header(TRANSFER, requestId).putInt(
+                    api.transfer(in.getInt(), in.getInt(), in.getInt()));
+            break;
+        case GET_ACCOUNT:
+            final int accountId = in.getInt();
+            final Account account = accountId < 0 ? null
+                    : api.getAccount(accountId);
+            if (account == null) {
+                header(NOT_FOUND, requestId);
+            } else {
+                header(GET_ACCOUNT, requestId).putInt(account.balance)
+                        .putInt(account.overdraft);
+            }
+            break;
+        case GET_TRANSFER:
+            final int transferId = in.getInt();
+            final Transaction transfer = transferId < 0 ? null
+                    : api.getTransfer(transferId, transferView);
+            if (transfer == null) {
+                header(NOT_FOUND, requestId);
+            } else {
+                header(GET_TRANSFER, requestId).putInt(transfer.from)
+                        .putInt(transfer.to).putInt(transfer.amount)
+                        .put((byte) transfer.status.ordinal());
+            }
+            break;
+        case PING:
+            header(PING, requestId);
+            break;
+        case COUNT_CENTS:
+            // the frame has room for an int, so a sum that does not fit is
+            // not found, rather than an overflow that takes us down. The
+            // transfers go on while the ledger counts.
+            final long cents = api.auditCentsInTheSystem();
+            if (cents < MIN_VALUE || cents > MAX_VALUE) {
+                header(NOT_FOUND, requestId);
+            } else {
+                header(COUNT_CENTS, requestId).putInt((int) cents);
+            }
+            break;
+        default:
+            throw new IllegalStateException("unhandled frame type " + type);
+        }
+    }
+
+    private ByteBuffer header(final byte type, final int requestId) {
+        return out.put((byte) (responseSize(type) - 1)).put(type)
+                .putInt(requestId);
+    }
+
+    private void write(final OutputStream os) throws IOException {
+        if (out.position() > 0) {
+            os.write(out.array(), 0, out.position());
+            os.flush();
+            out.clear();
+            RequestHandler.served();
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.ximedes.server;
+
+import static java.lang.System.err;
+import static java.lang.System.exit;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+
+import com.ximedes.API;
+import com.ximedes.BinaryProtocol;
+
+/**
+ * Serves the {@link BinaryProtocol} on a port of its own, next to the HTTP
+ * server and from the same ledger. The clients of this protocol are our own
+ * services and load drivers, which keep a handful of connections open and
+ * multiplex their requests over them, so a thread per connection serves
+ * them fine.
+ */
+class BinaryServer implements Runnable {
+    private final int port;
+    private final int backlog;
+    private final API api;
+
+    /**
+     * Set up a new binary server.
+     *
+     * @param port
+     *            The port to listen on.
+     * @param backlog
+     *            The backlog of pending connections.
+     * @param api
+     *            The API to call for the requests.
+     */
+    BinaryServer(final int port, final int backlog, final API api) {
+        super();
+
+        this.port = port;
+        this.backlog = backlog;
+        this.api = api;
+    }
+
+    /**
+     * Accept connections and start a handler thread for each. This only
+     * returns when the server socket fails, and then we take the whole
+     * server down, just like the HTTP server does.
+     *
+     * @see java.lang.Runnable#run()
+     */
+    @Override
+    public void run() {
+        err.println("Binding the binary protocol to port " + port
+                + ", backlog of " + backlog + " pending connections.");
+        try (final ServerSocket serverSocket = new ServerSocket(port,
+                backlog)) {
+            for (int i = 0;; i++) {
+                new Thread(new BinaryConnectionHandler(serverSocket.accept(),
+                        api), "binary-connection-" + i).start();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            err.println("Dying...");
+            exit(1);
+        }
+    }
+}
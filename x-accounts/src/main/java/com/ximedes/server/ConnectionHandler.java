@@ -1,59 +1,72 @@
 package com.ximedes.server;
 
+import static com.ximedes.server.RequestHandler.PAYLOAD_TOO_LARGE;
+import static com.ximedes.server.RequestParser.MAX_REQUEST_SIZE;
+import static com.ximedes.server.RequestParser.TOO_LARGE;
 import static java.lang.System.err;
 import static java.lang.System.exit;
+import static java.lang.System.nanoTime;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.Socket;
-import java.util.concurrent.BlockingQueue;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
 
 import com.ximedes.API;
-import com.ximedes.Account;
-import com.ximedes.Transaction;
 
 /**
- * The handler that handles a stream of HTTP requests from a socket.
+ * The handler that handles a stream of HTTP requests from a socket. This
+ * thread owns the socket until the client closes it. The requests
+ * themselves are parsed and handled by a {@link RequestHandler}.
+ * <p>
+ * A handler either takes one socket after the other from a
+ * {@link HandlerPool}, until the pool retires it, or it serves a single
+ * socket on a thread of its own.
  *
  * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
  */
 class ConnectionHandler implements Runnable {
     private static final int READ_BUFSIZE = 512; // bytes
 
-    private final BlockingQueue<Socket> sockets;
-    private final API api;
+    private final HandlerPool pool;
+    private final Socket socket; // null if we take sockets from the pool
+    private final RequestHandler handler;
+    private final RequestParser parser = new RequestParser();
+
+    // the bytes that we read and the responses that we are about to write,
+    // both grown as needed and reused for every request
+    private byte[] in = new byte[READ_BUFSIZE];
+    private final ResponseBuffer out = new ResponseBuffer(READ_BUFSIZE);
 
     private static final boolean trace = false;
 
-    // To save memory allocation overhead at run-time, we pre-allocate the HTTP
-    // responses to the HTTP POST requests.
-    private static final int EXPECTED_TRANSFERS = 300000 + 3600000;
-    private static final byte[][] transferResponses = new byte[EXPECTED_TRANSFERS][];
-    private static final int EXPECTED_ACCOUNTS = 300000 + 300 + 1;
-    private static final byte[][] createAccountResponses = new byte[EXPECTED_ACCOUNTS][];
+    /**
+     * Set up a handler that serves one socket after the other, as they come
+     * out of the pool's queue.
+     */
+    public ConnectionHandler(final HandlerPool pool, final API api) {
+        super();
 
-    static {
-        err.println("Pre-allocating " + EXPECTED_TRANSFERS
-                + " transfer HTTP responses.");
-        for (int i = 0; i < EXPECTED_TRANSFERS; i++) {
-            transferResponses[i] = ("HTTP/1.1 202 ACCEPTED\nLocation: /transfer/"
-                    + i + "\nContent-Length: 0\n\n").getBytes();
-        }
-        err.println("Pre-allocating " + EXPECTED_ACCOUNTS
-                + " transfer HTTP responses.");
-        for (int i = 0; i < EXPECTED_ACCOUNTS; i++) {
-            createAccountResponses[i] = ("HTTP/1.1 202 ACCEPTED\nLocation: /account/"
-                    + i + "\nContent-Length: 0\n\n").getBytes();
-        }
+        this.pool = pool;
+        this.socket = null;
+        this.handler = new RequestHandler(api);
     }
 
-    public ConnectionHandler(final BlockingQueue<Socket> sockets,
-            final API api) {
+    /**
+     * Set up a handler that serves a single socket and then ends. This is
+     * how we run a thread per connection.
+     */
+    public ConnectionHandler(final Socket socket, final API api) {
         super();
 
-        this.sockets = sockets;
-        this.api = api;
+        this.pool = null;
+        this.socket = socket;
+        this.handler = new RequestHandler(api);
     }
 
     /**
@@ -62,31 +75,12 @@ class ConnectionHandler implements Runnable {
     @Override
     public void run() {
         try {
-            for (;;) {
-                final Socket socket = sockets.take();
-                final InputStream is = socket.getInputStream();
-                final OutputStream os = socket.getOutputStream();
-
-                for (;;) {
-                    final byte[] httpRequest = new byte[READ_BUFSIZE];
-                    int requestSize = readRequest(is, httpRequest);
-                    if (requestSize == -1) {
-                        if (trace) {
-                            err.println("Stream closed normally.");
-                        }
-                        is.close();
-                        os.close();
-                        break;
-                    } else if (isPOST(httpRequest)) {
-                        requestSize = readBody(is, httpRequest, requestSize);
-                        final byte[] response = handlePOST(httpRequest,
-                                requestSize);
-                        writeResponse(response, os);
-                    } else {
-                        final byte[] response = handleGET(httpRequest,
-                                requestSize);
-                        writeResponse(response, os);
-                    }
+            if (socket != null) {
+                serveOrClose(socket);
+            } else {
+                Socket next;
+                while ((next = pool.take()) != null) {
+                    serveOrClose(next);
                 }
             }
         } catch (Exception e) {
@@ -99,269 +93,152 @@ class ConnectionHandler implements Runnable {
                 // ignore, we are going down anyway.
             }
             exit(1); // XXX Rude...
-        } finally {
-            err.println("Exiting ConnectionHandler.run...");
         }
     }
 
     /**
-     * Read a single HTTP request from the socket. As optimisation, I make the
-     * rather nasty assumption that all HTTP request headers arrive in a single
-     * <code>read(buf)</code>. If this assumption holds, which is realistic
-     * because we are dealing with tiny HTTP requests, we can save a lot of time
-     * by not dealing with HTTP request assembly.
+     * Serve a socket, closing it if the client breaks the connection. A
+     * client that gave up on a busy server, or that we turned away, should
+     * not take the whole server down with it.
      */
-    private int readRequest(final InputStream is, final byte[] httpRequest)
-            throws IOException {
-        final int requestSize = is.read(httpRequest);
-
-        if (trace && requestSize != -1) {
-            err.println("read, size is now " + requestSize + " ["
-                    + new String(httpRequest, 0, requestSize) + "]");
+    private void serveOrClose(final Socket socket) throws IOException {
+        try {
+            serve(socket);
+        } catch (IOException e) {
+            // the client went away, that is its business
+            socket.close();
         }
-
-        return requestSize;
     }
 
     /**
-     * Determine if an HTTP request calls the POST method, or some other method.
-     * We simply check the first letter of the request. If that is a capital P,
-     * this request is likely a call to HTTP POST. Likely enough for our
-     * purposes.
-     * 
-     * @return <true> if this is an HTTP POST, or <false> if it is not. Most
-     *         likely an HTTP GET, but we don't check.
+     * Serve the requests on a socket until the client closes it. Clients may
+     * pipeline their requests, sending the next ones before they have seen
+     * the answer to the first. So a read may give us several requests, or
+     * only part of one. We handle all complete requests that we have, keep
+     * the rest for the next read and send all the responses in one write.
      */
-    private boolean isPOST(final byte[] httpRequest) {
-        return httpRequest[0] == 'P';
-    }
-
-    /**
-     * Optionally read the HTTP request body from the stream. I have seen two
-     * cases: one where headers and body arrive in the same HTTP packet, and one
-     * where they arrive in separate packets. So the <code>read(buf)</code> we
-     * did earlier may or may not have sucked in the HTTP request body.
-     * <p>
-     * This method checks if there is a body present. If it finds no HTTP
-     * request body, it will execute an additional <code>read(buf)</code> and
-     * append the HTTP request body to the set of headers.
-     * 
-     * @throws IOException
-     */
-    private int readBody(final InputStream is, final byte[] httpRequest,
-            int requestSize) throws IOException {
-        if (httpRequest[requestSize - 1] == '\n') {
-            requestSize += is.read(httpRequest, requestSize,
-                    READ_BUFSIZE - requestSize);
-            if (trace) {
-                err.println("  -> extra read, size is now " + requestSize + " ["
-                        + new String(httpRequest, 0, requestSize) + "]");
+    private void serve(final Socket socket) throws IOException {
+        // we gather the responses into one write ourselves, so Nagle's
+        // algorithm only makes the second write of a pipelined burst wait
+        // for the client's delayed acknowledgement of the first
+        socket.setTcpNoDelay(true);
+        final InputStream is = socket.getInputStream();
+        final OutputStream os = socket.getOutputStream();
+
+        parser.reset();
+        int length = 0;
+        for (;;) {
+            if (length == in.length) {
+                // a request that is bigger than our buffer, most likely a
+                // batch
+                if (in.length >= MAX_REQUEST_SIZE) {
+                    throw new IOException("request of over "
+                            + MAX_REQUEST_SIZE + " bytes");
+                }
+                in = Arrays.copyOf(in, in.length * 2);
             }
-        }
-        return requestSize;
-    }
-
-    /**
-     * Handle an HTTP POST request. We use the same crude byte indexing to
-     * determine what the path is that is being posted to. Then we parse the
-     * body, in style.
-     * 
-     * <pre>
-     *   POST /[a]ccount HTTP/1.1
-     *   POST /[t]ransfer HTTP/1.1
-     * </pre>
-     * 
-     * @return The HTTP response text.
-     */
-    private byte[] handlePOST(final byte[] httpRequest, final int requestSize) {
-        switch (httpRequest[6]) {
-        case 'a':
-            final int accountId = createAccount(httpRequest, requestSize);
-            return createAccountResponses[accountId];
-        case 't':
-            final int transferId = transfer(httpRequest, requestSize);
-            return transferResponses[transferId];
-        default:
-            throw new IllegalArgumentException(
-                    "Found bad path " + (char) httpRequest[6] + " on ["
-                            + new String(httpRequest, 0, requestSize) + "]");
-        }
-    }
 
-    /**
-     * Parse the overdraft from the HTTP request body and create an account with
-     * the specified overdraft. The overdraft value is the last numeric value in
-     * the HTTP request, so it is pretty easy to find of we start at the back
-     * and work our way forward.
-     */
-    private int createAccount(final byte[] httpRequest, final int requestSize) {
-        int overdraft = 0;
-
-        // skip over all non-numeric stuff, like the trailing brace and any
-        // whitespace there.
-        int currentChar = requestSize - 1;
-        while (httpRequest[currentChar] < '0'
-                || httpRequest[currentChar] > '9') {
-            currentChar--;
-        }
-
-        // now read all digits and accumulate those into an overdraft value.
-        int factor = 1;
-        while (httpRequest[currentChar] >= '0'
-                && httpRequest[currentChar] <= '9') {
-            overdraft += ((httpRequest[currentChar] - '0') * factor);
-            factor *= 10;
-            currentChar--;
-        }
-
-        return api.createAccount(overdraft);
-    }
-
-    private int transfer(final byte[] httpRequest, final int requestSize) {
-        int from = -1;
-        int to = -1;
-        int amount = -1;
-
-        int currentChar = requestSize - 1;
-        for (int i = 0; i < 3; i++) {
-            int value = 0;
-
-            // skip over all non-numeric stuff, like the trailing brace and any
-            // whitespace there.
-            while (httpRequest[currentChar] < '0'
-                    || httpRequest[currentChar] > '9') {
-                currentChar--;
+            final int read = readRequest(is, length);
+            if (read == -1) {
+                if (trace) {
+                    err.println("Stream closed normally.");
+                }
+                is.close();
+                os.close();
+                return;
             }
+            length += read;
+
+            // handle every complete request that we have, always at the
+            // start of the buffer, since the parsers count on that
+            int responses = 0;
+            int requestLength;
+            while ((requestLength = parser.parse(in, length)) > 0) {
+                final int wait = handler.handle(in, requestLength,
+                        parser.deadline(), true, out);
+                if (wait > 0) {
+                    awaitTransfer(os, requestLength, parser.deadline(), wait);
+                }
+                responses++;
 
-            // now read all digits and accumulate those into a value.
-            int factor = 1;
-            while (httpRequest[currentChar] >= '0'
-                    && httpRequest[currentChar] <= '9') {
-                value += ((httpRequest[currentChar] - '0') * factor);
-                factor *= 10;
-                currentChar--;
+                length -= requestLength;
+                System.arraycopy(in, requestLength, in, 0, length);
             }
-
-            // again skip over stuff until we see one of the letters signifying
-            // a field name. We use the last letter of the field name to
-            // identify what field we have, fro[m], t[o] or amoun[t].
-            while (httpRequest[currentChar] != 'm'
-                    && httpRequest[currentChar] != 'o'
-                    && httpRequest[currentChar] != 't') {
-                currentChar--;
+            if (requestLength == TOO_LARGE) {
+                // we cannot tell where that request ends, so we cannot go
+                // on with this connection
+                out.put(PAYLOAD_TOO_LARGE);
+                writeResponses(os);
+                is.close();
+                os.close();
+                return;
             }
 
-            switch (httpRequest[currentChar]) {
-            case 'm':
-                from = value;
-                break;
-            case 'o':
-                to = value;
-                break;
-            case 't':
-                amount = value;
-                break;
-            default:
-                throw new IllegalStateException(
-                        "bad identifier " + httpRequest[currentChar]);
+            if (responses > 0) {
+                writeResponses(os);
             }
         }
-
-        return api.transfer(from, to, amount);
     }
 
     /**
-     * Handle the HTTP GET requests. This time we don't have to parse the body.
-     * We can simply use the path to find out what is being requested. Again, we
-     * use a single character to identify which path is being used.
-     * 
-     * <pre>
-     *   GET /[a]ccount/457 HTTP/1.1
-     *   GET /[t]ransfer/115637 HTTP/1.1
-     *   GET /[p]ing HTTP/1.1
-     *   GET /[c]ountCentsInTheSystem HTTP/1.1
-     *   GET /[h]ealth HTTP/1.1
-     * </pre>
-     * 
-     * We then optionally grab the identifier from the path.
+     * Wait for the transfer of a parked request to leave its pending state,
+     * or until the client does not want to wait any longer. This thread
+     * owns the connection anyway, so it parks until the ledger tells it that
+     * the transfer was decided, or until the client stops waiting. Under
+     * virtual threads the park does not hold on to a carrier. A ledger that
+     * cannot tell us has us look again every millisecond. The event loops
+     * park the request without any thread.
      */
-    private byte[] handleGET(final byte[] httpRequest, final int requestSize) {
-        final StringBuilder response = new StringBuilder("");
-        switch (httpRequest[5]) {
-        case 'a':
-            final int accountId = idFromPath(httpRequest);
-            final Account account = api.getAccount(accountId);
-            response.append("{\"accountId\":\"").append(account.accountId)
-                    .append("\",\"balance\":").append(account.balance)
-                    .append(",\"overdraft\":").append(account.overdraft)
-                    .append("}");
-            break;
-        case 't':
-            final int transferId = idFromPath(httpRequest);
-            final Transaction transfer = api.getTransfer(transferId);
-            response.append("{\"transactionId\":\"")
-                    .append(transfer.transactionId).append("\",\"from\":\"")
-                    .append(transfer.from).append("\",\"to\":\"")
-                    .append(transfer.to).append("\",\"amount\":")
-                    .append(transfer.amount).append(",\"status\":\"")
-                    .append(transfer.status).append("\"}");
-            break;
-        case 'c':
-            response.append("{\"cents\":").append(api.countCentsInTheSystem())
-                    .append('}');
-            break;
-        case 'p':
-        case 'h':
-            // no body to return...
-            break;
-        default:
-            throw new IllegalArgumentException(
-                    "Found bad path " + (char) httpRequest[5] + " on ["
-                            + new String(httpRequest, 0, requestSize) + "]");
+    private void awaitTransfer(final OutputStream os,
+            final int requestLength, final long deadline, final int wait)
+            throws IOException {
+        // the answers to the requests before this one need not wait
+        if (out.buffer().position() > 0) {
+            writeResponses(os);
         }
 
-        final int contentLength = response.length();
-        response.insert(0, "\n\n").insert(0, contentLength).insert(0,
-                "HTTP/1.1 200 OK\nContent-Length: ");
-        return response.toString().getBytes();
+        final long until = nanoTime() + MILLISECONDS.toNanos(wait);
+        final Thread waiter = Thread.currentThread();
+        final boolean told = handler.whenDecided(in,
+                () -> LockSupport.unpark(waiter));
+        long wake = until;
+        if (deadline != 0L && deadline - wake < 0L) {
+            wake = deadline;
+        }
+        while (handler.handle(in, requestLength, deadline,
+                nanoTime() < until, out) > 0) {
+            LockSupport.parkNanos(told ? wake - nanoTime()
+                    : MILLISECONDS.toNanos(1L));
+            if (Thread.interrupted()) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
     }
 
-    /**
-     * Grab the identifier from a path in an HTTP GET request.
-     */
-    private int idFromPath(final byte[] httpRequest) {
-        int currentChar;
-        switch (httpRequest[5]) {
-        case 'a':
-            currentChar = 13;
-            break;
-        case 't':
-            currentChar = 14;
-            break;
-        default:
-            throw new IllegalArgumentException(
-                    "Found bad path " + (char) httpRequest[5] + " on ["
-                            + new String(httpRequest) + "]");
+    private int readRequest(final InputStream is, final int length)
+            throws IOException {
+        final int read = is.read(in, length, in.length - length);
 
+        if (trace && read != -1) {
+            err.println("read, size is now " + (length + read) + " ["
+                    + new String(in, 0, length + read) + "]");
         }
 
-        int value = 0;
-        while (httpRequest[currentChar] >= '0'
-                && httpRequest[currentChar] <= '9') {
-            value *= 10;
-            value += (httpRequest[currentChar] - '0');
-            currentChar++;
-        }
-        return value;
+        return read;
     }
 
-    private void writeResponse(final byte[] response, final OutputStream os)
-            throws IOException {
+    private void writeResponses(final OutputStream os) throws IOException {
+        final ByteBuffer responses = out.buffer();
         if (trace) {
-            err.println(new String(response));
+            err.println(new String(responses.array(), 0,
+                    responses.position()));
         }
 
-        os.write(response);
+        os.write(responses.array(), 0, responses.position());
         os.flush();
+        responses.clear();
+
+        RequestHandler.served();
     }
 }
@@ -0,0 +1,354 @@
+package com.ximedes.server;
+
+import static com.ximedes.server.RequestHandler.PAYLOAD_TOO_LARGE;
+import static com.ximedes.server.RequestParser.MAX_REQUEST_SIZE;
+import static com.ximedes.server.RequestParser.TOO_LARGE;
+import static java.lang.System.err;
+import static java.lang.System.exit;
+import static java.lang.System.nanoTime;
+import static java.nio.channels.SelectionKey.OP_READ;
+import static java.nio.channels.SelectionKey.OP_WRITE;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.ximedes.API;
+
+/**
+ * An event loop that serves many keep-alive connections on a single thread.
+ * The acceptor hands us the connections through {@link #add(SocketChannel)}
+ * and we read from whichever of them has bytes for us, using the same
+ * {@link RequestHandler} as the thread-per-connection server.
+ * <p>
+ * Each connection has its own input and output buffer, which we keep for as
+ * long as the connection lives. A read may hold part of a request or several
+ * of them, so we frame the requests properly and keep whatever is left over
+ * for the next read. All the responses to one read go out in one write. If
+ * the client does not take them all, we stop reading from that connection
+ * until it did.
+ * <p>
+ * A request that waits for a pending transfer stays at the start of its
+ * connection's input buffer, and the requests behind it wait with it, so
+ * that the answers still go out in order. A parked request costs us no
+ * thread. The ledger tells us when its transfer is decided, through
+ * {@link API#whenDecided(int, Runnable)}, and wakes up the selector. We only
+ * keep a timer for when the client stops waiting. A ledger that cannot
+ * tell us has us look again every {@link #PARKED_POLL_MILLIS}.
+ */
+class EventLoop implements Runnable {
+    private static final int BUFSIZE = 512; // bytes
+    private static final long PARKED_POLL_MILLIS = 1L;
+
+    private final Selector selector;
+    private final Queue<SocketChannel> added = new ConcurrentLinkedQueue<>();
+    private final RequestHandler handler;
+    private final List<SelectionKey> parked = new ArrayList<>();
+    private long nextWake = 0L; // nanoTime(), if anything is parked
+
+    // set by the ledger's threads when a transfer that we wait for was
+    // decided
+    private final AtomicBoolean decided = new AtomicBoolean(false);
+    private final Runnable wakeUp;
+
+    /**
+     * The buffers and the parser of a single connection.
+     */
+    private static final class Connection {
+        ByteBuffer in = ByteBuffer.allocate(BUFSIZE);
+        final ResponseBuffer out = new ResponseBuffer(BUFSIZE);
+        final RequestParser parser = new RequestParser();
+
+        // the request that waits for its transfer, if any
+        int parkedLength = 0;
+        long parkedDeadline = 0L;
+        long parkedUntil = 0L; // nanoTime()
+        boolean parkedPolls = false; // the ledger won't tell us
+        long parkedWake = 0L; // nanoTime()
+
+        // we answered a request that we cannot frame, and close after that
+        boolean closing = false;
+    }
+
+    /**
+     * Set up a new event loop.
+     *
+     * @param api
+     *            The API to call when a request comes in and was parsed.
+     * @throws IOException
+     *             When the selector could not be opened.
+     */
+    EventLoop(final API api) throws IOException {
+        super();
+
+        this.selector = Selector.open();
+        this.wakeUp = () -> {
+            decided.set(true);
+            selector.wakeup();
+        };
+        this.handler = new RequestHandler(api);
+    }
+
+    /**
+     * Hand a freshly accepted connection to this event loop. This is called
+     * from the acceptor thread.
+     *
+     * @param channel
+     *            The connection, already in non-blocking mode.
+     */
+    void add(final SocketChannel channel) {
+        added.add(channel);
+        selector.wakeup();
+    }
+
+    /**
+     * @see java.lang.Runnable#run()
+     */
+    @Override
+    public void run() {
+        try {
+            for (;;) {
+                if (parked.isEmpty()) {
+                    selector.select();
+                } else {
+                    // rounded up, so that we don't wake up just too early
+                    final long millis = NANOSECONDS
+                            .toMillis(nextWake - nanoTime()) + 1L;
+                    if (millis > 0L) {
+                        selector.select(millis);
+                    } else {
+                        selector.selectNow();
+                    }
+                }
+
+                SocketChannel channel;
+                while ((channel = added.poll()) != null) {
+                    channel.register(selector, OP_READ, new Connection());
+                }
+
+                final Iterator<SelectionKey> keys = selector.selectedKeys()
+                        .iterator();
+                while (keys.hasNext()) {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+
+                    try {
+                        if (key.isWritable()) {
+                            write(key);
+                        } else if (key.isReadable()) {
+                            read(key);
+                        }
+                    } catch (IOException e) {
+                        // the client went away, that is its business
+                        close(key);
+                    }
+                }
+
+                if (!parked.isEmpty() && (decided.getAndSet(false)
+                        || nanoTime() - nextWake >= 0L)) {
+                    answerParked();
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            err.println("Exiting...");
+            err.flush();
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e1) {
+                // ignore, we are going down anyway.
+            }
+            exit(1); // XXX Rude...
+        } finally {
+            err.println("Exiting EventLoop.run...");
+        }
+    }
+
+    private void read(final SelectionKey key) throws IOException {
+        final SocketChannel channel = (SocketChannel) key.channel();
+        final Connection connection = (Connection) key.attachment();
+
+        if (channel.read(connection.in) == -1) {
+            close(key);
+            return;
+        }
+        if (connection.parkedLength == 0) {
+            handleRequests(key, connection);
+        }
+
+        if (!connection.in.hasRemaining() && !connection.closing) {
+            // a request that is bigger than our buffer, most likely a batch
+            if (connection.in.capacity() >= MAX_REQUEST_SIZE) {
+                close(key);
+                return;
+            }
+            final ByteBuffer bigger = ByteBuffer
+                    .allocate(connection.in.capacity() * 2);
+            connection.in.flip();
+            bigger.put(connection.in);
+            connection.in = bigger;
+        }
+
+        if (connection.out.buffer().position() > 0) {
+            write(key);
+        }
+    }
+
+    /**
+     * Handle every complete request that we have, always at the start of the
+     * input buffer, since the parsers count on that. We stop at a request
+     * that waits for its transfer and park the connection.
+     */
+    private void handleRequests(final SelectionKey key,
+            final Connection connection) {
+        final byte[] request = connection.in.array();
+        int length = connection.in.position();
+        int requestLength;
+        while ((requestLength = connection.parser.parse(request,
+                length)) > 0) {
+            final int wait = handler.handle(request, requestLength,
+                    connection.parser.deadline(), true, connection.out);
+            if (wait > 0) {
+                park(key, connection, requestLength, wait);
+                break;
+            }
+
+            length -= requestLength;
+            System.arraycopy(request, requestLength, request, 0, length);
+        }
+        if (requestLength == TOO_LARGE) {
+            connection.out.put(PAYLOAD_TOO_LARGE);
+            connection.closing = true;
+            length = 0;
+        }
+        connection.in.position(length);
+    }
+
+    /**
+     * Park the request at the start of the input buffer, and ask the ledger
+     * to tell us when its transfer is decided.
+     */
+    private void park(final SelectionKey key, final Connection connection,
+            final int requestLength, final int wait) {
+        final long now = nanoTime();
+        connection.parkedLength = requestLength;
+        connection.parkedDeadline = connection.parser.deadline();
+        connection.parkedUntil = now + MILLISECONDS.toNanos(wait);
+        connection.parkedPolls = !handler
+                .whenDecided(connection.in.array(), wakeUp);
+        connection.parkedWake = wakeAt(connection, now);
+        if (parked.isEmpty() || connection.parkedWake - nextWake < 0L) {
+            nextWake = connection.parkedWake;
+        }
+        parked.add(key);
+    }
+
+    /**
+     * @return When we have to look at a parked request again even if the
+     *         ledger did not tell us about its transfer: when the client
+     *         stops waiting for it, or sooner if we have to poll.
+     */
+    private static long wakeAt(final Connection connection, final long now) {
+        long wake = connection.parkedUntil;
+        if (connection.parkedPolls
+                && now + MILLISECONDS.toNanos(PARKED_POLL_MILLIS) - wake < 0L) {
+            wake = now + MILLISECONDS.toNanos(PARKED_POLL_MILLIS);
+        }
+        if (connection.parkedDeadline != 0L
+                && connection.parkedDeadline - wake < 0L) {
+            wake = connection.parkedDeadline;
+        }
+        return wake;
+    }
+
+    /**
+     * Ask the handler again about the parked requests. It answers those
+     * whose transfer is no longer pending, and those that waited long
+     * enough. Then we carry on with the requests that came in behind them.
+     */
+    private void answerParked() {
+        final long now = nanoTime();
+        boolean waiting = false;
+        long next = 0L;
+        for (int i = 0; i < parked.size();) {
+            final SelectionKey key = parked.get(i);
+            final Connection connection = (Connection) key.attachment();
+            if (key.isValid() && handler.handle(connection.in.array(),
+                    connection.parkedLength, connection.parkedDeadline,
+                    now < connection.parkedUntil, connection.out) > 0) {
+                if (connection.parkedPolls) {
+                    connection.parkedWake = wakeAt(connection, now);
+                }
+                if (!waiting || connection.parkedWake - next < 0L) {
+                    next = connection.parkedWake;
+                    waiting = true;
+                }
+                i++;
+                continue;
+            }
+
+            // answered or closed, either way it is no longer parked
+            parked.set(i, parked.get(parked.size() - 1));
+            parked.remove(parked.size() - 1);
+            if (!key.isValid()) {
+                continue;
+            }
+
+            final byte[] request = connection.in.array();
+            final int length = connection.in.position()
+                    - connection.parkedLength;
+            System.arraycopy(request, connection.parkedLength, request, 0,
+                    length);
+            connection.in.position(length);
+            connection.parkedLength = 0;
+            handleRequests(key, connection);
+            try {
+                write(key);
+            } catch (IOException e) {
+                close(key);
+            }
+        }
+        nextWake = next;
+    }
+
+    /**
+     * Write out what we have for a connection. If the client did not take it
+     * all, we wait until it can take more before reading its next requests.
+     */
+    private void write(final SelectionKey key) throws IOException {
+        final SocketChannel channel = (SocketChannel) key.channel();
+        final Connection connection = (Connection) key.attachment();
+
+        final ByteBuffer out = connection.out.buffer();
+        out.flip();
+        channel.write(out);
+        final boolean done = !out.hasRemaining();
+        out.compact();
+        RequestHandler.served();
+
+        if (done && connection.closing) {
+            close(key);
+            return;
+        }
+        key.interestOps(done ? OP_READ : OP_WRITE);
+    }
+
+    private static void close(final SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            // ignore, we are done with it anyway
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package com.ximedes.server;
+
+import static java.lang.Math.max;
+import static java.lang.System.err;
+import static java.lang.System.nanoTime;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.ximedes.API;
+
+/**
+ * The pool of {@link ConnectionHandler} threads and the queue of accepted
+ * connections that waits for them. A handler owns its connection until the
+ * client closes it, so once all handlers are busy a new connection waits
+ * until another one goes away. We used to let it wait in an unbounded
+ * queue, and under overload the waits grew until every request missed the
+ * challenge's 25 ms cut-off.
+ * <p>
+ * Now the queue is bounded, and we answer the connections that do not fit
+ * with a prebuilt 503 right away. The pool grows, up to its maximum, as soon
+ * as the oldest connection in the queue has waited longer than
+ * {@link #GROW_AFTER_NANOS}. Once the pool is at its maximum, we answer the
+ * connections that waited past the cut-off with a 503 too, as well as new
+ * connections while the oldest waiting one is past it, since they would
+ * only miss it as well. Handlers that sit idle for
+ * {@link #IDLE_NANOS} retire, down to the minimum size of the pool.
+ * <p>
+ * The pools keep counters of what they do, which we serve on
+ * <code>GET /stats</code>.
+ */
+class HandlerPool {
+    private static final byte[] SERVICE_UNAVAILABLE = "HTTP/1.1 503 SERVICE UNAVAILABLE\nContent-Length: 0\nConnection: close\n\n"
+            .getBytes();
+
+    private static final long GROW_AFTER_NANOS = MILLISECONDS.toNanos(5L);
+    private static final long REJECT_AFTER_NANOS = MILLISECONDS.toNanos(25L);
+    private static final long IDLE_NANOS = SECONDS.toNanos(30L);
+
+    // all pools of this server, for the statistics
+    private static final List<HandlerPool> pools = new CopyOnWriteArrayList<>();
+
+    private final String name;
+    private final int minThreads;
+    private final int maxThreads;
+    private final API api;
+    private final BlockingQueue<Queued> queue;
+
+    private final AtomicInteger threads = new AtomicInteger(0);
+    private final AtomicInteger nextThread = new AtomicInteger(0);
+    private final AtomicLong taken = new AtomicLong(0L);
+    private final AtomicLong waitedNanos = new AtomicLong(0L);
+    private final AtomicLong maxWaitedNanos = new AtomicLong(0L);
+    private final AtomicLong rejected = new AtomicLong(0L);
+
+    /**
+     * A connection in the queue, with the time that it was queued.
+     */
+    private static final class Queued {
+        final Socket socket;
+        final long queuedAt = nanoTime();
+
+        Queued(final Socket socket) {
+            super();
+
+            this.socket = socket;
+        }
+    }
+
+    /**
+     * Set up a pool and start its minimum number of handlers.
+     *
+     * @param name
+     *            The prefix for the names of the handler threads.
+     * @param minThreads
+     *            The number of handlers that we keep, even when idle.
+     * @param maxThreads
+     *            The number of handlers that we grow to at most.
+     * @param queueSize
+     *            The number of connections that may wait for a handler.
+     * @param api
+     *            The API for the handlers to call.
+     */
+    HandlerPool(final String name, final int minThreads, final int maxThreads,
+            final int queueSize, final API api) {
+        super();
+
+        this.name = name;
+        this.minThreads = minThreads;
+        this.maxThreads = max(minThreads, maxThreads);
+        this.api = api;
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+
+        err.println("Spawning " + minThreads + " HTTP threads, growing to "
+                + this.maxThreads + ", with room for " + queueSize
+                + " waiting connections.");
+        for (int i = 0; i < minThreads; i++) {
+            spawn();
+        }
+        pools.add(this);
+
+        final Thread grower = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (;;) {
+                    try {
+                        NANOSECONDS.sleep(GROW_AFTER_NANOS / 2L);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    growIfWaiting();
+                    shedIfStale();
+                }
+            }
+        }, name + "grower");
+        grower.setDaemon(true);
+        grower.start();
+    }
+
+    /**
+     * Queue a connection that we just accepted, or turn it away if we are
+     * too busy.
+     */
+    void submit(final Socket socket) {
+        if ((threads.get() == maxThreads
+                && oldestWaitNanos() > REJECT_AFTER_NANOS)
+                || !queue.offer(new Queued(socket))) {
+            reject(socket);
+            return;
+        }
+        growIfWaiting();
+    }
+
+    /**
+     * Take the next connection to serve, waiting for one if there is none.
+     *
+     * @return The connection, or <code>null</code> if the calling handler
+     *         sat idle for so long that it should retire.
+     * @throws InterruptedException
+     *             When the handler was interrupted.
+     */
+    Socket take() throws InterruptedException {
+        for (;;) {
+            final Queued queued = queue.poll(IDLE_NANOS, NANOSECONDS);
+            if (queued != null) {
+                final long waited = nanoTime() - queued.queuedAt;
+                taken.incrementAndGet();
+                waitedNanos.addAndGet(waited);
+                long maxWaited;
+                while (waited > (maxWaited = maxWaitedNanos.get())
+                        && !maxWaitedNanos.compareAndSet(maxWaited, waited)) {
+                    // somebody else updated it, try again
+                }
+                return queued.socket;
+            }
+
+            final int current = threads.get();
+            if (current > minThreads
+                    && threads.compareAndSet(current, current - 1)) {
+                return null;
+            }
+        }
+    }
+
+    private long oldestWaitNanos() {
+        final Queued oldest = queue.peek();
+        return oldest == null ? 0L : nanoTime() - oldest.queuedAt;
+    }
+
+    /**
+     * Start another handler if the oldest connection in the queue has waited
+     * too long and we are not at our maximum yet.
+     */
+    private void growIfWaiting() {
+        if (oldestWaitNanos() > GROW_AFTER_NANOS) {
+            final int current = threads.get();
+            if (current < maxThreads
+                    && threads.compareAndSet(current, current + 1)) {
+                start();
+            }
+        }
+    }
+
+    /**
+     * Turn away the connections that waited past the cut-off, if we cannot
+     * grow any further. A handler may take the oldest connection from under
+     * us, which is why we remove that one connection and not just the head
+     * of the queue.
+     */
+    private void shedIfStale() {
+        while (threads.get() == maxThreads) {
+            final Queued oldest = queue.peek();
+            if (oldest == null
+                    || nanoTime() - oldest.queuedAt <= REJECT_AFTER_NANOS) {
+                return;
+            }
+            if (queue.remove(oldest)) {
+                reject(oldest.socket);
+            }
+        }
+    }
+
+    private void spawn() {
+        threads.incrementAndGet();
+        start();
+    }
+
+    private void start() {
+        new Thread(new ConnectionHandler(this, api),
+                name + nextThread.getAndIncrement()).start();
+    }
+
+    private void reject(final Socket socket) {
+        rejected.incrementAndGet();
+        try (final Socket s = socket) {
+            s.getOutputStream().write(SERVICE_UNAVAILABLE);
+        } catch (IOException e) {
+            // the client went away, which is fine with us
+        }
+    }
+
+    /**
+     * Append the statistics of all pools to a JSON object. The wait times
+     * are those of the connections that handlers took from the queues.
+     */
+    static void stats(final StringBuilder json) {
+        int queueDepth = 0;
+        int threads = 0;
+        long taken = 0L;
+        long waitedNanos = 0L;
+        long maxWaitedNanos = 0L;
+        long rejected = 0L;
+        for (final HandlerPool pool : pools) {
+            queueDepth += pool.queue.size();
+            threads += pool.threads.get();
+            taken += pool.taken.get();
+            waitedNanos += pool.waitedNanos.get();
+            maxWaitedNanos = max(maxWaitedNanos, pool.maxWaitedNanos.get());
+            rejected += pool.rejected.get();
+        }
+        json.append("\"queueDepth\":").append(queueDepth)
+                .append(",\"handlers\":").append(threads)
+                .append(",\"queued\":").append(taken)
+                .append(",\"averageWaitMicros\":")
+                .append(NANOSECONDS.toMicros(waitedNanos / max(taken, 1L)))
+                .append(",\"maxWaitMicros\":")
+                .append(NANOSECONDS.toMicros(maxWaitedNanos))
+                .append(",\"rejected\":").append(rejected);
+    }
+}
@@ -22,18 +22,37 @@ class HttpApiServer {
      *            The backlog to use from the application, note that the
      *            effective value is determined by a combination of this value
      *            and the <code>ulimit(1)</code. settings for the running user.
-     * @param poolsize
+     * @param acceptors
+     *            The number of threads that accept connections, each on a
+     *            listening socket of its own.
+     * @param minPoolsize
      *            The number of HTTP handling threads to spawn.
+     * @param maxPoolsize
+     *            The number of HTTP handling threads to grow to when
+     *            connections have to wait for one.
+     * @param queueSize
+     *            The number of connections that may wait for a thread before
+     *            we turn new ones away.
+     * @param selectors
+     *            The number of event loops to run, or 0 to run a thread per
+     *            connection instead.
+     * @param virtualThreads
+     *            Start a virtual thread for each connection, instead of
+     *            handing them to the pool of threads.
      * @param api
      *            The API to call when a request comes in and was parsed.
      * @throws Exception
      *             When the web server failed to start.
      */
-    public HttpApiServer(final int port, final int backlog, final int poolsize,
-            final API api) throws Exception {
+    public HttpApiServer(final int port, final int backlog,
+            final int acceptors, final int minPoolsize, final int maxPoolsize,
+            final int queueSize, final int selectors,
+            final boolean virtualThreads, final API api) throws Exception {
         super();
 
-        final WebServer webServer = new WebServer(port, backlog, poolsize, api);
+        final WebServer webServer = new WebServer(port, backlog, acceptors,
+                minPoolsize, maxPoolsize, queueSize, selectors, virtualThreads,
+                api);
         new Thread(new Runnable() {
             @Override
             public void run() {
@@ -0,0 +1,66 @@
+package com.ximedes.server;
+
+import static com.mashape.unirest.http.Unirest.post;
+import static com.ximedes.utils.SneakyThrows.sneakyThrow;
+
+import com.mashape.unirest.http.HttpResponse;
+import com.mashape.unirest.http.exceptions.UnirestException;
+import com.ximedes.PartitionedLedger;
+
+/**
+ * The link to another shard's node, used for phase two of cross-shard
+ * transfers. The other node serves these on <code>POST /deposit</code>, on
+ * a port that is only for its peers.
+ * <p>
+ * Every deposit ties up one of our handler threads until the other node
+ * answered. The other node handles the deposit without calling anyone else,
+ * and on handler threads of a pool that only serves its peers, so two nodes
+ * depositing into each other can never wait for each other in a circle,
+ * however busy their clients keep them.
+ */
+class HttpPeer implements PartitionedLedger.Peer {
+    private final String baseUrl;
+
+    /**
+     * Set up a link to a peer.
+     *
+     * @param baseUrl
+     *            The base URL (including trailing slash) of the peer.
+     */
+    HttpPeer(final String baseUrl) {
+        super();
+
+        this.baseUrl = baseUrl;
+    }
+
+    /**
+     * @see com.ximedes.PartitionedLedger.Peer#deposit(int, long, long, long,
+     *      int, int)
+     */
+    @Override
+    public boolean deposit(final int fromShard, final long incarnation,
+            final long depositId, final long settled, final int accountId,
+            final int amount) {
+        final String json = "{\"shard\":" + fromShard + ",\"incarnation\":"
+                + incarnation + ",\"deposit\":" + depositId
+                + ",\"settled\":" + settled + ",\"account\":" + accountId
+                + ",\"amount\":" + amount + "}";
+        try {
+            final HttpResponse<String> response = post(baseUrl + "deposit")
+                    .header("Content-Type", "application/json").body(json)
+                    .asString();
+
+            switch (response.getStatus()) {
+            case 200:
+                return true;
+            case 404:
+                return false;
+            default:
+                throw new IllegalStateException("deposit on " + baseUrl
+                        + " failed with " + response.getStatus());
+            }
+        } catch (UnirestException e) {
+            throw sneakyThrow(e);
+        }
+    }
+}
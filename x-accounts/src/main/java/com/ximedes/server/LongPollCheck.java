@@ -0,0 +1,275 @@
+package com.ximedes.server;
+
+import static com.ximedes.Status.CONFIRMED;
+import static com.ximedes.Status.PENDING;
+import static java.lang.System.exit;
+import static java.lang.System.nanoTime;
+import static java.lang.System.out;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import com.ximedes.API;
+import com.ximedes.Account;
+import com.ximedes.Transaction;
+
+/**
+ * Check the long poll of <code>GET /transfer/{id}?wait=</code>, on an event
+ * loop and on a thread per connection. None of our ledgers leave a transfer
+ * pending, so we serve a make-believe ledger in which transfer 1 is decided
+ * {@link #SETTLES_AFTER_MILLIS} after we start and transfer 2 never is. We
+ * run the checks twice: once with a ledger that tells us when transfer 1 is
+ * decided, and once with one that does not and has us poll.
+ * <p>
+ * We check that the answer about transfer 1 comes as soon as it is
+ * decided, that the one about transfer 2 comes when the wait is over, that
+ * a ping pipelined behind a parked request is answered after it and that
+ * the event loop keeps serving other connections in the meantime.
+ * <p>
+ * This exits with a non-zero status if any of that is not so.
+ */
+public class LongPollCheck {
+    private static final long SETTLES_AFTER_MILLIS = 200L;
+    private static final int WAIT_MILLIS = 400;
+
+    private static long settlesAt;
+
+    /**
+     * A ledger with two transfers, of which the first is decided after a
+     * while.
+     */
+    private static final class SlowLedger implements API {
+        private final ScheduledExecutorService timer;
+
+        SlowLedger(final boolean tells) {
+            super();
+
+            if (tells) {
+                timer = Executors.newSingleThreadScheduledExecutor(r -> {
+                    final Thread thread = new Thread(r, "slow-ledger");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            } else {
+                timer = null;
+            }
+        }
+
+        @Override
+        public int createAccount(final int overdraft) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Account getAccount(final int accountId) {
+            return null;
+        }
+
+        @Override
+        public int transfer(final int from, final int to, final int amount) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int transfer(final int[] from, final int[] to,
+                final int[] amount) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Transaction getTransfer(final int transferId) {
+            if (transferId == 1) {
+                return new Transaction(1, 10, 11, 5,
+                        nanoTime() < settlesAt ? PENDING : CONFIRMED);
+            }
+            if (transferId == 2) {
+                return new Transaction(2, 10, 11, 5, PENDING);
+            }
+            return null;
+        }
+
+        @Override
+        public void ping() {
+            // nothing to do
+        }
+
+        @Override
+        public int countCentsInTheSystem() {
+            return 0;
+        }
+
+        @Override
+        public boolean whenDecided(final int transferId,
+                final Runnable listener) {
+            if (timer == null) {
+                return false;
+            }
+            if (transferId == 1) {
+                timer.schedule(listener, settlesAt - nanoTime(), NANOSECONDS);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Run the check.
+     *
+     * @param args
+     *            Ignored.
+     * @throws Exception
+     *             When the check could not be run.
+     */
+    public static void main(final String[] args) throws Exception {
+        out.println("With a ledger that tells us:");
+        check(new SlowLedger(true));
+        out.println("With a ledger that has us poll:");
+        check(new SlowLedger(false));
+    }
+
+    private static void check(final API api) throws Exception {
+        try (final ServerSocketChannel serverChannel = ServerSocketChannel
+                .open()) {
+            serverChannel.bind(new InetSocketAddress("localhost", 0));
+            final InetSocketAddress address = (InetSocketAddress) serverChannel
+                    .getLocalAddress();
+
+            final EventLoop eventLoop = new EventLoop(api);
+            final Thread loop = new Thread(eventLoop, "long-poll-loop");
+            loop.setDaemon(true);
+            loop.start();
+            out.println("On an event loop:");
+            check(address, () -> {
+                final SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                eventLoop.add(channel);
+            }, true);
+
+            out.println("On a thread per connection:");
+            check(address, () -> {
+                final Thread handler = new Thread(new ConnectionHandler(
+                        serverChannel.accept().socket(), api));
+                handler.setDaemon(true);
+                handler.start();
+            }, false);
+        }
+    }
+
+    private interface Acceptor {
+        void accept() throws IOException;
+    }
+
+    private static void check(final InetSocketAddress address,
+            final Acceptor acceptor, final boolean sharedThread)
+            throws IOException {
+        try (final Socket waiting = new Socket(address.getAddress(),
+                address.getPort());
+                final Socket other = new Socket(address.getAddress(),
+                        address.getPort())) {
+            acceptor.accept();
+            acceptor.accept();
+
+            final long start = nanoTime();
+            settlesAt = start + MILLISECONDS.toNanos(SETTLES_AFTER_MILLIS);
+            send(waiting, "GET /transfer/1?wait=" + WAIT_MILLIS
+                    + " HTTP/1.1\n\nGET /ping HTTP/1.1\n\n");
+
+            if (sharedThread) {
+                // the loop must not be stuck on the parked request
+                send(other, "GET /ping HTTP/1.1\n\n");
+                final String ping = receive(other, 1);
+                check(ping.startsWith("HTTP/1.1 200")
+                        && elapsed(start) < SETTLES_AFTER_MILLIS,
+                        "other connection answered after " + elapsed(start)
+                                + " ms: " + ping);
+                out.println("  another connection was served after "
+                        + elapsed(start) + " ms");
+            }
+
+            final String settled = receive(waiting, 2);
+            final long settledAfter = elapsed(start);
+            check(settled.contains("\"status\":\"CONFIRMED\""),
+                    "expected a confirmed transfer: " + settled);
+            check(settledAfter >= SETTLES_AFTER_MILLIS
+                    && settledAfter < SETTLES_AFTER_MILLIS + 50L,
+                    "settled transfer answered after " + settledAfter
+                            + " ms");
+            check(settled.indexOf("HTTP/1.1 200") < settled
+                    .lastIndexOf("HTTP/1.1 200"),
+                    "expected the ping after the transfer: " + settled);
+            out.println("  decided transfer answered after " + settledAfter
+                    + " ms, pipelined ping after it");
+
+            final long before = nanoTime();
+            send(waiting, "GET /transfer/2?wait=" + WAIT_MILLIS
+                    + " HTTP/1.1\n\n");
+            final String pending = receive(waiting, 1);
+            final long pendingAfter = elapsed(before);
+            check(pending.contains("\"status\":\"PENDING\""),
+                    "expected a pending transfer: " + pending);
+            check(pendingAfter >= WAIT_MILLIS
+                    && pendingAfter < WAIT_MILLIS + 50L,
+                    "pending transfer answered after " + pendingAfter
+                            + " ms");
+            out.println("  pending transfer answered after " + pendingAfter
+                    + " ms");
+        }
+    }
+
+    private static long elapsed(final long start) {
+        return NANOSECONDS.toMillis(nanoTime() - start);
+    }
+
+    private static void send(final Socket socket, final String requests)
+            throws IOException {
+        final OutputStream os = socket.getOutputStream();
+        os.write(requests.getBytes());
+        os.flush();
+    }
+
+    /**
+     * Read the given number of responses. We know their sizes from their
+     * <code>Content-Length</code> headers.
+     */
+    private static String receive(final Socket socket, final int responses)
+            throws IOException {
+        final InputStream is = socket.getInputStream();
+        final StringBuilder received = new StringBuilder();
+        int complete = 0;
+        while (complete < responses) {
+            final int b = is.read();
+            if (b == -1) {
+                throw new IOException("connection closed after ["
+                        + received + "]");
+            }
+            received.append((char) b);
+
+            final String all = received.toString();
+            final int headersEnd = all.lastIndexOf("\n\n");
+            final int lengthAt = all.lastIndexOf("Content-Length: ");
+            if (headersEnd > lengthAt && lengthAt != -1) {
+                final int contentLength = Integer.parseInt(all.substring(
+                        lengthAt + 16, all.indexOf('\n', lengthAt)));
+                if (all.length() == headersEnd + 2 + contentLength) {
+                    complete++;
+                }
+            }
+        }
+        return received.toString();
+    }
+
+    private static void check(final boolean ok, final String message) {
+        if (!ok) {
+            out.println("Wrong: " + message);
+            exit(1);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package com.ximedes.server;
+
+import static java.lang.Math.min;
+import static java.lang.System.exit;
+import static java.lang.System.nanoTime;
+import static java.lang.System.out;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+import com.sun.management.ThreadMXBean;
+
+/**
+ * Check that the {@link RequestParser} frames requests correctly no matter
+ * where the network splits them, and that it allocates nothing while it
+ * does so. We feed it a stream of pipelined requests of all kinds, first
+ * split at every possible point and then in reads of random sizes. We also
+ * check that it picks up the timeouts of the requests that have one. We read
+ * the bytes that this thread allocated from the {@link ThreadMXBean} before
+ * and after parsing a million requests.
+ * <p>
+ * This exits with a non-zero status if a request was framed wrong or if the
+ * parser allocated anything.
+ */
+public class ParserAllocationCheck {
+    private static final int WARMUP = 200000;
+    private static final int REQUESTS = 1000000;
+
+    private static final String[] REQUESTS_OF_ALL_KINDS = {
+            "GET /transfer/1234 HTTP/1.1\nHost: localhost\n\n",
+            "GET /account/7 HTTP/1.1\r\nHost: localhost\r\n\r\n",
+            "POST /transfer HTTP/1.1\r\nContent-Type: application/json\r\n"
+                    + "Content-Length: 34\r\n\r\n"
+                    + "{\"from\":\"1\",\"to\":\"2\",\"amount\":300}",
+            "POST /account HTTP/1.1\ncontent-length: 16\n\n"
+                    + "{\"overdraft\":10}",
+            "POST /transfers HTTP/1.1\nCONTENT-LENGTH:26\nHost: x\n\n"
+                    + "1,2,3\n4,5,6\n7,8,9\n10,11,1\n",
+            "GET /ping HTTP/1.1\n\n",
+            "GET /account/12 HTTP/1.1\r\nX-Timeout-Millis: 2500\r\n"
+                    + "Host: localhost\r\n\r\n",
+            "POST /transfer HTTP/1.1\nx-timeout-millis:0\n"
+                    + "Content-Length: 34\n\n"
+                    + "{\"from\":\"1\",\"to\":\"2\",\"amount\":300}" };
+
+    private static int[] lengths;
+    private static long[] timeouts;
+    private static byte[] stream;
+
+    // the number of requests that the last call to frame() found
+    private static int framed;
+
+    /**
+     * Run the check.
+     *
+     * @param args
+     *            Ignored.
+     */
+    public static void main(final String[] args) {
+        lengths = new int[REQUESTS_OF_ALL_KINDS.length];
+        timeouts = new long[lengths.length];
+        final StringBuilder all = new StringBuilder();
+        for (int i = 0; i < lengths.length; i++) {
+            lengths[i] = REQUESTS_OF_ALL_KINDS[i].length();
+            final String lowerCase = REQUESTS_OF_ALL_KINDS[i].toLowerCase();
+            final int timeout = lowerCase.indexOf("x-timeout-millis:");
+            timeouts[i] = timeout == -1 ? -1L
+                    : Long.parseLong(lowerCase.substring(timeout + 17,
+                            lowerCase.indexOf('\n', timeout)).trim());
+            all.append(REQUESTS_OF_ALL_KINDS[i]);
+        }
+        stream = all.toString().getBytes();
+
+        // every split point of the whole stream, in two reads
+        final RequestParser parser = new RequestParser();
+        final byte[] buffer = new byte[stream.length];
+        for (int split = 1; split < stream.length; split++) {
+            feed(parser, buffer, split, stream.length - split);
+        }
+        out.println("Framed " + lengths.length + " requests correctly at all "
+                + (stream.length - 1) + " split points.");
+
+        // reads of all sizes, for a warm-up and then for the measurement
+        feed(parser, buffer, WARMUP);
+        final ThreadMXBean threads = (ThreadMXBean) ManagementFactory
+                .getThreadMXBean();
+        final long thread = Thread.currentThread().getId();
+        final long allocatedBefore = threads.getThreadAllocatedBytes(thread);
+        final long start = nanoTime();
+        feed(parser, buffer, REQUESTS);
+        final long nanos = nanoTime() - start;
+        final long allocated = threads.getThreadAllocatedBytes(thread)
+                - allocatedBefore;
+
+        out.printf("Parsed %d requests in random reads, %d ns per request, "
+                + "%d bytes allocated.%n", REQUESTS, nanos / REQUESTS,
+                allocated);
+        if (allocated > 0L) {
+            out.println("The parser allocates.");
+            exit(1);
+        }
+    }
+
+    /**
+     * Feed the stream to the parser in two reads, of the given sizes.
+     */
+    private static void feed(final RequestParser parser, final byte[] buffer,
+            final int first, final int second) {
+        int length = 0;
+        int request = 0;
+        int position = 0;
+        for (final int read : new int[] { first, second }) {
+            System.arraycopy(stream, position, buffer, length, read);
+            position += read;
+            length += read;
+            length = frame(parser, buffer, length, request);
+            request += framed;
+        }
+        check(request == lengths.length && length == 0,
+                "split at " + first + " framed " + request + " requests");
+    }
+
+    /**
+     * Feed the stream to the parser over and over, in reads of pseudo-random
+     * sizes, until it framed the given number of requests.
+     */
+    private static void feed(final RequestParser parser, final byte[] buffer,
+            final int requests) {
+        int seed = 17;
+        int length = 0;
+        int request = 0;
+        int position = 0;
+        for (int done = 0; done < requests;) {
+            seed = seed * 1103515245 + 12345;
+            final int read = min(((seed >>> 16) & 127) + 1,
+                    min(buffer.length - length, stream.length - position));
+            System.arraycopy(stream, position, buffer, length, read);
+            position = (position + read) % stream.length;
+            length += read;
+
+            length = frame(parser, buffer, length, request);
+            request = (request + framed) % lengths.length;
+            done += framed;
+        }
+    }
+
+    /**
+     * Frame all complete requests in the buffer, checking their lengths.
+     *
+     * @return What is left in the buffer.
+     */
+    private static int frame(final RequestParser parser, final byte[] buffer,
+            int length, final int firstRequest) {
+        framed = 0;
+        int requestLength;
+        while ((requestLength = parser.parse(buffer, length)) != -1) {
+            final int kind = (firstRequest + framed) % lengths.length;
+            if (requestLength != lengths[kind]) {
+                check(false, "framed " + requestLength + " bytes instead of "
+                        + lengths[kind] + " in "
+                        + Arrays.toString(Arrays.copyOf(buffer, length)));
+            }
+            if (parser.timeoutMillis() != timeouts[kind]) {
+                check(false, "found timeout " + parser.timeoutMillis()
+                        + " instead of " + timeouts[kind]);
+            }
+            framed++;
+
+            length -= requestLength;
+            System.arraycopy(buffer, requestLength, buffer, 0, length);
+        }
+        return length;
+    }
+
+    private static void check(final boolean ok, final String message) {
+        if (!ok) {
+            out.println("Wrong: " + message);
+            exit(1);
+        }
+    }
+}
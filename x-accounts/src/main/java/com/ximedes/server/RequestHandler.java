@@ -0,0 +1,760 @@
+package com.ximedes.server;
+
+import static com.ximedes.Status.PENDING;
+import static com.ximedes.server.ResponseBuffer.decimalLength;
+import static java.lang.Math.min;
+import static java.lang.System.err;
+import static java.lang.System.nanoTime;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.ximedes.API;
+import com.ximedes.Account;
+import com.ximedes.PartitionedLedger;
+import com.ximedes.Partitions;
+import com.ximedes.Status;
+import com.ximedes.Transaction;
+
+/**
+ * The parsing and handling of the HTTP requests, separate from how we get
+ * the bytes off the network. Both the thread-per-connection
+ * {@link ConnectionHandler} and the {@link EventLoop} hand us complete
+ * requests in a byte array and write out the response bytes that we append
+ * to their {@link ResponseBuffer}.
+ * <p>
+ * An instance is not thread-safe. Each thread that handles requests should
+ * have its own.
+ */
+class RequestHandler {
+    private final API api;
+    private final PartitionedLedger shard; // null if we are not partitioned
+    private final Auditor auditor;
+
+    // the flyweight that we read all transfers through
+    private final Transaction transferView = new Transaction(-1, -1, -1, -1,
+            Status.PENDING);
+
+    private static final byte[] BAD_REQUEST = "HTTP/1.1 400 BAD REQUEST\nContent-Length: 0\n\n"
+            .getBytes();
+    private static final byte[] NOT_FOUND = "HTTP/1.1 404 NOT FOUND\nContent-Length: 0\n\n"
+            .getBytes();
+    static final byte[] PAYLOAD_TOO_LARGE = "HTTP/1.1 413 PAYLOAD TOO LARGE\nContent-Length: 0\nConnection: close\n\n"
+            .getBytes();
+    private static final byte[] OK = "HTTP/1.1 200 OK\nContent-Length: 0\n\n"
+            .getBytes();
+
+    // the fixed parts of the GET responses, see encode()
+    private static final byte[] OK_CONTENT_LENGTH = "HTTP/1.1 200 OK\nContent-Length: "
+            .getBytes();
+    private static final byte[] END_OF_HEADERS = "\n\n".getBytes();
+    private static final byte[] ACCOUNT_ID = "{\"accountId\":\"".getBytes();
+    private static final byte[] BALANCE = "\",\"balance\":".getBytes();
+    private static final byte[] OVERDRAFT = ",\"overdraft\":".getBytes();
+    private static final byte[] TRANSACTION_ID = "{\"transactionId\":\""
+            .getBytes();
+    private static final byte[] FROM = "\",\"from\":\"".getBytes();
+    private static final byte[] TO = "\",\"to\":\"".getBytes();
+    private static final byte[] AMOUNT = "\",\"amount\":".getBytes();
+    private static final byte[] STATUS = ",\"status\":\"".getBytes();
+    private static final byte[] END_OF_STATUS = "\"}".getBytes();
+    private static final byte[] CENTS = "{\"cents\":".getBytes();
+    private static final byte[] END_OF_OBJECT = "}".getBytes();
+
+    // the fixed parts of the POST responses, see accepted()
+    private static final byte[] ACCOUNT_ACCEPTED = "HTTP/1.1 202 ACCEPTED\nLocation: /account/"
+            .getBytes();
+    private static final byte[] TRANSFER_ACCEPTED = "HTTP/1.1 202 ACCEPTED\nLocation: /transfer/"
+            .getBytes();
+    private static final byte[] NO_CONTENT = "\nContent-Length: 0\n\n"
+            .getBytes();
+    private static final byte[] TRANSFER_STATUS = "\nTransfer-Status: "
+            .getBytes();
+    private static final byte[] EXPIRED = "HTTP/1.1 503 SERVICE UNAVAILABLE\nContent-Length: 0\n\n"
+            .getBytes();
+
+    private static final byte[][] STATUS_NAMES = new byte[Status
+            .values().length][];
+    static {
+        for (final Status status : Status.values()) {
+            STATUS_NAMES[status.ordinal()] = status.toString().getBytes();
+        }
+    }
+
+    private static final byte[] WAIT = "?wait=".getBytes();
+    private static final int MAX_WAIT_MILLIS = 60000;
+
+    private static volatile boolean firstRequestServed = false;
+
+    // the requests that we dropped because they were past their deadline
+    private static final AtomicLong shedReads = new AtomicLong(0L);
+    private static final AtomicLong shedWrites = new AtomicLong(0L);
+
+    RequestHandler(final API api) {
+        super();
+
+        this.api = api;
+        this.shard = api instanceof PartitionedLedger ? (PartitionedLedger) api
+                : null;
+        this.auditor = Auditor.of(api);
+    }
+
+    /**
+     * Handle a single, complete HTTP request.
+     * <p>
+     * If the client told us when it stops waiting for the answer, and that
+     * moment has passed, we do not bother with the request and answer with
+     * a bare 503. Under overload this keeps us from spending our time on
+     * work that nobody waits for, which would only make the backlog grow.
+     * Since we check before we call the API, a write that we drop was never
+     * applied, and one that we apply always gets its answer.
+     * <p>
+     * A request for a path that we don't know gets a 404, and one that we
+     * cannot make sense of a 400. Neither takes the connection or the
+     * server down.
+     * <p>
+     * A client may also ask us to hold on to the answer about a transfer
+     * that is still pending, for at most a number of milliseconds, with
+     * <code>GET /transfer/115637?wait=5000</code>. If we may wait, we do not
+     * answer such a request but return how long the client wants to wait.
+     * It is then up to the caller to park the request, without tying up a
+     * thread, and hand it to us again later. Once the transfer is no longer
+     * pending, or when the caller says that we may no longer wait, we answer
+     * it.
+     * 
+     * @param request
+     *            The buffer that holds the request, starting at index 0.
+     * @param requestLength
+     *            The length of the request, as found by the
+     *            {@link RequestParser}.
+     * @param deadline
+     *            The deadline of the request on the clock of
+     *            {@link System#nanoTime()}, as found by the
+     *            {@link RequestParser}, or 0 if it has none.
+     * @param mayWait
+     *            Whether we may leave a request for a pending transfer
+     *            unanswered for now.
+     * @param response
+     *            The buffer to append the HTTP response to.
+     * @return 0 if we answered the request, or the number of milliseconds
+     *         that the client wants to wait for its pending transfer.
+     */
+    int handle(final byte[] request, final int requestLength,
+            final long deadline, final boolean mayWait,
+            final ResponseBuffer response) {
+        if (deadline != 0L && nanoTime() - deadline > 0L) {
+            (isPOST(request) ? shedWrites : shedReads).incrementAndGet();
+            response.put(EXPIRED);
+            return 0;
+        }
+
+        try {
+            if (isBatch(request)) {
+                handleBatch(request, bodyStart(request, requestLength),
+                        requestLength, response);
+            } else if (isPOST(request)) {
+                handlePOST(request, requestLength, response);
+            } else {
+                return handleGET(request, requestLength, mayWait, response);
+            }
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            // our parsers trust the request, so a garbled one makes them
+            // trip, before they called the API
+            response.put(BAD_REQUEST);
+        }
+        return 0;
+    }
+
+    /**
+     * Determine if an HTTP request calls the POST method, or some other method.
+     * We simply check the first letter of the request. If that is a capital P,
+     * this request is likely a call to HTTP POST. Likely enough for our
+     * purposes.
+     * 
+     * @return <true> if this is an HTTP POST, or <false> if it is not. Most
+     *         likely an HTTP GET, but we don't check.
+     */
+    private static boolean isPOST(final byte[] httpRequest) {
+        return httpRequest[0] == 'P';
+    }
+
+    /**
+     * Determine if an HTTP request posts a batch of transfers. Again we look
+     * at a single letter, the one after <code>POST /transfer</code>.
+     */
+    private static boolean isBatch(final byte[] httpRequest) {
+        return httpRequest[0] == 'P' && httpRequest[6] == 't'
+                && httpRequest[14] == 's';
+    }
+
+    /**
+     * Handle an HTTP POST request. We use the same crude byte indexing to
+     * determine what the path is that is being posted to. Then we parse the
+     * body, in style.
+     * 
+     * <pre>
+     *   POST /[a]ccount HTTP/1.1
+     *   POST /[t]ransfer HTTP/1.1
+     *   POST /[t]ransfer?status HTTP/1.1
+     *   POST /[d]eposit HTTP/1.1
+     * </pre>
+     * 
+     * A client that asks for the status of a new transfer gets it in a
+     * header of the response, which saves it the look-up that it would
+     * otherwise need. The ledgers decide on a transfer before they return
+     * from it, so we always know the outcome.
+     * <p>
+     * The deposits are not part of the challenge API, they are phase two of
+     * transfers between the shards of a partitioned ledger.
+     */
+    private void handlePOST(final byte[] httpRequest, final int requestSize,
+            final ResponseBuffer response) {
+        switch (httpRequest[6]) {
+        case 'a':
+            final int accountId = createAccount(httpRequest, requestSize);
+            accepted(ACCOUNT_ACCEPTED, accountId, response);
+            break;
+        case 't':
+            final int transferId = transfer(httpRequest, requestSize);
+            if (wantsStatus(httpRequest)) {
+                accepted(api.getTransfer(transferId, transferView), response);
+            } else {
+                accepted(TRANSFER_ACCEPTED, transferId, response);
+            }
+            break;
+        case 'd':
+            response.put(deposit(httpRequest, requestSize) ? OK : NOT_FOUND);
+            break;
+        default:
+            response.put(NOT_FOUND);
+        }
+    }
+
+    /**
+     * Determine if the client posted to <code>/transfer?status</code>. The
+     * question mark follows <code>POST /transfer</code>, right where a batch
+     * has its 's'.
+     */
+    private static boolean wantsStatus(final byte[] httpRequest) {
+        return httpRequest[14] == '?';
+    }
+
+    /**
+     * Handle a batch of transfers. The body is a list of numbers: from, to
+     * and amount for each transfer, separated by anything that is not a
+     * digit.
+     * 
+     * <pre>
+     *   POST /transfers HTTP/1.1
+     *   Content-Length: 30
+     *
+     *   1,301,1
+     *   2,301,1
+     *   3,302,1
+     * </pre>
+     * 
+     * We answer with the location of the first transfer, the rest of the
+     * batch follows it. A body that is empty, or that does not hold three
+     * numbers for every transfer, gets a 400.
+     * 
+     * @param body
+     *            The buffer that holds the body.
+     * @param start
+     *            The start of the body in the buffer.
+     * @param end
+     *            The end of the body in the buffer.
+     * @param response
+     *            The buffer to append the HTTP response to.
+     */
+    private void handleBatch(final byte[] body, final int start,
+            final int end, final ResponseBuffer response) {
+        // count the numbers first, so that we can size the arrays
+        int numbers = 0;
+        for (int i = start; i < end; i++) {
+            if (isDigit(body[i]) && (i == start || !isDigit(body[i - 1]))) {
+                numbers++;
+            }
+        }
+        if (numbers == 0 || numbers % 3 != 0) {
+            response.put(BAD_REQUEST);
+            return;
+        }
+
+        final int[] from = new int[numbers / 3];
+        final int[] to = new int[from.length];
+        final int[] amount = new int[from.length];
+        int currentChar = start;
+        for (int i = 0; i < from.length * 3; i++) {
+            while (!isDigit(body[currentChar])) {
+                currentChar++;
+            }
+            int value = 0;
+            while (currentChar < end && isDigit(body[currentChar])) {
+                value *= 10;
+                value += (body[currentChar] - '0');
+                currentChar++;
+            }
+
+            switch (i % 3) {
+            case 0:
+                from[i / 3] = value;
+                break;
+            case 1:
+                to[i / 3] = value;
+                break;
+            default:
+                amount[i / 3] = value;
+            }
+        }
+
+        accepted(TRANSFER_ACCEPTED, api.transfer(from, to, amount), response);
+    }
+
+    private static boolean isDigit(final byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    /**
+     * Find where the body starts, just past the empty line that ends the
+     * headers.
+     * 
+     * @return The start of the body, or -1 if the headers are not complete.
+     */
+    private static int bodyStart(final byte[] httpRequest,
+            final int requestSize) {
+        for (int i = 1; i < requestSize; i++) {
+            if (httpRequest[i] == '\n' && (httpRequest[i - 1] == '\n'
+                    || (httpRequest[i - 1] == '\r' && i > 1
+                            && httpRequest[i - 2] == '\n'))) {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Write the response for a new account or transfer. All that varies is
+     * the identifier, so we copy the fixed parts around it.
+     * 
+     * <pre>
+     *   HTTP/1.1 202 ACCEPTED
+     *   Location: /transfer/115637
+     *   Content-Length: 0
+     * </pre>
+     */
+    static void accepted(final byte[] location, final int id,
+            final ResponseBuffer response) {
+        response.put(location);
+        response.putDecimal(id);
+        response.put(NO_CONTENT);
+    }
+
+    /**
+     * Write the response for a new transfer, with its status. This is the
+     * same as the plain response, plus one header.
+     * 
+     * <pre>
+     *   HTTP/1.1 202 ACCEPTED
+     *   Location: /transfer/115637
+     *   Transfer-Status: CONFIRMED
+     *   Content-Length: 0
+     * </pre>
+     */
+    static void accepted(final Transaction transfer,
+            final ResponseBuffer response) {
+        response.put(TRANSFER_ACCEPTED);
+        response.putDecimal(transfer.transactionId);
+        response.put(TRANSFER_STATUS);
+        response.put(STATUS_NAMES[transfer.status.ordinal()]);
+        response.put(NO_CONTENT);
+    }
+
+    /**
+     * Parse the overdraft from the HTTP request body and create an account with
+     * the specified overdraft. The overdraft value is the last numeric value in
+     * the HTTP request, so it is pretty easy to find of we start at the back
+     * and work our way forward.
+     */
+    private int createAccount(final byte[] httpRequest, final int requestSize) {
+        int overdraft = 0;
+
+        // skip over all non-numeric stuff, like the trailing brace and any
+        // whitespace there.
+        int currentChar = requestSize - 1;
+        while (httpRequest[currentChar] < '0'
+                || httpRequest[currentChar] > '9') {
+            currentChar--;
+        }
+
+        // now read all digits and accumulate those into an overdraft value.
+        int factor = 1;
+        while (httpRequest[currentChar] >= '0'
+                && httpRequest[currentChar] <= '9') {
+            overdraft += ((httpRequest[currentChar] - '0') * factor);
+            factor *= 10;
+            currentChar--;
+        }
+
+        return api.createAccount(overdraft);
+    }
+
+    private int transfer(final byte[] httpRequest, final int requestSize) {
+        int from = -1;
+        int to = -1;
+        int amount = -1;
+
+        int currentChar = requestSize - 1;
+        for (int i = 0; i < 3; i++) {
+            int value = 0;
+
+            // skip over all non-numeric stuff, like the trailing brace and any
+            // whitespace there.
+            while (httpRequest[currentChar] < '0'
+                    || httpRequest[currentChar] > '9') {
+                currentChar--;
+            }
+
+            // now read all digits and accumulate those into a value.
+            int factor = 1;
+            while (httpRequest[currentChar] >= '0'
+                    && httpRequest[currentChar] <= '9') {
+                value += ((httpRequest[currentChar] - '0') * factor);
+                factor *= 10;
+                currentChar--;
+            }
+
+            // again skip over stuff until we see one of the letters signifying
+            // a field name. We use the last letter of the field name to
+            // identify what field we have, fro[m], t[o] or amoun[t].
+            while (httpRequest[currentChar] != 'm'
+                    && httpRequest[currentChar] != 'o'
+                    && httpRequest[currentChar] != 't') {
+                currentChar--;
+            }
+
+            switch (httpRequest[currentChar]) {
+            case 'm':
+                from = value;
+                break;
+            case 'o':
+                to = value;
+                break;
+            case 't':
+                amount = value;
+                break;
+            default:
+                throw new IllegalArgumentException(
+                        "bad identifier " + httpRequest[currentChar]);
+            }
+        }
+
+        return api.transfer(from, to, amount);
+    }
+
+    /**
+     * Parse a deposit from another shard and apply it. The body has the
+     * sending shard and its incarnation, the identifier of the deposit and
+     * how far the sender settled its deposits, and then the account and the
+     * amount. We read these six numeric values, again starting at the back.
+     * 
+     * <pre>
+     *   {"shard":1,"incarnation":1792321352699,"deposit":5,"settled":3,
+     *    "account":457,"amount":1}
+     * </pre>
+     */
+    private boolean deposit(final byte[] httpRequest, final int requestSize) {
+        if (shard == null) {
+            throw new IllegalArgumentException(
+                    "deposit on a server that is not partitioned");
+        }
+
+        final long[] values = new long[6];
+        int currentChar = requestSize - 1;
+        for (int i = values.length - 1; i >= 0; i--) {
+            // skip over all non-numeric stuff, like the trailing brace, the
+            // field name and any whitespace there.
+            while (httpRequest[currentChar] < '0'
+                    || httpRequest[currentChar] > '9') {
+                currentChar--;
+            }
+
+            // now read all digits and accumulate those into a value.
+            long factor = 1L;
+            while (httpRequest[currentChar] >= '0'
+                    && httpRequest[currentChar] <= '9') {
+                values[i] += ((httpRequest[currentChar] - '0') * factor);
+                factor *= 10L;
+                currentChar--;
+            }
+        }
+
+        return shard.deposit((int) values[0], values[1], values[2], values[3],
+                (int) values[4], (int) values[5]);
+    }
+
+    /**
+     * Handle the HTTP GET requests. This time we don't have to parse the body.
+     * We can simply use the path to find out what is being requested. Again, we
+     * use a single character to identify which path is being used.
+     * 
+     * <pre>
+     *   GET /[a]ccount/457 HTTP/1.1
+     *   GET /[a]udit HTTP/1.1
+     *   GET /[t]ransfer/115637 HTTP/1.1
+     *   GET /[t]ransfer/115637?wait=5000 HTTP/1.1
+     *   GET /[p]ing HTTP/1.1
+     *   GET /[c]ountCentsInTheSystem HTTP/1.1
+     *   GET /[h]ealth HTTP/1.1
+     *   GET /[n]odes HTTP/1.1
+     *   GET /[s]tats HTTP/1.1
+     * </pre>
+     * 
+     * We then optionally grab the identifier from the path.
+     * 
+     * @return 0 if we answered, or how long the client wants to wait for its
+     *         pending transfer, see
+     *         {@link #handle(byte[], int, long, boolean, ResponseBuffer)}.
+     */
+    private int handleGET(final byte[] httpRequest, final int requestSize,
+            final boolean mayWait, final ResponseBuffer response) {
+        switch (httpRequest[5]) {
+        case 'a':
+            if (httpRequest[6] == 'u') {
+                // the running total and the latest full audit, which
+                // answers at once and leaves the scan to the fork-join pool
+                final StringBuilder audit = new StringBuilder("{");
+                auditor.audit(audit);
+                final byte[] auditBody = audit.append('}').toString()
+                        .getBytes();
+                ok(auditBody.length, response);
+                response.put(auditBody);
+                break;
+            }
+            final Account account = api.getAccount(idFromPath(httpRequest));
+            if (account == null) {
+                response.put(NOT_FOUND);
+            } else {
+                encode(account, response);
+            }
+            break;
+        case 't':
+            final Transaction transfer = api
+                    .getTransfer(idFromPath(httpRequest), transferView);
+            if (transfer == null) {
+                response.put(NOT_FOUND);
+            } else if (mayWait && transfer.status == PENDING
+                    && waitFromPath(httpRequest) > 0) {
+                return waitFromPath(httpRequest);
+            } else {
+                encode(transfer, response);
+            }
+            break;
+        case 'c':
+            // the balances added up, not the running total, which no
+            // transfer ever touches. The transfers go on while we count,
+            // only this connection waits for the scan.
+            encodeCents(api.auditCentsInTheSystem(), response);
+            break;
+        case 'n':
+            // the partition map, empty if we are not partitioned. This is
+            // asked once per client, so we don't bother to encode it fast.
+            final StringBuilder nodes = new StringBuilder("{\"nodes\":[");
+            if (shard != null) {
+                final Partitions partitions = shard.partitions();
+                for (int i = 0; i < partitions.shards(); i++) {
+                    nodes.append(i == 0 ? "\"" : ",\"")
+                            .append(partitions.node(i)).append('"');
+                }
+            }
+            final byte[] body = nodes.append("]}").toString().getBytes();
+            ok(body.length, response);
+            response.put(body);
+            break;
+        case 's':
+            // the counters of the handler pools, which are for humans
+            // and their monitoring, so no need to be fast here either
+            final StringBuilder stats = new StringBuilder("{");
+            HandlerPool.stats(stats);
+            stats.append(",\"shedReads\":").append(shedReads.get())
+                    .append(",\"shedWrites\":").append(shedWrites.get());
+            final byte[] statsBody = stats.append('}').toString().getBytes();
+            ok(statsBody.length, response);
+            response.put(statsBody);
+            break;
+        case 'p':
+        case 'h':
+            // no body to return...
+            ok(0, response);
+            break;
+        default:
+            response.put(NOT_FOUND);
+        }
+        return 0;
+    }
+
+    /**
+     * Write the headers of a 200 response. We always know the length of the
+     * body before we start, so we never have to go back and insert it.
+     */
+    private static void ok(final int contentLength,
+            final ResponseBuffer response) {
+        response.put(OK_CONTENT_LENGTH);
+        response.putDecimal(contentLength);
+        response.put(END_OF_HEADERS);
+    }
+
+    /**
+     * Encode an account as a response.
+     * 
+     * <pre>
+     *   {"accountId":"457","balance":10,"overdraft":0}
+     * </pre>
+     */
+    static void encode(final Account account, final ResponseBuffer response) {
+        ok(ACCOUNT_ID.length + decimalLength(account.accountId)
+                + BALANCE.length + decimalLength(account.balance)
+                + OVERDRAFT.length + decimalLength(account.overdraft)
+                + END_OF_OBJECT.length, response);
+        response.put(ACCOUNT_ID);
+        response.putDecimal(account.accountId);
+        response.put(BALANCE);
+        response.putDecimal(account.balance);
+        response.put(OVERDRAFT);
+        response.putDecimal(account.overdraft);
+        response.put(END_OF_OBJECT);
+    }
+
+    /**
+     * Encode a transfer as a response.
+     * 
+     * <pre>
+     *   {"transactionId":"115637","from":"12","to":"301","amount":1,"status":"CONFIRMED"}
+     * </pre>
+     */
+    static void encode(final Transaction transfer,
+            final ResponseBuffer response) {
+        final byte[] status = STATUS_NAMES[transfer.status.ordinal()];
+        ok(TRANSACTION_ID.length + decimalLength(transfer.transactionId)
+                + FROM.length + decimalLength(transfer.from) + TO.length
+                + decimalLength(transfer.to) + AMOUNT.length
+                + decimalLength(transfer.amount) + STATUS.length
+                + status.length + END_OF_STATUS.length, response);
+        response.put(TRANSACTION_ID);
+        response.putDecimal(transfer.transactionId);
+        response.put(FROM);
+        response.putDecimal(transfer.from);
+        response.put(TO);
+        response.putDecimal(transfer.to);
+        response.put(AMOUNT);
+        response.putDecimal(transfer.amount);
+        response.put(STATUS);
+        response.put(status);
+        response.put(END_OF_STATUS);
+    }
+
+    /**
+     * Encode the number of cents in the system as a response.
+     * 
+     * <pre>
+     *   {"cents":3000000}
+     * </pre>
+     */
+    static void encodeCents(final long cents, final ResponseBuffer response) {
+        ok(CENTS.length + decimalLength(cents) + END_OF_OBJECT.length,
+                response);
+        response.put(CENTS);
+        response.putDecimal(cents);
+        response.put(END_OF_OBJECT);
+    }
+
+    /**
+     * Grab the identifier from a path in an HTTP GET request.
+     */
+    private int idFromPath(final byte[] httpRequest) {
+        int currentChar;
+        switch (httpRequest[5]) {
+        case 'a':
+            currentChar = 13;
+            break;
+        case 't':
+            currentChar = 14;
+            break;
+        default:
+            throw new IllegalArgumentException(
+                    "Found bad path " + (char) httpRequest[5] + " on ["
+                            + new String(httpRequest) + "]");
+
+        }
+
+        int value = 0;
+        while (httpRequest[currentChar] >= '0'
+                && httpRequest[currentChar] <= '9') {
+            value *= 10;
+            value += (httpRequest[currentChar] - '0');
+            currentChar++;
+        }
+        return value;
+    }
+
+    /**
+     * Grab the number of milliseconds to wait from the query of a
+     * <code>GET /transfer/115637?wait=5000</code>, which follows right after
+     * the identifier. We wait a minute at most.
+     * 
+     * @return The milliseconds to wait, or 0 if the client does not want to.
+     */
+    private static int waitFromPath(final byte[] httpRequest) {
+        int currentChar = 14;
+        while (isDigit(httpRequest[currentChar])) {
+            currentChar++;
+        }
+        for (int i = 0; i < WAIT.length; i++) {
+            if (httpRequest[currentChar++] != WAIT[i]) {
+                return 0;
+            }
+        }
+
+        int value = 0;
+        while (isDigit(httpRequest[currentChar])
+                && value < MAX_WAIT_MILLIS) {
+            value *= 10;
+            value += (httpRequest[currentChar] - '0');
+            currentChar++;
+        }
+        return min(value, MAX_WAIT_MILLIS);
+    }
+
+    /**
+     * Have a listener called once the transfer that a parked request waits
+     * for is decided, see {@link API#whenDecided(int, Runnable)}.
+     *
+     * @param request
+     *            The parked request, which {@link #handle} did not answer.
+     * @param listener
+     *            What to call once the transfer is no longer pending.
+     * @return <code>true</code> if the listener will be called, or
+     *         <code>false</code> if the caller has to look again by itself.
+     */
+    boolean whenDecided(final byte[] request, final Runnable listener) {
+        return api.whenDecided(idFromPath(request), listener);
+    }
+
+    /**
+     * Note that a response was sent, so that we can report how long it took
+     * until we served the first one.
+     */
+    static void served() {
+        if (!firstRequestServed) {
+            firstRequestServed();
+        }
+    }
+
+    private static synchronized void firstRequestServed() {
+        if (!firstRequestServed) {
+            firstRequestServed = true;
+            err.println("Served the first request "
+                    + NANOSECONDS.toMillis(nanoTime() - ServerMain.started)
+                    + " ms after starting.");
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package com.ximedes.server;
+
+import static java.lang.Integer.MAX_VALUE;
+import static java.lang.System.nanoTime;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Frames the HTTP requests on a connection. The network delivers the bytes
+ * in whatever pieces it likes: a request may be split at any point, even in
+ * the middle of the <code>Content-Length</code> header, and a single read
+ * may hold several pipelined requests. The parser looks at every byte only
+ * once, keeping its state between reads, and it allocates nothing.
+ * <p>
+ * The connection reads into a buffer and calls {@link #parse(byte[], int)}
+ * after each read. Once that returns the length of a request, the connection
+ * handles the request and moves whatever follows it to the start of the
+ * buffer, where the parser picks up the next request.
+ * <p>
+ * On the way we pick up the <code>X-Timeout-Millis</code> header, if the
+ * client sent one, so that we can drop the requests that the client already
+ * gave up on. It holds how many milliseconds the client still waits for the
+ * answer. We turn that into a deadline on our own clock the moment that we
+ * framed the request, so the clocks of client and server need not agree.
+ * <p>
+ * An instance belongs to a single connection at a time.
+ */
+class RequestParser {
+    /**
+     * The largest request that the connections buffer. That is room for a
+     * batch of some 60,000 transfers, and it keeps a client that never ends
+     * its request from making us double our buffer until we run out of
+     * memory.
+     */
+    static final int MAX_REQUEST_SIZE = 1 << 20; // bytes
+
+    /**
+     * What {@link #parse(byte[], int)} returns for a request whose
+     * <code>Content-Length</code> does not fit in
+     * {@link #MAX_REQUEST_SIZE}. We cannot find where such a request ends,
+     * so the connection has to answer it with a 413 and close.
+     */
+    static final int TOO_LARGE = -2;
+
+    private static final byte[] CONTENT_LENGTH = "content-length:"
+            .getBytes();
+    private static final byte[] TIMEOUT = "x-timeout-millis:".getBytes();
+
+    private static final int HEADERS = 0;
+    private static final int BODY = 1;
+
+    private int state = HEADERS;
+    private int scanned = 0; // bytes of this request that we looked at
+    private int lineStart = 0;
+    private int matched = 0; // bytes of CONTENT_LENGTH matched on this line
+    private int contentLength = 0;
+    private boolean inContentLength = false;
+    private int matchedTimeout = 0; // bytes of TIMEOUT matched on this line
+    private long timeout = -1L; // milliseconds, -1 if the client sent none
+    private boolean inTimeout = false;
+    private int bodyStart = 0;
+
+    // the timeout and the deadline of the request that we returned last
+    private long requestTimeout = -1L;
+    private long requestDeadline = 0L;
+
+    /**
+     * Parse what we have of the request at the start of the buffer.
+     *
+     * @param buffer
+     *            The buffer, with the request starting at index 0.
+     * @param length
+     *            The number of bytes in the buffer.
+     * @return The length of the request, including its body, -1 if it is
+     *         not complete yet, or {@link #TOO_LARGE}.
+     */
+    int parse(final byte[] buffer, final int length) {
+        if (state == HEADERS) {
+            for (; scanned < length; scanned++) {
+                final byte b = buffer[scanned];
+                if (b == '\n') {
+                    if (endOfHeaders(buffer)) {
+                        bodyStart = scanned + 1;
+                        state = BODY;
+                        break;
+                    }
+                    lineStart = scanned + 1;
+                    matched = 0;
+                    inContentLength = false;
+                    matchedTimeout = 0;
+                    inTimeout = false;
+                } else if (inContentLength) {
+                    // once the length is too large we stop adding digits,
+                    // so that it cannot overflow into something small
+                    if (b >= '0' && b <= '9'
+                            && contentLength <= MAX_REQUEST_SIZE) {
+                        contentLength = contentLength * 10 + (b - '0');
+                    }
+                } else if (inTimeout) {
+                    // like the length, the timeout stops growing once it is
+                    // longer than anyone waits, so that it cannot overflow
+                    if (b >= '0' && b <= '9' && timeout <= MAX_VALUE) {
+                        timeout = timeout * 10L + (b - '0');
+                    }
+                } else {
+                    // still matching the header names, in whatever case the
+                    // client wrote them
+                    final int column = scanned - lineStart;
+                    if (matched == column && matched < CONTENT_LENGTH.length
+                            && lowerCase(b) == CONTENT_LENGTH[matched]) {
+                        matched++;
+                        inContentLength = matched == CONTENT_LENGTH.length;
+                    }
+                    if (matchedTimeout == column
+                            && matchedTimeout < TIMEOUT.length
+                            && lowerCase(b) == TIMEOUT[matchedTimeout]) {
+                        matchedTimeout++;
+                        if (matchedTimeout == TIMEOUT.length) {
+                            inTimeout = true;
+                            timeout = 0L;
+                        }
+                    }
+                }
+            }
+        }
+
+        if (state == BODY && contentLength > MAX_REQUEST_SIZE - bodyStart) {
+            reset();
+            return TOO_LARGE;
+        }
+        if (state == BODY && length >= bodyStart + contentLength) {
+            final int requestLength = bodyStart + contentLength;
+            requestTimeout = timeout;
+            requestDeadline = timeout < 0L ? 0L
+                    : nanoTime() + MILLISECONDS.toNanos(timeout);
+            reset();
+            return requestLength;
+        }
+        return -1;
+    }
+
+    /**
+     * @return The deadline of the request that {@link #parse(byte[], int)}
+     *         returned last, on the clock of {@link System#nanoTime()}, or 0
+     *         if the client gave it no timeout.
+     */
+    long deadline() {
+        return requestDeadline;
+    }
+
+    /**
+     * @return The timeout that the client gave the request that
+     *         {@link #parse(byte[], int)} returned last, in milliseconds, or
+     *         -1 if it gave none.
+     */
+    long timeoutMillis() {
+        return requestTimeout;
+    }
+
+    /**
+     * Check if the line feed that we are looking at ends an empty line,
+     * which marks the end of the headers.
+     */
+    private boolean endOfHeaders(final byte[] buffer) {
+        return scanned == lineStart
+                || (scanned == lineStart + 1 && buffer[lineStart] == '\r');
+    }
+
+    private static byte lowerCase(final byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+    }
+
+    /**
+     * Forget about any request that we were in the middle of, for when the
+     * connection that we parsed for went away.
+     */
+    void reset() {
+        state = HEADERS;
+        scanned = 0;
+        lineStart = 0;
+        matched = 0;
+        contentLength = 0;
+        inContentLength = false;
+        matchedTimeout = 0;
+        timeout = -1L;
+        inTimeout = false;
+        bodyStart = 0;
+    }
+}
@@ -0,0 +1,127 @@
+package com.ximedes.server;
+
+import static java.lang.Math.max;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The responses that a connection is about to write, encoded straight into
+ * bytes. Each connection keeps one of these for as long as it lives, so that
+ * encoding a response allocates nothing. The buffer grows when a response
+ * does not fit, which only happens for the first few responses.
+ * <p>
+ * The bytes live in a heap {@link ByteBuffer}, so that the event loops can
+ * write them to a channel as they are. The blocking handler writes the
+ * backing array.
+ */
+final class ResponseBuffer {
+    private ByteBuffer buffer;
+
+    ResponseBuffer(final int capacity) {
+        super();
+
+        this.buffer = ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * @return The buffer that holds the responses. Do not hold on to it,
+     *         since it is replaced when it grows.
+     */
+    ByteBuffer buffer() {
+        return buffer;
+    }
+
+    /**
+     * Append some bytes.
+     */
+    void put(final byte[] bytes) {
+        ensure(bytes.length);
+        final int position = buffer.position();
+        System.arraycopy(bytes, 0, buffer.array(),
+                buffer.arrayOffset() + position, bytes.length);
+        buffer.position(position + bytes.length);
+    }
+
+    /**
+     * Append the decimal text of a number, without making a string of it
+     * first.
+     */
+    void putDecimal(final int value) {
+        final int length = decimalLength(value);
+        ensure(length);
+
+        final byte[] bytes = buffer.array();
+        final int start = buffer.arrayOffset() + buffer.position();
+        int i = start + length;
+        // work with the negative value, so that Integer.MIN_VALUE works too
+        int remaining = value < 0 ? value : -value;
+        do {
+            bytes[--i] = (byte) ('0' - remaining % 10);
+            remaining /= 10;
+        } while (remaining != 0);
+        if (value < 0) {
+            bytes[--i] = '-';
+        }
+        buffer.position(buffer.position() + length);
+    }
+
+    /**
+     * Append the decimal text of a long number, like
+     * {@link #putDecimal(int)}.
+     */
+    void putDecimal(final long value) {
+        final int length = decimalLength(value);
+        ensure(length);
+
+        final byte[] bytes = buffer.array();
+        final int start = buffer.arrayOffset() + buffer.position();
+        int i = start + length;
+        long remaining = value < 0L ? value : -value;
+        do {
+            bytes[--i] = (byte) ('0' - remaining % 10L);
+            remaining /= 10L;
+        } while (remaining != 0L);
+        if (value < 0L) {
+            bytes[--i] = '-';
+        }
+        buffer.position(buffer.position() + length);
+    }
+
+    /**
+     * Find how many characters the decimal text of a number takes, including
+     * the minus sign.
+     */
+    static int decimalLength(final int value) {
+        // again negative, since -Integer.MIN_VALUE does not fit in an int
+        final int negative = value < 0 ? value : -value;
+        int length = 1;
+        for (int limit = -10; length < 10 && negative <= limit; limit *= 10) {
+            length++;
+        }
+        return value < 0 ? length + 1 : length;
+    }
+
+    /**
+     * Find how many characters the decimal text of a long number takes,
+     * including the minus sign.
+     */
+    static int decimalLength(final long value) {
+        final long negative = value < 0L ? value : -value;
+        int length = 1;
+        for (long limit = -10L; length < 19
+                && negative <= limit; limit *= 10L) {
+            length++;
+        }
+        return value < 0L ? length + 1 : length;
+    }
+
+    private void ensure(final int length) {
+        if (buffer.remaining() < length) {
+            final ByteBuffer bigger = ByteBuffer.allocate(
+                    max(buffer.capacity() * 2, buffer.position() + length));
+            buffer.flip();
+            bigger.put(buffer);
+            buffer = bigger;
+        }
+    }
+}
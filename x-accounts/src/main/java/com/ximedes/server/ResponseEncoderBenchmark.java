@@ -0,0 +1,208 @@
+package com.ximedes.server;
+
+import static java.lang.System.exit;
+import static java.lang.System.nanoTime;
+import static java.lang.System.out;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.sun.management.ThreadMXBean;
+import com.ximedes.Account;
+import com.ximedes.Status;
+import com.ximedes.Transaction;
+
+/**
+ * Compare the byte encoder for the GET responses with the way we used to
+ * build them: a <code>StringBuilder</code>, three inserts to put the headers
+ * in front, <code>toString()</code> and <code>getBytes()</code>. We do the
+ * same for the POST responses, which we used to precompute for the first few
+ * million identifiers. We first check that old and new give exactly the
+ * same bytes, for random values and for the extremes. Then we time both and
+ * read the bytes that they allocate from the {@link ThreadMXBean}.
+ * <p>
+ * This exits with a non-zero status if the encodings differ.
+ */
+public class ResponseEncoderBenchmark {
+    private static final int RUNS = 5;
+    private static final int RESPONSES = 2000000;
+
+    private static final byte[] TRANSFER_ACCEPTED = "HTTP/1.1 202 ACCEPTED\nLocation: /transfer/"
+            .getBytes();
+
+    private static final int[] EXTREMES = { 0, 1, -1, 9, 10, -10, 99, 100,
+            Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MAX_VALUE - 1,
+            Integer.MIN_VALUE + 1, 1000000000, -1000000000 };
+
+    // so that the JIT cannot drop the work
+    private static long sink = 0L;
+
+    /**
+     * Run the benchmark.
+     *
+     * @param args
+     *            Ignored.
+     */
+    public static void main(final String[] args) {
+        final ResponseBuffer response = new ResponseBuffer(512);
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < 1000000; i++) {
+            checkIdentical(
+                    new Account(random.nextInt(), random.nextInt(),
+                            random.nextInt()),
+                    new Transaction(random.nextInt(4000000),
+                            random.nextInt(300301), random.nextInt(300301),
+                            random.nextInt(), Status.values()[i % 4]),
+                    random.nextInt(), response);
+        }
+        for (final int a : EXTREMES) {
+            for (final int b : EXTREMES) {
+                checkIdentical(new Account(a, b, a),
+                        new Transaction(a, b, a, b, Status.CONFIRMED), a,
+                        response);
+            }
+        }
+        out.println("Both encoders give the same bytes.");
+
+        final Account[] accounts = new Account[1024];
+        final Transaction[] transfers = new Transaction[accounts.length];
+        for (int i = 0; i < accounts.length; i++) {
+            accounts[i] = new Account(random.nextInt(300301),
+                    random.nextInt(1000), random.nextInt(2) * 1000000);
+            transfers[i] = new Transaction(random.nextInt(4000000),
+                    random.nextInt(300301), random.nextInt(300301),
+                    random.nextInt(1, 11), Status.values()[i % 4]);
+        }
+
+        out.println(
+                "encoder             ns/response  bytes allocated/response");
+        for (int run = 0; run < RUNS; run++) {
+            final boolean last = run == RUNS - 1;
+            measure("GET StringBuilder", last, () -> {
+                for (int i = 0; i < RESPONSES; i++) {
+                    final int j = i & (accounts.length - 1);
+                    sink += (i & 1) == 0 ? encodeOld(accounts[j]).length
+                            : encodeOld(transfers[j]).length;
+                }
+            });
+            measure("GET ResponseBuffer", last, () -> {
+                for (int i = 0; i < RESPONSES; i++) {
+                    final int j = i & (accounts.length - 1);
+                    if ((i & 1) == 0) {
+                        RequestHandler.encode(accounts[j], response);
+                    } else {
+                        RequestHandler.encode(transfers[j], response);
+                    }
+                    sink += response.buffer().position();
+                    response.buffer().clear();
+                }
+            });
+            measure("POST concatenation", last, () -> {
+                for (int i = 0; i < RESPONSES; i++) {
+                    sink += acceptedOld(transfers[i & (accounts.length - 1)]
+                            .transactionId).length;
+                }
+            });
+            measure("POST template", last, () -> {
+                for (int i = 0; i < RESPONSES; i++) {
+                    RequestHandler.accepted(TRANSFER_ACCEPTED,
+                            transfers[i & (accounts.length - 1)].transactionId,
+                            response);
+                    sink += response.buffer().position();
+                    response.buffer().clear();
+                }
+            });
+        }
+        if (sink == 42L) {
+            out.println();
+        }
+    }
+
+    private static void measure(final String name, final boolean print,
+            final Runnable encoding) {
+        final ThreadMXBean threads = (ThreadMXBean) ManagementFactory
+                .getThreadMXBean();
+        final long thread = Thread.currentThread().getId();
+        final long allocatedBefore = threads.getThreadAllocatedBytes(thread);
+        final long start = nanoTime();
+        encoding.run();
+        final long nanos = nanoTime() - start;
+        final long allocated = threads.getThreadAllocatedBytes(thread)
+                - allocatedBefore;
+        if (print) {
+            out.printf("%-19s %11d %25d%n", name, nanos / RESPONSES,
+                    allocated / RESPONSES);
+        }
+    }
+
+    private static void checkIdentical(final Account account,
+            final Transaction transfer, final int cents,
+            final ResponseBuffer response) {
+        RequestHandler.encode(account, response);
+        check(encodeOld(account), response);
+        RequestHandler.encode(transfer, response);
+        check(encodeOld(transfer), response);
+        RequestHandler.encodeCents(cents, response);
+        check(encodeOldCents(cents), response);
+        final int id = cents & Integer.MAX_VALUE;
+        RequestHandler.accepted(TRANSFER_ACCEPTED, id, response);
+        check(acceptedOld(id), response);
+    }
+
+    private static void check(final byte[] expected,
+            final ResponseBuffer response) {
+        final ByteBuffer buffer = response.buffer();
+        final byte[] actual = Arrays.copyOf(buffer.array(),
+                buffer.position());
+        buffer.clear();
+        if (!Arrays.equals(expected, actual)) {
+            out.println("Expected [" + new String(expected) + "] but got ["
+                    + new String(actual) + "]");
+            exit(1);
+        }
+    }
+
+    // below is how RequestHandler.handleGET() used to build the responses
+
+    private static byte[] encodeOld(final Account account) {
+        final StringBuilder response = new StringBuilder("");
+        response.append("{\"accountId\":\"").append(account.accountId)
+                .append("\",\"balance\":").append(account.balance)
+                .append(",\"overdraft\":").append(account.overdraft)
+                .append("}");
+        return withHeaders(response);
+    }
+
+    private static byte[] encodeOld(final Transaction transfer) {
+        final StringBuilder response = new StringBuilder("");
+        response.append("{\"transactionId\":\"")
+                .append(transfer.transactionId).append("\",\"from\":\"")
+                .append(transfer.from).append("\",\"to\":\"")
+                .append(transfer.to).append("\",\"amount\":")
+                .append(transfer.amount).append(",\"status\":\"")
+                .append(transfer.status).append("\"}");
+        return withHeaders(response);
+    }
+
+    private static byte[] encodeOldCents(final int cents) {
+        final StringBuilder response = new StringBuilder("");
+        response.append("{\"cents\":").append(cents).append('}');
+        return withHeaders(response);
+    }
+
+    private static byte[] withHeaders(final StringBuilder response) {
+        final int contentLength = response.length();
+        response.insert(0, "\n\n").insert(0, contentLength).insert(0,
+                "HTTP/1.1 200 OK\nContent-Length: ");
+        return response.toString().getBytes();
+    }
+
+    // and how the POST responses were precomputed, or built beyond that
+
+    private static byte[] acceptedOld(final int transferId) {
+        return ("HTTP/1.1 202 ACCEPTED\nLocation: /transfer/" + transferId
+                + "\nContent-Length: 0\n\n").getBytes();
+    }
+}
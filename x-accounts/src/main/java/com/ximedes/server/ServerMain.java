@@ -1,9 +1,32 @@
 package com.ximedes.server;
 
+import static com.ximedes.Durability.NONE;
+import static com.ximedes.Ledgers.newLedger;
+import static java.lang.Boolean.getBoolean;
+import static java.lang.Integer.getInteger;
 import static java.lang.Long.MAX_VALUE;
+import static java.lang.Long.getLong;
 import static java.lang.System.err;
+import static java.lang.System.getProperty;
+import static java.lang.System.nanoTime;
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
 
+import java.io.File;
+import java.net.MalformedURLException;
+import java.net.URL;
+
+import com.mashape.unirest.http.Unirest;
 import com.ximedes.API;
+import com.ximedes.Durability;
+import com.ximedes.Journal;
+import com.ximedes.JournaledLedger;
+import com.ximedes.Partitionable;
+import com.ximedes.PartitionedLedger;
+import com.ximedes.PartitionedLedger.Peer;
+import com.ximedes.Partitions;
+import com.ximedes.Recoverable;
+import com.ximedes.SequencedLedger;
 import com.ximedes.Simpleton;
 
 /**
@@ -12,8 +35,57 @@ import com.ximedes.Simpleton;
  * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
  */
 public class ServerMain {
+    // when main() was called, so we can report how long startup took
+    static long started;
+
+    private static final int CLIENT_CONNECTIONS = 150;
+    private static final int PEER_CONNECTIONS = 32; // per peer
+
     /**
-     * Start the HTTP server to serve the API requests for the challenge.
+     * Start the HTTP server to serve the API requests for the challenge. The
+     * server is configured with system properties:
+     * 
+     * <pre>
+     *   x-accounts.ledger              simpleton, cas, sequenced or combining
+     *                                  (cas with virtual threads, simpleton
+     *                                  otherwise)
+     *   x-accounts.stripes             the number of stripes of a hot
+     *                                  account in the simpleton (cores)
+     *   x-accounts.durability          none, batched or per-request (none)
+     *   x-accounts.journal.dir         where the journal lives (journal)
+     *   x-accounts.journal.flushMicros longest wait for a batch flush (1000)
+     *   x-accounts.journal.batchSize   records that force an early flush (256)
+     *   x-accounts.snapshot.seconds    time between snapshots, 0 is never (60)
+     *   x-accounts.port                the port to listen on (8080)
+     *   x-accounts.binary.port         the port to serve the binary protocol
+     *                                  on, or 0 for none (0)
+     *   x-accounts.acceptors           the number of threads that accept
+     *                                  connections, each on a socket of its
+     *                                  own with SO_REUSEPORT (1)
+     *   x-accounts.pool.min            the number of threads to serve the
+     *                                  connections from (150)
+     *   x-accounts.pool.max            the number of threads to grow to when
+     *                                  connections wait for one (600)
+     *   x-accounts.pool.queue          the number of connections that may
+     *                                  wait for a thread before we answer
+     *                                  new ones with a 503 (1024)
+     *   x-accounts.selectors           the number of event loops to serve
+     *                                  the connections from, or 0 for a
+     *                                  thread per connection (0)
+     *   x-accounts.virtualThreads      true to start a virtual thread per
+     *                                  connection instead of using a fixed
+     *                                  pool of threads (false)
+     *   x-accounts.partition.nodes     comma separated base URLs of all the
+     *                                  shards' nodes, in shard order (none)
+     *   x-accounts.partition.shard     the shard that this node owns (0)
+     *   x-accounts.partition.peerPortOffset
+     *                                  how far above its client port each
+     *                                  node serves the deposits of its peers
+     *                                  (1000)
+     * </pre>
+     * 
+     * To run a partitioned ledger, start one server per shard, all with the
+     * same list of nodes and each with its own shard number and port.
      * 
      * @param args
      *            Ignored.
@@ -21,12 +93,138 @@ public class ServerMain {
      *             When there was an error starting the server.
      */
     public static void main(final String[] args) throws Exception {
-        final API api = new Simpleton();
+        started = nanoTime();
+
+        final boolean virtualThreads = getBoolean("x-accounts.virtualThreads");
+        final int selectors = getInteger("x-accounts.selectors", 0);
+        final API ledger = openLedger(virtualThreads, selectors);
+        final String nodes = getProperty("x-accounts.partition.nodes");
+        final API api;
+        final int poolsize = getInteger("x-accounts.pool.min",
+                CLIENT_CONNECTIONS);
+        final int maxPoolsize = getInteger("x-accounts.pool.max",
+                4 * CLIENT_CONNECTIONS);
+        if (nodes == null) {
+            api = ledger;
+        } else {
+            // the event loops would block on the deposits into the other
+            // shards, and two nodes whose loops all wait for each other
+            // never get anywhere
+            if (selectors > 0) {
+                throw new IllegalArgumentException(
+                        "a partitioned ledger needs a thread per connection");
+            }
+            final int peerPortOffset = getInteger(
+                    "x-accounts.partition.peerPortOffset", 1000);
+            api = partition(ledger, Partitions.parse(nodes),
+                    getInteger("x-accounts.partition.shard", 0),
+                    peerPortOffset);
+
+            // Our peers' deposits get a port and handler threads of their
+            // own, one for each connection that they may open to us. Had
+            // they shared the pool with our clients, the clients could take
+            // all the threads while they wait for deposits on other nodes,
+            // whose threads all wait for deposits on ours.
+            final int peerConnections = PEER_CONNECTIONS
+                    * (((PartitionedLedger) api).partitions().shards() - 1);
+            Unirest.setConcurrency(peerConnections, PEER_CONNECTIONS);
+            @SuppressWarnings("unused")
+            final HttpApiServer peerServer = new HttpApiServer(
+                    getInteger("x-accounts.port", 8080) + peerPortOffset,
+                    1024, 1, peerConnections, peerConnections, 1024, 0,
+                    false, api);
+        }
+
         @SuppressWarnings("unused")
-        final HttpApiServer httpApiServer = new HttpApiServer(8080, 1024, 150,
-                api);
+        final HttpApiServer httpApiServer = new HttpApiServer(
+                getInteger("x-accounts.port", 8080), 1024,
+                getInteger("x-accounts.acceptors", 1), poolsize, maxPoolsize,
+                getInteger("x-accounts.pool.queue", 1024), selectors,
+                virtualThreads, api);
+
+        final int binaryPort = getInteger("x-accounts.binary.port", 0);
+        if (binaryPort > 0) {
+            new Thread(new BinaryServer(binaryPort, 1024, api),
+                    "binary-acceptor").start();
+        }
 
         Thread.sleep(MAX_VALUE);
         err.println("Done sleeping...");
     }
+
+    private static API openLedger(final boolean virtualThreads,
+            final int selectors) throws Exception {
+        final API ledger = newLedger(getProperty("x-accounts.ledger",
+                virtualThreads ? "cas" : "simpleton"));
+        err.println(
+                "Using the " + ledger.getClass().getSimpleName() + " ledger.");
+
+        final Durability durability = Durability
+                .parse(getProperty("x-accounts.durability", "none"));
+        err.println("Durability mode is " + durability + ".");
+
+        // A virtual thread that blocks inside a synchronized block pins its
+        // carrier thread, and there are only as many carriers as cores. The
+        // monitors of the simpleton and the journal's group commit would
+        // soon have every carrier pinned.
+        if (virtualThreads
+                && (ledger instanceof Simpleton || durability != NONE)) {
+            throw new IllegalArgumentException("virtual threads need a "
+                    + "ledger that does not lock, like cas or sequenced, "
+                    + "without a journal");
+        }
+
+        // An event loop serves many connections, and while it waits for the
+        // applier of the sequenced ledger or for the journal to flush, all
+        // of them wait. A few loops would spend most of their time waiting.
+        if (selectors > 0
+                && (ledger instanceof SequencedLedger || durability != NONE)) {
+            throw new IllegalArgumentException("event loops need a ledger "
+                    + "that answers without waiting, like simpleton, cas or "
+                    + "combining, without a journal");
+        }
+
+        if (durability == NONE) {
+            return ledger;
+        }
+        if (!(ledger instanceof Recoverable)) {
+            throw new IllegalArgumentException(
+                    ledger.getClass().getSimpleName()
+                            + " cannot be recovered from a journal");
+        }
+
+        final Journal journal = new Journal(
+                new File(getProperty("x-accounts.journal.dir", "journal")),
+                durability,
+                MICROSECONDS.toNanos(
+                        getLong("x-accounts.journal.flushMicros", 1000L)),
+                getInteger("x-accounts.journal.batchSize", 256));
+        return new JournaledLedger((Recoverable) ledger, journal,
+                SECONDS.toMillis(getLong("x-accounts.snapshot.seconds", 60L)));
+    }
+
+    private static API partition(final API ledger,
+            final Partitions partitions, final int shard,
+            final int peerPortOffset) throws MalformedURLException {
+        // the journal does not know about the two phases of a cross-shard
+        // transfer, so for now a partitioned ledger lives in memory only
+        if (!(ledger instanceof Partitionable)) {
+            throw new IllegalArgumentException(
+                    ledger.getClass().getSimpleName()
+                            + " cannot hold a shard of a partitioned ledger");
+        }
+
+        final Peer[] peers = new Peer[partitions.shards()];
+        for (int i = 0; i < peers.length; i++) {
+            final URL node = new URL(partitions.node(i));
+            final int port = node.getPort() < 0 ? node.getDefaultPort()
+                    : node.getPort();
+            peers[i] = new HttpPeer(new URL(node.getProtocol(), node.getHost(),
+                    port + peerPortOffset, node.getFile()).toString());
+        }
+        err.println("Serving shard " + shard + " of " + partitions.shards()
+                + ".");
+        return new PartitionedLedger((Partitionable) ledger, partitions,
+                shard, peers);
+    }
 }
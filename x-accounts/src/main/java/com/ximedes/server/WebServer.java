@@ -1,12 +1,20 @@
 package com.ximedes.server;
 
+import static java.lang.Math.max;
 import static java.lang.System.err;
+import static java.lang.System.exit;
+import static java.net.StandardSocketOptions.TCP_NODELAY;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import com.ximedes.API;
 
@@ -14,15 +22,32 @@ import com.ximedes.API;
  * A web server that is dedicated to handling this challenge's traffic. The
  * assumption here is that by cutting every conveivable corner of the HTTP
  * protocol, we can build a faster web server than the professionals can.
+ * <p>
+ * There are two ways to run it. By default we run a thread per connection,
+ * which is as fast as it gets as long as there are few connections, but each
+ * thread owns its connection until the client closes it, so we serve no more
+ * keep-alive connections than we have threads. Alternatively we run a few
+ * {@link EventLoop}s that each serve any number of connections, or we start
+ * a virtual thread for each connection, so that the blocking code of the
+ * {@link ConnectionHandler} serves any number of connections too.
+ * <p>
+ * Whichever way we run, a single thread accepts all connections, which
+ * becomes the bottleneck when clients reconnect in bursts. So we may also
+ * run several acceptors, each with a listening socket and handlers of its
+ * own, and let the kernel spread the connections over them.
  *
  * @author Kees Jan Koster &lt;kjkoster@kjkoster.org&gt;
  */
 class WebServer {
     private final int port;
     private final int backlog;
-    private final int poolsize;
+    private final int acceptors;
+    private final int minPoolsize;
+    private final int maxPoolsize;
+    private final int queueSize;
+    private final int selectors;
+    private final boolean virtualThreads;
     private final API api;
-    private final BlockingQueue<Socket> sockets = new LinkedBlockingQueue<>();
 
     /**
      * Set up a new web server.
@@ -33,18 +58,40 @@ class WebServer {
      *            The backlog to use from the application, note that the
      *            effective value is determined by a combination of this value
      *            and the <code>ulimit(1)</code. settings for the running user.
-     * @param poolsize
+     * @param acceptors
+     *            The number of threads that accept connections, each on a
+     *            listening socket of its own.
+     * @param minPoolsize
      *            The number of HTTP handling threads to spawn.
+     * @param maxPoolsize
+     *            The number of HTTP handling threads to grow to when
+     *            connections have to wait for one.
+     * @param queueSize
+     *            The number of connections that may wait for a thread before
+     *            we turn new ones away.
+     * @param selectors
+     *            The number of event loops to run, or 0 to run a thread per
+     *            connection instead.
+     * @param virtualThreads
+     *            Start a virtual thread for each connection, instead of
+     *            handing them to the pool of threads.
      * @param api
      *            The API to call when a request comes in and was parsed.
      */
-    public WebServer(final int port, final int backlog, final int poolsize,
+    public WebServer(final int port, final int backlog, final int acceptors,
+            final int minPoolsize, final int maxPoolsize, final int queueSize,
+            final int selectors, final boolean virtualThreads,
             final API api) {
         super();
 
         this.port = port;
         this.backlog = backlog;
-        this.poolsize = poolsize;
+        this.acceptors = acceptors;
+        this.minPoolsize = minPoolsize;
+        this.maxPoolsize = maxPoolsize;
+        this.queueSize = queueSize;
+        this.selectors = selectors;
+        this.virtualThreads = virtualThreads;
         this.api = api;
     }
 
@@ -58,19 +105,218 @@ class WebServer {
      *             When the server was interrupted.
      */
     public void serve() throws IOException, InterruptedException {
-        err.println("Spawning " + poolsize + " HTTP threads.");
-        for (int i = 0; i < poolsize; i++) {
-            new Thread(new ConnectionHandler(sockets, api),
-                    "http-connection-" + i).start();
+        if (acceptors > 1) {
+            serveFromAcceptors();
+            return;
+        }
+        if (selectors > 0) {
+            serveFromEventLoops();
+            return;
+        }
+        if (virtualThreads) {
+            serveFromVirtualThreads();
+            return;
         }
 
+        final HandlerPool pool = new HandlerPool("http-connection-",
+                minPoolsize, maxPoolsize, queueSize, api);
+
         err.println("Binding to port " + port + ", backlog of " + backlog
                 + " pending connections.");
         try (final ServerSocket serverSocker = new ServerSocket(port,
                 backlog)) {
             for (;;) {
-                sockets.put(serverSocker.accept());
+                pool.submit(serverSocker.accept());
+            }
+        }
+    }
+
+    /**
+     * Accept connections and deal them out over the event loops, round
+     * robin. Each event loop keeps the connections that it was given.
+     */
+    private void serveFromEventLoops() throws IOException {
+        final EventLoop[] eventLoops = new EventLoop[selectors];
+        err.println("Spawning " + selectors + " HTTP event loops.");
+        for (int i = 0; i < selectors; i++) {
+            eventLoops[i] = new EventLoop(api);
+            new Thread(eventLoops[i], "http-event-loop-" + i).start();
+        }
+
+        err.println("Binding to port " + port + ", backlog of " + backlog
+                + " pending connections.");
+        try (final ServerSocketChannel serverChannel = ServerSocketChannel
+                .open()) {
+            serverChannel.bind(new InetSocketAddress(port), backlog);
+            for (int i = 0;; i = (i + 1) % selectors) {
+                final SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.setOption(TCP_NODELAY, true); // see ConnectionHandler
+                eventLoops[i].add(channel);
+            }
+        }
+    }
+
+    /**
+     * Accept connections and start a thread for each of them, ideally a
+     * virtual one. Virtual threads came with Java 21 and we still build for
+     * Java 8, so we find them by reflection. On an older JVM we fall back to
+     * a platform thread per connection, which serves just as many
+     * connections, but at the cost of a full thread stack each.
+     */
+    private void serveFromVirtualThreads() throws IOException {
+        final ExecutorService threads = threadPerConnection();
+
+        err.println("Binding to port " + port + ", backlog of " + backlog
+                + " pending connections.");
+        try (final ServerSocket serverSocker = new ServerSocket(port,
+                backlog)) {
+            for (;;) {
+                threads.execute(
+                        new ConnectionHandler(serverSocker.accept(), api));
+            }
+        }
+    }
+
+    /**
+     * Accept connections on several listening sockets, all bound to the same
+     * port with <code>SO_REUSEPORT</code>. The kernel spreads the incoming
+     * connections over the sockets, and each socket has an acceptor thread
+     * and a share of the handlers of its own, so the acceptors never hand
+     * connections to each other. The first acceptor runs on this thread.
+     */
+    private void serveFromAcceptors() throws IOException {
+        final ServerSocketChannel[] listeners = listen();
+        final ExecutorService threads = virtualThreads ? threadPerConnection()
+                : null;
+        if (selectors > 0) {
+            err.println("Spawning " + max(1, selectors / acceptors)
+                    + " HTTP event loops for each of " + acceptors
+                    + " acceptors.");
+        }
+
+        for (int i = 1; i < acceptors; i++) {
+            final int acceptor = i;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        accept(acceptor, listeners[acceptor], threads);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                        err.println("Dying...");
+                        exit(1);
+                    }
+                }
+            }, "http-acceptor-" + i).start();
+        }
+        accept(0, listeners[0], threads);
+    }
+
+    /**
+     * Accept connections from a listening socket and hand them to handlers
+     * of this acceptor's own.
+     */
+    private void accept(final int acceptor,
+            final ServerSocketChannel listener, final ExecutorService threads)
+            throws IOException {
+        if (selectors > 0) {
+            final EventLoop[] eventLoops = new EventLoop[max(1,
+                    selectors / acceptors)];
+            for (int i = 0; i < eventLoops.length; i++) {
+                eventLoops[i] = new EventLoop(api);
+                new Thread(eventLoops[i],
+                        "http-event-loop-" + acceptor + "-" + i).start();
+            }
+            for (int i = 0;; i = (i + 1) % eventLoops.length) {
+                final SocketChannel channel = listener.accept();
+                channel.configureBlocking(false);
+                channel.setOption(TCP_NODELAY, true); // see ConnectionHandler
+                eventLoops[i].add(channel);
+            }
+        }
+
+        if (threads != null) {
+            for (;;) {
+                threads.execute(new ConnectionHandler(
+                        listener.accept().socket(), api));
             }
         }
+
+        final HandlerPool pool = new HandlerPool(
+                "http-connection-" + acceptor + "-",
+                max(1, minPoolsize / acceptors),
+                max(1, maxPoolsize / acceptors),
+                max(1, queueSize / acceptors), api);
+        for (;;) {
+            pool.submit(listener.accept().socket());
+        }
+    }
+
+    /**
+     * Open a listening socket for each acceptor. <code>SO_REUSEPORT</code>
+     * came with Java 9, so we look it up by reflection. Without it, or on a
+     * platform that does not support it, all acceptors share a single
+     * listening socket. They still have handlers of their own, but the
+     * kernel hands them connections from one queue.
+     */
+    private ServerSocketChannel[] listen() throws IOException {
+        final ServerSocketChannel[] listeners = new ServerSocketChannel[acceptors];
+        final SocketOption<Boolean> reusePort = reusePort();
+        if (reusePort == null) {
+            err.println("No SO_REUSEPORT here, binding one socket to port "
+                    + port + " for " + acceptors + " acceptors, backlog of "
+                    + backlog + " pending connections.");
+            Arrays.fill(listeners, bind(null));
+            return listeners;
+        }
+
+        err.println("Binding " + acceptors + " sockets to port " + port
+                + " with SO_REUSEPORT, backlog of " + backlog
+                + " pending connections each.");
+        for (int i = 0; i < acceptors; i++) {
+            listeners[i] = bind(reusePort);
+        }
+        return listeners;
+    }
+
+    private ServerSocketChannel bind(final SocketOption<Boolean> reusePort)
+            throws IOException {
+        final ServerSocketChannel listener = ServerSocketChannel.open();
+        if (reusePort != null) {
+            listener.setOption(reusePort, true);
+        }
+        listener.bind(new InetSocketAddress(port), backlog);
+        return listener;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> reusePort() {
+        try {
+            final SocketOption<Boolean> reusePort = (SocketOption<Boolean>) StandardSocketOptions.class
+                    .getField("SO_REUSEPORT").get(null);
+            try (final ServerSocketChannel probe = ServerSocketChannel
+                    .open()) {
+                return probe.supportedOptions().contains(reusePort)
+                        ? reusePort
+                        : null;
+            }
+        } catch (ReflectiveOperationException | IOException e) {
+            return null;
+        }
+    }
+
+    private static ExecutorService threadPerConnection() {
+        try {
+            final ExecutorService threads = (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor")
+                    .invoke(null);
+            err.println("Starting a virtual thread per connection.");
+            return threads;
+        } catch (ReflectiveOperationException e) {
+            err.println("No virtual threads on this JVM (" + e
+                    + "), starting a platform thread per connection.");
+            return Executors.newCachedThreadPool();
+        }
     }
 }